@@ -0,0 +1,67 @@
+package xtras.sql;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A basic row binding implementation, which keeps the column metadata of its
+ * result set to allow columns to be resolved by name.
+ *
+ * @author Christoffer Lerno
+ */
+public abstract class AbstractRowBinding<T> implements RowBinding<T>
+{
+	private final int m_columnCount;
+	private final ResultSetMetaData m_metaData;
+	private Map<String, Integer> m_columns;
+
+	/**
+	 * Creates a binding for a result set.
+	 *
+	 * @param metaData the metadata of the result set.
+	 * @throws SQLException if there was an error reading the metadata.
+	 */
+	protected AbstractRowBinding(ResultSetMetaData metaData) throws SQLException
+	{
+		m_metaData = metaData;
+		m_columnCount = metaData.getColumnCount();
+		m_columns = null;
+	}
+
+	/**
+	 * Returns the number of columns in the result set.
+	 *
+	 * @return the number of columns.
+	 */
+	protected int getColumnCount()
+	{
+		return m_columnCount;
+	}
+
+	/**
+	 * Resolves the index of a column from its label, ignoring case.
+	 * <p/>
+	 * This is intended to be called when the binding is created, and not for each row.
+	 *
+	 * @param label the label of the column.
+	 * @return the index of the column, starting with 1.
+	 * @throws SQLException if there was an error reading the metadata.
+	 * @throws IllegalArgumentException if there was no column with that label.
+	 */
+	protected int column(String label) throws SQLException
+	{
+		if (m_columns == null)
+		{
+			m_columns = new HashMap<String, Integer>();
+			for (int i = m_columnCount; i > 0; i--)
+			{
+				m_columns.put(m_metaData.getColumnLabel(i).toLowerCase(), i);
+			}
+		}
+		Integer index = m_columns.get(label.toLowerCase());
+		if (index == null) throw new IllegalArgumentException("No column '" + label + "' in result.");
+		return index;
+	}
+}
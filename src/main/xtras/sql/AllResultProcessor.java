@@ -13,17 +13,22 @@ import java.sql.SQLException;
  */
 public class AllResultProcessor<D> extends AbstractResultProcessor<List<D>>
 {
+	private ResultSet m_resultSet;
+	private int m_columns;
+
 	/**
 	 * Creates a new processor.
 	 */
 	public AllResultProcessor()
 	{
+		m_resultSet = null;
+		m_columns = 0;
 		setResult(new ArrayList<D>());
 	}
 
 	/**
-	 * Adds values to the list by running {@link SQL#readResultSet(java.sql.ResultSet)} on
-	 * the result set.
+	 * Adds values to the list by running {@link SQL#readResultSet(java.sql.ResultSet, int)} on
+	 * the result set. The column count is only read once for each result set.
 	 *
 	 * @param resultSet the result set to handle.
 	 * @return true always.
@@ -31,7 +36,12 @@ public class AllResultProcessor<D> extends AbstractResultProcessor<List<D>>
 	 */
 	public boolean process(ResultSet resultSet) throws SQLException
 	{
-		getResult().add((D) SQL.readResultSet(resultSet));
+		if (resultSet != m_resultSet)
+		{
+			m_columns = resultSet.getMetaData().getColumnCount();
+			m_resultSet = resultSet;
+		}
+		getResult().add((D) SQL.readResultSet(resultSet, m_columns));
 		return true;
 	}
 }
@@ -0,0 +1,277 @@
+package xtras.sql;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs calls to a {@link DbProxy} on a dedicated executor, allowing a thread to
+ * fan out several independent queries in parallel:
+ * <pre>
+ * AsyncDbProxy async = new AsyncDbProxy(proxy, 100);
+ * Future&lt;List&lt;Object&gt;&gt; friends = async.queryAsync(new AllResultProcessor&lt;Object&gt;(), "select ...", id);
+ * Future&lt;Object&gt; score = async.queryAsync(new SingleResultProcessor&lt;Object&gt;(), "select ...", id);
+ * render(friends.get(), score.get());
+ * </pre>
+ * Any {@link SQLException} is thrown from {@link Future#get()} wrapped in an
+ * {@link java.util.concurrent.ExecutionException}. The calls return {@link Future} rather than
+ * {@code CompletableFuture}, as the library is built for Java 7.
+ * <p/>
+ * <b>Backpressure:</b> The executor has a bounded queue. When all threads are busy and the queue
+ * is full, the call is run directly on the calling thread instead, which slows down
+ * the caller until the executor catches up.
+ * <p/>
+ * <b>Transactions:</b> Transactions are bound to the thread that started them, and
+ * a call run on the executor would silently run outside of the transaction. To prevent this,
+ * async calls are rejected with an {@link IllegalStateException} while the calling
+ * thread is in a transaction. Each async call runs on its own, outside of any transaction.
+ *
+ * @author Christoffer Lerno
+ */
+public class AsyncDbProxy
+{
+	private final static AtomicInteger s_threadId = new AtomicInteger(0);
+
+	private final DbProxy m_proxy;
+	private final ThreadPoolExecutor m_executor;
+
+	/**
+	 * Creates a new async proxy with one thread for each connection in the pool
+	 * of the proxy.
+	 *
+	 * @param proxy the proxy to run calls on.
+	 * @param queueSize the maximum number of calls waiting for a thread.
+	 */
+	public AsyncDbProxy(PooledDbProxy proxy, int queueSize)
+	{
+		this(proxy, proxy.getPool().getPoolSize(), queueSize);
+	}
+
+	/**
+	 * Creates a new async proxy.
+	 *
+	 * @param proxy the proxy to run calls on.
+	 * @param threads the number of threads running calls, this should not exceed
+	 * the number of connections available to the proxy.
+	 * @param queueSize the maximum number of calls waiting for a thread.
+	 * @throws IllegalArgumentException if threads or queue size is less than 1.
+	 */
+	public AsyncDbProxy(DbProxy proxy, int threads, int queueSize)
+	{
+		if (threads < 1) throw new IllegalArgumentException("Threads must be at least 1.");
+		if (queueSize < 1) throw new IllegalArgumentException("Queue size must be at least 1.");
+		m_proxy = proxy;
+		m_executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+		                                    new ArrayBlockingQueue<Runnable>(queueSize),
+		                                    new DaemonThreadFactory(),
+		                                    new CallerRunsUnlessShutdownPolicy());
+		m_executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns the proxy the calls are run on.
+	 *
+	 * @return the underlying proxy.
+	 */
+	public DbProxy getProxy()
+	{
+		return m_proxy;
+	}
+
+	/**
+	 * Runs {@link DbProxy#query(ResultProcessor, String, Object[])} asynchronously.
+	 *
+	 * @param processor a ResultProcessor to work on the ResultSet.
+	 * @param query the SQL query to execute.
+	 * @param args the arguments to insert at each '?' in the query string.
+	 * @return a future holding the result of the processor.
+	 * @throws IllegalStateException if the current thread is in a transaction, or the
+	 * proxy has been shut down.
+	 */
+	public <T> Future<T> queryAsync(final ResultProcessor<T> processor, final String query, final Object... args)
+	{
+		return submit(new Callable<T>()
+		{
+			public T call() throws SQLException
+			{
+				return m_proxy.query(processor, query, args);
+			}
+		});
+	}
+
+	/**
+	 * Runs {@link DbProxy#query(QueryOptions, ResultProcessor, String, Object[])} asynchronously.
+	 *
+	 * @param options the options to use when reading the result.
+	 * @param processor a ResultProcessor to work on the ResultSet.
+	 * @param query the SQL query to execute.
+	 * @param args the arguments to insert at each '?' in the query string.
+	 * @return a future holding the result of the processor.
+	 * @throws IllegalStateException if the current thread is in a transaction, or the
+	 * proxy has been shut down.
+	 */
+	public <T> Future<T> queryAsync(final QueryOptions options, final ResultProcessor<T> processor,
+	                                final String query, final Object... args)
+	{
+		return submit(new Callable<T>()
+		{
+			public T call() throws SQLException
+			{
+				return m_proxy.query(options, processor, query, args);
+			}
+		});
+	}
+
+	/**
+	 * Runs {@link DbProxy#update(String, Object[])} asynchronously.
+	 *
+	 * @param update the sql update query, parameterized with '?'.
+	 * @param args the arguments to insert in the parameter slots.
+	 * @return a future holding the number of rows changed.
+	 * @throws IllegalStateException if the current thread is in a transaction, or the
+	 * proxy has been shut down.
+	 */
+	public Future<Integer> updateAsync(final String update, final Object... args)
+	{
+		return submit(new Callable<Integer>()
+		{
+			public Integer call() throws SQLException
+			{
+				return m_proxy.update(update, args);
+			}
+		});
+	}
+
+	/**
+	 * Runs {@link DbProxy#insert(String, Object[])} asynchronously.
+	 *
+	 * @param insert the sql insert query, parameterized with '?'.
+	 * @param args the arguments to insert in the parameter slots.
+	 * @return a future holding the generated key(s).
+	 * @throws IllegalStateException if the current thread is in a transaction, or the
+	 * proxy has been shut down.
+	 */
+	public <T> Future<T> insertAsync(final String insert, final Object... args)
+	{
+		return submit(new Callable<T>()
+		{
+			public T call() throws SQLException
+			{
+				return m_proxy.<T>insert(insert, args);
+			}
+		});
+	}
+
+	/**
+	 * Runs {@link DbProxy#updateBatch(String, java.util.List)} asynchronously.
+	 *
+	 * @param update the sql update query, parameterized with '?'.
+	 * @param rows a list where each entry holds the arguments for one execution of the update.
+	 * @return a future holding the number of rows changed for each entry in {@code rows}.
+	 * @throws IllegalStateException if the current thread is in a transaction, or the
+	 * proxy has been shut down.
+	 */
+	public Future<int[]> updateBatchAsync(final String update, final List<Object[]> rows)
+	{
+		return submit(new Callable<int[]>()
+		{
+			public int[] call() throws SQLException
+			{
+				return m_proxy.updateBatch(update, rows);
+			}
+		});
+	}
+
+	private <T> Future<T> submit(Callable<T> call)
+	{
+		if (m_proxy.inTransaction())
+		{
+			throw new IllegalStateException("Async calls are not allowed inside a transaction.");
+		}
+		try
+		{
+			return m_executor.submit(call);
+		}
+		catch (RejectedExecutionException e)
+		{
+			throw new IllegalStateException("Async proxy already shut down.");
+		}
+	}
+
+	/**
+	 * Returns the number of calls waiting for a thread.
+	 *
+	 * @return the number of queued calls.
+	 */
+	public int getQueued()
+	{
+		return m_executor.getQueue().size();
+	}
+
+	/**
+	 * Stops accepting new calls, letting already submitted calls finish.
+	 * <p/>
+	 * This does not shut down the underlying proxy.
+	 *
+	 * @see ExecutorService#shutdown()
+	 */
+	public void shutdown()
+	{
+		m_executor.shutdown();
+	}
+
+	/**
+	 * Waits for submitted calls to finish after a shutdown.
+	 *
+	 * @param timeout the maximum time to wait in ms.
+	 * @return true if all calls finished, false if the timeout elapsed first.
+	 * @throws InterruptedException if the thread was interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout) throws InterruptedException
+	{
+		return m_executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs rejected calls on the calling thread, unless the executor has been shut down.
+	 * <p/>
+	 * Unlike {@link ThreadPoolExecutor.CallerRunsPolicy}, which silently drops calls rejected
+	 * because of a shutdown, this throws so that the caller never gets a future that will not complete.
+	 */
+	static class CallerRunsUnlessShutdownPolicy implements RejectedExecutionHandler
+	{
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor)
+		{
+			if (executor.isShutdown()) throw new RejectedExecutionException("Executor already shut down.");
+			runnable.run();
+		}
+	}
+
+	/**
+	 * Creates named daemon threads, so that the executor never prevents the vm from exiting.
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "AsyncDbProxy-" + s_threadId.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "AsyncDbProxy[" + m_proxy + ", " + m_executor.getActiveCount() + " active, " + getQueued() + " queued]";
+	}
+}
@@ -0,0 +1,739 @@
+package xtras.sql;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A DbProxy decorator caching the results of read-mostly queries.
+ * <p/>
+ * Caching is opt-in per query. Each cached query has its own time to live, and the
+ * tables it reads from:
+ * <pre>
+ * CachingDbProxy proxy = new CachingDbProxy(new PooledDbProxy(driver, url, user, password, 10));
+ * proxy.cacheQuery("select name from countries where code = ?", Time.ONE_HOUR, "countries");
+ * Db.registerDb("pokerdb", proxy);
+ * </pre>
+ * Only results read with a {@link SingleResultProcessor} or an {@link AllResultProcessor} are cached,
+ * since their result depends on nothing but the query. Other processors, such as those created for
+ * a {@link RowMapper}, always run the query. Results are keyed on the query, its arguments, the
+ * max rows and the kind of processor, so the same query read as one row and as all rows is
+ * cached separately.
+ * Any update or insert through this proxy that mentions a registered table invalidates all
+ * cached results reading from that table. Inside a transaction the cache is bypassed,
+ * and the tables written by the transaction are invalidated when the outer transaction commits.
+ * <p/>
+ * The cache holds at most a fixed number of results and a fixed total weight, where the weight
+ * of a result is its number of rows. Results are evicted in roughly least recently used order:
+ * a cache hit only records the time of use on its result, without locking, and eviction
+ * removes the least recently used of a small sample of the cached results.
+ * <p/>
+ * Cached results are shared between callers, so lists are stored and returned as unmodifiable
+ * copies, also by the query that caches them. Results holding arrays, such as blobs, cannot be
+ * made unmodifiable and are never cached. Cursors are never cached.
+ *
+ * @author Christoffer Lerno
+ */
+public class CachingDbProxy implements DbProxy
+{
+	/**
+	 * The default maximum number of cached results.
+	 */
+	public final static int DEFAULT_MAX_ENTRIES = 1000;
+
+	/**
+	 * The default maximum total weight, in rows, of the cached results.
+	 */
+	public final static long DEFAULT_MAX_WEIGHT = 100000;
+
+	/**
+	 * The maximum number of write statements to remember the touched tables of.
+	 */
+	final static int MAX_CACHED_WRITES = 1000;
+
+	/**
+	 * The number of cached results compared when picking one to evict.
+	 */
+	final static int EVICTION_SAMPLES = 8;
+
+	// Hits closer in time than this to the last recorded use are not recorded, to limit writes to popular results.
+	private final static long USE_RESOLUTION_NANOS = 1000000;
+
+	private final static Object UNCACHEABLE = new Object();
+
+	private final DbProxy m_proxy;
+	private final int m_maxEntries;
+	private final long m_maxWeight;
+	// Only needed for adding and evicting results, reads do not lock.
+	private final ReentrantLock m_lock;
+	private final ConcurrentHashMap<Key, Entry> m_cache;
+	private final AtomicLong m_weight;
+	private Iterator<Map.Entry<Key, Entry>> m_evictionSamples;
+	private final Map<String, CachedQuery> m_queries;
+	private final ConcurrentHashMap<String, AtomicLong> m_tableVersions;
+	private final Map<String, String[]> m_touchedTables;
+	private final ThreadLocal<Set<String>> m_transactionTables;
+	private final AtomicLong m_hits;
+	private final AtomicLong m_misses;
+
+	/**
+	 * Creates a new caching proxy with the default limits.
+	 *
+	 * @param proxy the proxy to cache the results of.
+	 */
+	public CachingDbProxy(DbProxy proxy)
+	{
+		this(proxy, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT);
+	}
+
+	/**
+	 * Creates a new caching proxy.
+	 *
+	 * @param proxy the proxy to cache the results of.
+	 * @param maxEntries the maximum number of results to cache.
+	 * @param maxWeight the maximum total number of rows to cache.
+	 */
+	public CachingDbProxy(DbProxy proxy, int maxEntries, long maxWeight)
+	{
+		if (maxEntries < 1) throw new IllegalArgumentException("Max entries must be at least 1.");
+		if (maxWeight < 1) throw new IllegalArgumentException("Max weight must be at least 1.");
+		m_proxy = proxy;
+		m_maxEntries = maxEntries;
+		m_maxWeight = maxWeight;
+		m_lock = new ReentrantLock();
+		m_cache = new ConcurrentHashMap<Key, Entry>();
+		m_weight = new AtomicLong(0);
+		m_evictionSamples = null;
+		m_queries = new ConcurrentHashMap<String, CachedQuery>();
+		m_tableVersions = new ConcurrentHashMap<String, AtomicLong>();
+		m_touchedTables = new ConcurrentHashMap<String, String[]>();
+		m_transactionTables = new ThreadLocal<Set<String>>();
+		m_hits = new AtomicLong(0);
+		m_misses = new AtomicLong(0);
+	}
+
+	/**
+	 * Enables caching of the results of a query.
+	 * <p/>
+	 * Registering the same query again replaces its time to live and tables.
+	 *
+	 * @param query the query to cache, exactly as passed to this proxy.
+	 * @param ttl the time to live of the results in ms.
+	 * @param tables the tables the query reads from, writes to these tables invalidate the results.
+	 */
+	public void cacheQuery(String query, long ttl, String... tables)
+	{
+		AtomicLong[] versions = new AtomicLong[tables.length];
+		for (int i = 0; i < tables.length; i++)
+		{
+			versions[i] = getTableVersion(tables[i].toLowerCase());
+		}
+		m_queries.put(query, new CachedQuery(ttl, versions));
+		m_touchedTables.clear();
+	}
+
+	private AtomicLong getTableVersion(String table)
+	{
+		AtomicLong version = m_tableVersions.get(table);
+		if (version != null) return version;
+		version = new AtomicLong(0);
+		AtomicLong existing = m_tableVersions.putIfAbsent(table, version);
+		return existing == null ? version : existing;
+	}
+
+	/**
+	 * Invalidates all cached results reading from a table.
+	 *
+	 * @param table the table to invalidate.
+	 */
+	public void invalidate(String table)
+	{
+		AtomicLong version = m_tableVersions.get(table.toLowerCase());
+		if (version != null) version.incrementAndGet();
+	}
+
+	/**
+	 * Removes all cached results.
+	 */
+	public void clear()
+	{
+		m_lock.lock();
+		try
+		{
+			for (Map.Entry<Key, Entry> entry : m_cache.entrySet())
+			{
+				removeEntry(entry.getKey(), entry.getValue());
+			}
+		}
+		finally
+		{
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of queries answered from the cache.
+	 *
+	 * @return the number of cache hits.
+	 */
+	public long getHits()
+	{
+		return m_hits.get();
+	}
+
+	/**
+	 * Returns the number of cacheable queries that had to be run.
+	 *
+	 * @return the number of cache misses.
+	 */
+	public long getMisses()
+	{
+		return m_misses.get();
+	}
+
+	/**
+	 * Returns the number of cached results, including expired results not yet evicted.
+	 *
+	 * @return the number of cached results.
+	 */
+	public int getSize()
+	{
+		return m_cache.size();
+	}
+
+	/**
+	 * Returns the total weight of the cached results.
+	 *
+	 * @return the total number of rows cached.
+	 */
+	public long getWeight()
+	{
+		return m_weight.get();
+	}
+
+	private Entry getEntry(Key key, CachedQuery query, long now)
+	{
+		Entry entry = m_cache.get(key);
+		if (entry == null) return null;
+		if (entry.isValid(query, now))
+		{
+			entry.used();
+			return entry;
+		}
+		removeEntry(key, entry);
+		return null;
+	}
+
+	/**
+	 * Removes a result, unless it was already removed or replaced.
+	 *
+	 * @param key the key of the result.
+	 * @param entry the result to remove.
+	 */
+	private void removeEntry(Key key, Entry entry)
+	{
+		if (m_cache.remove(key, entry)) m_weight.addAndGet(-entry.getWeight());
+	}
+
+	private void putEntry(Key key, Entry entry)
+	{
+		if (entry.getWeight() > m_maxWeight) return;
+		m_lock.lock();
+		try
+		{
+			Entry old = m_cache.put(key, entry);
+			m_weight.addAndGet(old == null ? entry.getWeight() : entry.getWeight() - old.getWeight());
+			while ((m_cache.size() > m_maxEntries || m_weight.get() > m_maxWeight) && evictEntry()) {}
+		}
+		finally
+		{
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Evicts the least recently used of the next {@link #EVICTION_SAMPLES} cached results.
+	 * <p/>
+	 * Sampling continues where the previous eviction stopped, so all results are sampled in turn.
+	 * Must be called holding the lock.
+	 *
+	 * @return true if a result was evicted, false if the cache is empty.
+	 */
+	private boolean evictEntry()
+	{
+		Map.Entry<Key, Entry> oldest = null;
+		boolean restarted = false;
+		int sampled = 0;
+		while (sampled < EVICTION_SAMPLES)
+		{
+			if (m_evictionSamples == null || !m_evictionSamples.hasNext())
+			{
+				if (restarted) break;
+				m_evictionSamples = m_cache.entrySet().iterator();
+				restarted = true;
+				continue;
+			}
+			Map.Entry<Key, Entry> sample = m_evictionSamples.next();
+			if (oldest == null || sample.getValue().getLastUsed() - oldest.getValue().getLastUsed() < 0)
+			{
+				oldest = sample;
+			}
+			sampled++;
+		}
+		if (oldest == null) return false;
+		removeEntry(oldest.getKey(), oldest.getValue());
+		return true;
+	}
+
+	/**
+	 * Returns the registered tables mentioned in a write statement.
+	 *
+	 * @param sql the sql of the statement.
+	 * @return the tables in lower case.
+	 */
+	private String[] getTouchedTables(String sql)
+	{
+		String[] tables = m_touchedTables.get(sql);
+		if (tables != null) return tables;
+		String lowerCaseSql = sql.toLowerCase();
+		Set<String> touched = new HashSet<String>();
+		for (String table : m_tableVersions.keySet())
+		{
+			if (containsWord(lowerCaseSql, table)) touched.add(table);
+		}
+		tables = touched.toArray(new String[touched.size()]);
+		if (m_touchedTables.size() < MAX_CACHED_WRITES) m_touchedTables.put(sql, tables);
+		return tables;
+	}
+
+	private static boolean containsWord(String text, String word)
+	{
+		int index = text.indexOf(word);
+		while (index >= 0)
+		{
+			int end = index + word.length();
+			if ((index == 0 || !isWordChar(text.charAt(index - 1)))
+			    && (end == text.length() || !isWordChar(text.charAt(end))))
+			{
+				return true;
+			}
+			index = text.indexOf(word, index + 1);
+		}
+		return false;
+	}
+
+	private static boolean isWordChar(char c)
+	{
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+	}
+
+	/**
+	 * Invalidates the tables touched by a write, or defers the invalidation
+	 * until commit if in a transaction.
+	 *
+	 * @param sql the sql of the write.
+	 */
+	private void written(String sql)
+	{
+		String[] tables = getTouchedTables(sql);
+		if (tables.length == 0) return;
+		Set<String> transactionTables = m_transactionTables.get();
+		if (transactionTables != null) transactionTables.addAll(Arrays.asList(tables));
+		for (String table : tables)
+		{
+			m_tableVersions.get(table).incrementAndGet();
+		}
+	}
+
+	/** {@inheritDoc} */
+	public void addAlias(String alias, String schema)
+	{
+		m_proxy.addAlias(alias, schema);
+	}
+
+	/** {@inheritDoc} */
+	public void beginTransaction(TransactionIsolation isolation) throws SQLException
+	{
+		try
+		{
+			m_proxy.beginTransaction(isolation);
+		}
+		finally
+		{
+			transactionChanged();
+		}
+	}
+
+	/**
+	 * Starts or stops tracking the tables written in the transaction of the current thread,
+	 * after the transaction was started, nested or ended.
+	 *
+	 * @return the tables written by the transaction if it just ended, otherwise null.
+	 */
+	private Set<String> transactionChanged()
+	{
+		Set<String> tables = m_transactionTables.get();
+		if (m_proxy.inTransaction())
+		{
+			if (tables == null) m_transactionTables.set(new HashSet<String>());
+			return null;
+		}
+		m_transactionTables.remove();
+		return tables;
+	}
+
+	/** {@inheritDoc} */
+	public void rollback() throws SQLException
+	{
+		try
+		{
+			m_proxy.rollback();
+		}
+		finally
+		{
+			transactionChanged();
+		}
+	}
+
+	/** {@inheritDoc} */
+	public void commit() throws SQLException
+	{
+		try
+		{
+			m_proxy.commit();
+		}
+		finally
+		{
+			Set<String> tables = transactionChanged();
+			if (tables != null)
+			{
+				for (String table : tables)
+				{
+					m_tableVersions.get(table).incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/** {@inheritDoc} */
+	@SuppressWarnings({"RedundantTypeArguments"})
+	public <T> T insert(String insert, Object... args) throws SQLException
+	{
+		try
+		{
+			return m_proxy.<T>insert(insert, args);
+		}
+		finally
+		{
+			written(insert);
+		}
+	}
+
+	/** {@inheritDoc} */
+	public int update(String update, Object... args) throws SQLException
+	{
+		try
+		{
+			return m_proxy.update(update, args);
+		}
+		finally
+		{
+			written(update);
+		}
+	}
+
+	/** {@inheritDoc} */
+	public void updateDeferred(String update, Object... args) throws SQLException
+	{
+		try
+		{
+			m_proxy.updateDeferred(update, args);
+		}
+		finally
+		{
+			written(update);
+		}
+	}
+
+	/** {@inheritDoc} */
+	public int[] updateBatch(String update, List<Object[]> rows) throws SQLException
+	{
+		try
+		{
+			return m_proxy.updateBatch(update, rows);
+		}
+		finally
+		{
+			written(update);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@SuppressWarnings({"RedundantTypeArguments"})
+	public <T> List<T> insertBatch(String insert, List<Object[]> rows) throws SQLException
+	{
+		try
+		{
+			return m_proxy.<T>insertBatch(insert, rows);
+		}
+		finally
+		{
+			written(insert);
+		}
+	}
+
+	/** {@inheritDoc} */
+	public <T> T query(ResultProcessor<T> processor, String query, Object... args) throws SQLException
+	{
+		return query(QueryOptions.DEFAULT, processor, query, args);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * The result is read from the cache if the query is cached, the processor is cacheable
+	 * and not in a transaction.
+	 */
+	@SuppressWarnings({"unchecked"})
+	public <T> T query(QueryOptions options, ResultProcessor<T> processor, String query, Object... args) throws SQLException
+	{
+		CachedQuery cachedQuery = m_queries.get(query);
+		if (cachedQuery == null || !isCacheable(processor) || m_proxy.inTransaction())
+		{
+			return m_proxy.query(options, processor, query, args);
+		}
+		Key key = new Key(processor.getClass(), query, options.getMaxRows(), args);
+		long now = System.currentTimeMillis();
+		Entry entry = getEntry(key, cachedQuery, now);
+		if (entry != null)
+		{
+			m_hits.incrementAndGet();
+			return (T) entry.getValue();
+		}
+		m_misses.incrementAndGet();
+		// Take the table versions before querying, so that writes during the query invalidate the result.
+		long[] versions = cachedQuery.getVersions();
+		T result = m_proxy.query(options, processor, query, args);
+		Object value = unmodifiableCopy(result);
+		if (value == UNCACHEABLE) return result;
+		putEntry(key, new Entry(value, now + cachedQuery.getTtl(), versions));
+		return (T) value;
+	}
+
+	/**
+	 * Copies a result, replacing any lists with unmodifiable lists.
+	 *
+	 * @param result the result to copy.
+	 * @return the copy, or {@link #UNCACHEABLE} if the result holds an array.
+	 */
+	private static Object unmodifiableCopy(Object result)
+	{
+		if (result instanceof List)
+		{
+			List<?> list = (List<?>) result;
+			List<Object> copy = new ArrayList<Object>(list.size());
+			for (Object element : list)
+			{
+				Object elementCopy = unmodifiableCopy(element);
+				if (elementCopy == UNCACHEABLE) return UNCACHEABLE;
+				copy.add(elementCopy);
+			}
+			return Collections.unmodifiableList(copy);
+		}
+		return result != null && result.getClass().isArray() ? UNCACHEABLE : result;
+	}
+
+	/**
+	 * Checks if the result of a processor may be cached, which is the case if it only
+	 * depends on the rows read.
+	 * <p/>
+	 * The class is compared exactly, as subclasses may keep state of their own.
+	 *
+	 * @param processor the processor to check.
+	 * @return true if results of the processor may be cached.
+	 */
+	private static boolean isCacheable(ResultProcessor<?> processor)
+	{
+		Class<?> type = processor.getClass();
+		return type == SingleResultProcessor.class || type == AllResultProcessor.class;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Cursors are never cached.
+	 */
+	public <T> Cursor<T> cursor(QueryOptions options, String query, Object... args) throws SQLException
+	{
+		return m_proxy.cursor(options, query, args);
+	}
+
+	/** {@inheritDoc} */
+	public boolean isValid()
+	{
+		return m_proxy.isValid();
+	}
+
+	/** {@inheritDoc} */
+	public void shutdown()
+	{
+		clear();
+		m_proxy.shutdown();
+	}
+
+	/** {@inheritDoc} */
+	public boolean inTransaction()
+	{
+		return m_proxy.inTransaction();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "CachingDbProxy[" + m_proxy + ", " + getSize() + " cached, " + m_hits + " hits, "
+		       + m_misses + " misses]";
+	}
+
+	/**
+	 * The settings of a cached query.
+	 */
+	private static class CachedQuery
+	{
+		private final long m_ttl;
+		private final AtomicLong[] m_tableVersions;
+
+		private CachedQuery(long ttl, AtomicLong[] tableVersions)
+		{
+			m_ttl = ttl;
+			m_tableVersions = tableVersions;
+		}
+
+		public long getTtl()
+		{
+			return m_ttl;
+		}
+
+		public long[] getVersions()
+		{
+			long[] versions = new long[m_tableVersions.length];
+			for (int i = 0; i < versions.length; i++)
+			{
+				versions[i] = m_tableVersions[i].get();
+			}
+			return versions;
+		}
+
+		public boolean isCurrent(long[] versions)
+		{
+			if (versions.length != m_tableVersions.length) return false;
+			for (int i = 0; i < versions.length; i++)
+			{
+				if (versions[i] != m_tableVersions[i].get()) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A cached result.
+	 */
+	private static class Entry
+	{
+		private final Object m_value;
+		private final long m_expires;
+		private final long[] m_versions;
+		private final int m_weight;
+		private volatile long m_lastUsed;
+
+		private Entry(Object value, long expires, long[] versions)
+		{
+			m_value = value;
+			m_expires = expires;
+			m_versions = versions;
+			m_weight = value instanceof Collection ? Math.max(1, ((Collection<?>) value).size()) : 1;
+			m_lastUsed = System.nanoTime();
+		}
+
+		public void used()
+		{
+			long now = System.nanoTime();
+			if (now - m_lastUsed >= USE_RESOLUTION_NANOS) m_lastUsed = now;
+		}
+
+		/**
+		 * Returns the last time the result was used.
+		 *
+		 * @return the time, from {@link System#nanoTime()}.
+		 */
+		public long getLastUsed()
+		{
+			return m_lastUsed;
+		}
+
+		public Object getValue()
+		{
+			return m_value;
+		}
+
+		public int getWeight()
+		{
+			return m_weight;
+		}
+
+		public boolean isValid(CachedQuery query, long now)
+		{
+			return now < m_expires && query.isCurrent(m_versions);
+		}
+	}
+
+	/**
+	 * The key of a cached result.
+	 */
+	private static class Key
+	{
+		private final Class<?> m_processorClass;
+		private final String m_query;
+		private final int m_maxRows;
+		private final Object[] m_args;
+		private final int m_hashCode;
+
+		private Key(Class<?> processorClass, String query, int maxRows, Object[] args)
+		{
+			m_processorClass = processorClass;
+			m_query = query;
+			m_maxRows = maxRows;
+			m_args = args.clone();
+			m_hashCode = 31 * (31 * (31 * processorClass.hashCode() + query.hashCode()) + maxRows)
+			             + Arrays.deepHashCode(m_args);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+			Key key = (Key) o;
+			return m_hashCode == key.m_hashCode
+			       && m_maxRows == key.m_maxRows
+			       && m_processorClass == key.m_processorClass
+			       && m_query.equals(key.m_query)
+			       && Arrays.deepEquals(m_args, key.m_args);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return m_hashCode;
+		}
+	}
+}
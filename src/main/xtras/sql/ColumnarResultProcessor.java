@@ -0,0 +1,70 @@
+package xtras.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A processor that collects the values of a result into {@link ResultColumn}s,
+ * the first column of the result into the first column of the processor and so on.
+ * <p/>
+ * Compared to {@link Db#queryAll(String, Object[])}, which keeps a list of boxed
+ * values for each row, this keeps each column in a single primitive array:
+ * <pre>
+ * LongColumn players = new LongColumn(0);
+ * DoubleColumn scores = new DoubleColumn(Double.NaN);
+ * Db.query(new ColumnarResultProcessor(players, scores), "select player, score from scores");
+ * double total = 0;
+ * for (int i = 0; i &lt; scores.size(); i++)
+ * {
+ *     total += scores.get(i);
+ * }
+ * </pre>
+ * The result may contain more columns than the processor, extra columns are ignored.
+ *
+ * @author Christoffer Lerno
+ */
+public class ColumnarResultProcessor extends AbstractResultProcessor<ResultColumn[]>
+{
+	private final ResultColumn[] m_columns;
+	private ResultSet m_resultSet;
+
+	/**
+	 * Creates a new processor.
+	 *
+	 * @param columns the columns to collect the result into.
+	 * @throws IllegalArgumentException if there are no columns.
+	 */
+	public ColumnarResultProcessor(ResultColumn... columns)
+	{
+		if (columns.length == 0) throw new IllegalArgumentException("At least one column is required.");
+		m_columns = columns.clone();
+		m_resultSet = null;
+		setResult(m_columns);
+	}
+
+	/**
+	 * Appends the values of the current row to the columns.
+	 *
+	 * @param resultSet the result set to handle.
+	 * @return always true, to read all rows.
+	 * @throws SQLException if there was an exception reading from the result set, or
+	 * if the result has fewer columns than the processor.
+	 */
+	public boolean process(ResultSet resultSet) throws SQLException
+	{
+		if (resultSet != m_resultSet)
+		{
+			int columns = resultSet.getMetaData().getColumnCount();
+			if (columns < m_columns.length)
+			{
+				throw new SQLException("Expected " + m_columns.length + " columns in result, got " + columns + ".");
+			}
+			m_resultSet = resultSet;
+		}
+		for (int i = 0; i < m_columns.length; i++)
+		{
+			m_columns[i].add(resultSet, i + 1);
+		}
+		return true;
+	}
+}
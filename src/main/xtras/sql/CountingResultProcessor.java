@@ -0,0 +1,60 @@
+package xtras.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Wraps a result processor, counting the rows processed and recording when
+ * the first row was read.
+ *
+ * @author Christoffer Lerno
+ */
+class CountingResultProcessor<C> implements ResultProcessor<C>
+{
+	private final ResultProcessor<C> m_processor;
+	private int m_rows;
+	private long m_firstRowTime;
+
+	/**
+	 * Creates a new counting processor.
+	 *
+	 * @param processor the processor to delegate to.
+	 */
+	CountingResultProcessor(ResultProcessor<C> processor)
+	{
+		m_processor = processor;
+		m_rows = 0;
+		m_firstRowTime = 0;
+	}
+
+	public boolean process(ResultSet resultSet) throws SQLException
+	{
+		if (m_rows++ == 0) m_firstRowTime = System.nanoTime();
+		return m_processor.process(resultSet);
+	}
+
+	public C getResult()
+	{
+		return m_processor.getResult();
+	}
+
+	/**
+	 * Returns the number of rows processed.
+	 *
+	 * @return the number of rows.
+	 */
+	public int getRows()
+	{
+		return m_rows;
+	}
+
+	/**
+	 * Returns the time the first row was read.
+	 *
+	 * @return the time as given by {@link System#nanoTime()}, or 0 if there were no rows.
+	 */
+	public long getFirstRowTime()
+	{
+		return m_firstRowTime;
+	}
+}
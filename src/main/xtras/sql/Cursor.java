@@ -0,0 +1,191 @@
+package xtras.sql;
+
+import java.io.Closeable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A lazily advancing iterator over the rows of a query.
+ * <p/>
+ * Each row is read using {@link SQL#readResultSet(java.sql.ResultSet)}, so a
+ * single column is returned as a value and multiple columns as a list.
+ * <p/>
+ * The cursor holds on to its database connection until it is either closed
+ * or has been read to the end, so it should always be closed in a finally block:
+ * <pre>
+ * Cursor&lt;Object&gt; cursor = Db.stream("select * from events where day = ?", day);
+ * try
+ * {
+ *     for (Object row : cursor)
+ *     {
+ *         ... handle row ...
+ *     }
+ * }
+ * finally
+ * {
+ *     cursor.close();
+ * }
+ * </pre>
+ * A cursor opened inside a transaction uses the connection of the transaction,
+ * and is closed automatically when the transaction ends.
+ * <p/>
+ * Since {@link Iterator} cannot throw checked exceptions, any {@link SQLException} while
+ * reading is rethrown as an {@link IllegalStateException} with the SQLException as cause.
+ * The cursor is closed when this happens.
+ * <p/>
+ * <em>This class is not thread-safe.</em>
+ *
+ * @author Christoffer Lerno
+ */
+public class Cursor<T> implements Iterator<T>, Iterable<T>, Closeable
+{
+	private final ResultSet m_resultSet;
+	private final Statement m_statement;
+	private final Releaser m_releaser;
+	private boolean m_hasErrors;
+	private boolean m_closed;
+	private boolean m_rowFetched;
+	private T m_row;
+
+	/**
+	 * Creates a new cursor.
+	 *
+	 * @param resultSet the result set to iterate over.
+	 * @param statement the statement of the result set, may be null.
+	 * @param releaser called exactly once when the cursor is closed, may be null.
+	 */
+	Cursor(ResultSet resultSet, Statement statement, Releaser releaser)
+	{
+		m_resultSet = resultSet;
+		m_statement = statement;
+		m_releaser = releaser;
+		m_hasErrors = false;
+		m_closed = false;
+		m_rowFetched = false;
+		m_row = null;
+	}
+
+	/**
+	 * Reads a single row from the result set.
+	 *
+	 * @param resultSet the result set, positioned on the row to read.
+	 * @return the row.
+	 * @throws SQLException if there was an error reading the row.
+	 */
+	@SuppressWarnings({"unchecked"})
+	protected T readRow(ResultSet resultSet) throws SQLException
+	{
+		return (T) SQL.readResultSet(resultSet);
+	}
+
+	/**
+	 * Checks if there are more rows, reading the next row from the
+	 * database if needed. The cursor is closed when there are no more rows.
+	 *
+	 * @return true if there are more rows.
+	 * @throws IllegalStateException if there was an error reading from the database.
+	 */
+	public boolean hasNext()
+	{
+		if (m_rowFetched) return true;
+		if (m_closed) return false;
+		try
+		{
+			if (!m_resultSet.next())
+			{
+				close();
+				return false;
+			}
+			m_row = readRow(m_resultSet);
+			m_rowFetched = true;
+			return true;
+		}
+		catch (SQLException e)
+		{
+			m_hasErrors = true;
+			close();
+			throw new IllegalStateException("Failed to read next row.", e);
+		}
+	}
+
+	/**
+	 * Returns the next row.
+	 *
+	 * @return the next row.
+	 * @throws NoSuchElementException if there are no more rows.
+	 * @throws IllegalStateException if there was an error reading from the database.
+	 */
+	public T next()
+	{
+		if (!hasNext()) throw new NoSuchElementException();
+		T row = m_row;
+		m_row = null;
+		m_rowFetched = false;
+		return row;
+	}
+
+	/**
+	 * Not supported.
+	 *
+	 * @throws UnsupportedOperationException always.
+	 */
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Returns this cursor, to allow a cursor to be used in a for-each loop.
+	 * <p/>
+	 * Note that a cursor can only be iterated over once.
+	 *
+	 * @return this cursor.
+	 */
+	public Iterator<T> iterator()
+	{
+		return this;
+	}
+
+	/**
+	 * Checks if the cursor is closed.
+	 *
+	 * @return true if the cursor has been closed or read to the end.
+	 */
+	public boolean isClosed()
+	{
+		return m_closed;
+	}
+
+	/**
+	 * Closes the result set and releases the connection held by the cursor.
+	 * <p/>
+	 * Calling close on a closed cursor has no effect.
+	 */
+	public void close()
+	{
+		if (m_closed) return;
+		m_closed = true;
+		m_rowFetched = false;
+		m_row = null;
+		SQL.closeSilently(m_resultSet);
+		SQL.closeSilently(m_statement);
+		if (m_releaser != null) m_releaser.release(this, m_hasErrors);
+	}
+
+	/**
+	 * Callback to release the resources held by a cursor.
+	 */
+	interface Releaser
+	{
+		/**
+		 * Called when a cursor is closed.
+		 *
+		 * @param cursor the cursor that was closed.
+		 * @param hadErrors true if there was an error reading from the cursor.
+		 */
+		void release(Cursor<?> cursor, boolean hadErrors);
+	}
+}
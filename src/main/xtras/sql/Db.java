@@ -3,10 +3,12 @@ package xtras.sql;
 import xtras.util.CollectionExtras;
 import xtras.lang.ObjectExtras;
 
-import java.util.Map;
-import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.sql.SQLException;
 
 /**
@@ -70,7 +72,9 @@ import java.sql.SQLException;
  *     Db.rollback();
  * }
  * </pre>
- *
+ * <p/>
+ * Looking up a db never blocks: registering and unregistering dbs are serialized,
+ * while lookups only read the concurrent registry and the volatile default db.
  *
  * @author Christoffer Lerno
  */
@@ -79,9 +83,12 @@ public final class Db
 	Db() {}
 
 	private final static Object LOCK = new Object();
-	private final static Map<String, DbProxy> s_dbs = new HashMap<String, DbProxy>();
-	private final static ThreadLocal<DbProxy> s_activeDb = new ThreadLocal<DbProxy>();
-	private static DbProxy s_defaultDb = null;
+	private final static ConcurrentMap<String, DbProxy> s_dbs = new ConcurrentHashMap<String, DbProxy>();
+	private final static ThreadLocal<Selection> s_activeDb = new ThreadLocal<Selection>();
+	private static volatile DbProxy s_defaultDb = null;
+	// Increased after dbs are unregistered, so that threads check their selected db again.
+	private final static AtomicInteger s_unregistrations = new AtomicInteger(0);
+	private final static TransactionStatistics s_transactionStatistics = new TransactionStatistics();
 
 	/**
 	 * Creates and registers a new DbProxy with the given key.
@@ -117,13 +124,14 @@ public final class Db
 	{
 		synchronized (LOCK)
 		{
-			if (s_dbs.containsKey(key)) throw new IllegalStateException("Db '" + key
-		                                                               + "' already registered.");
+			if (s_dbs.putIfAbsent(key, dbProxy) != null)
+			{
+				throw new IllegalStateException("Db '" + key + "' already registered.");
+			}
 			if (s_defaultDb == null)
 			{
 				s_defaultDb = dbProxy;
 			}
-			s_dbs.put(key, dbProxy);
 		}
 	}
 
@@ -149,6 +157,7 @@ public final class Db
 		}
 		if (proxy == null) return false;
 		proxy.shutdown();
+		s_unregistrations.incrementAndGet();
 		return true;
 	}
 
@@ -176,40 +185,82 @@ public final class Db
 	 */
 	public static DbProxy getDb(String key)
 	{
-		DbProxy db;
-		synchronized (LOCK)
+		return s_dbs.get(key);
+	}
+
+	/**
+	 * Starts collecting metrics for the pool of a registered db, and publishes
+	 * them as a JMX MBean named {@code xtras.sql:type=DbPool,name=<key>}.
+	 * <p/>
+	 * The MBean is unregistered when the db is unregistered.
+	 *
+	 * @param key the key of the db.
+	 * @return the metrics collected.
+	 * @throws IllegalArgumentException if there is no db with this key, or it is not a {@link PooledDbProxy}.
+	 * @throws IllegalStateException if the MBean could not be registered.
+	 */
+	public static DbPoolMetrics enableMetrics(String key)
+	{
+		DbProxy db = getDb(key);
+		if (db == null) throw new IllegalArgumentException("Key '" + key + "' not yet registered.");
+		if (!(db instanceof PooledDbProxy))
 		{
-			db = s_dbs.get(key);
+			throw new IllegalArgumentException("Db '" + key + "' is not a PooledDbProxy.");
 		}
-		return db;
+		DbPoolMetrics metrics = new DbPoolMetrics();
+		metrics.registerMBean(key);
+		((PooledDbProxy) db).getPool().setListener(metrics);
+		return metrics;
 	}
 
 	/**
 	 * Return the currently selected (on this thread) db.
+	 * <p/>
+	 * Checking a db for validity may be expensive, so the selected db is only checked
+	 * again after a db was unregistered, or after a call on it fails, see {@link #deselectIfInvalid}.
 	 *
 	 * @return the currently selected db.
 	 * @throws IllegalStateException if no db was found.
 	 */
 	private static DbProxy getSelectedDb()
 	{
-		DbProxy db = s_activeDb.get();
-		if (db != null && !db.isValid())
+		int unregistrations = s_unregistrations.get();
+		Selection selection = s_activeDb.get();
+		if (selection != null)
 		{
-			s_activeDb.set(null);
-			db = null;
+			DbProxy db = selection.getDb();
+			if (selection.getUnregistrations() == unregistrations) return db;
+			if (db.isValid())
+			{
+				s_activeDb.set(new Selection(db, unregistrations));
+				return db;
+			}
 		}
+		DbProxy db = s_defaultDb;
 		if (db == null)
 		{
-			synchronized (LOCK)
-			{
-				if (s_defaultDb == null) throw new IllegalStateException("No db found.");
-				db = s_defaultDb;
-			}
-			s_activeDb.set(s_defaultDb);
+			s_activeDb.remove();
+			throw new IllegalStateException("No db found.");
 		}
+		s_activeDb.set(new Selection(db, unregistrations));
 		return db;
 	}
 
+	/**
+	 * Drops a db that failed a call from the selection of this thread, if it is no
+	 * longer valid, so that the next call uses the default db.
+	 *
+	 * @param db the db that failed.
+	 * @param e the exception of the failed call.
+	 * @return the exception, to be thrown by the caller.
+	 */
+	private static SQLException deselectIfInvalid(DbProxy db, SQLException e)
+	{
+		Selection selection = s_activeDb.get();
+		if (selection != null && selection.getDb() == db && !db.isValid()) s_activeDb.remove();
+		return e;
+	}
+
 	/**
 	 * Starts a transaction with a given isolation level.
 	 *
@@ -219,7 +270,15 @@ public final class Db
 	 */
 	public static void beginTransaction(TransactionIsolation transactionIsolation) throws SQLException
 	{
-		getSelectedDb().beginTransaction(transactionIsolation);
+		DbProxy db = getSelectedDb();
+		try
+		{
+			db.beginTransaction(transactionIsolation);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
 	}
 
 	/**
@@ -234,13 +293,25 @@ public final class Db
 	 * released.
 	 * If the operation succeeds we have acquired a connection that is
 	 * set with auto-commit off.
+	 * <p>
+	 * If already in a transaction, a nested transaction is started using a savepoint.
+	 * The next commit() or rollback() then only ends the nested transaction, and
+	 * rollback() only discards the changes made since the nested transaction began.
 	 *
-	 * @throws SQLException if there was an error starting the transaction
-	 * or if we already had entered a transaction.
+	 * @throws SQLException if there was an error starting the transaction,
+	 * or if the driver does not support savepoints when already in a transaction.
 	 */
 	public static void beginTransaction() throws SQLException
 	{
-		getSelectedDb().beginTransaction(null);
+		DbProxy db = getSelectedDb();
+		try
+		{
+			db.beginTransaction(null);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
 	}
 
 	/**
@@ -257,7 +328,15 @@ public final class Db
 	 */
 	public static void rollback() throws SQLException
 	{
-		getSelectedDb().rollback();
+		DbProxy db = getSelectedDb();
+		try
+		{
+			db.rollback();
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
 	}
 
 	/**
@@ -275,7 +354,165 @@ public final class Db
 	 */
 	public static void commit() throws SQLException
 	{
-		getSelectedDb().commit();
+		DbProxy db = getSelectedDb();
+		try
+		{
+			db.commit();
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+	}
+
+	/**
+	 * Runs a callback in a transaction, retrying with {@link RetryPolicy#DEFAULT}
+	 * on deadlocks, lock timeouts and serialization failures.
+	 * <pre>
+	 * Integer chips = Db.inTransaction(TransactionIsolation.SERIALIZABLE, new TransactionCallback&lt;Integer&gt;()
+	 * {
+	 *     public Integer run() throws SQLException
+	 *     {
+	 *         Integer chips = Db.queryOne("select chips from players where id = ?", id);
+	 *         Db.update("update players set chips = ? where id = ?", chips + bet, id);
+	 *         return chips + bet;
+	 *     }
+	 * });
+	 * </pre>
+	 *
+	 * @param isolation the isolation level to use, or null for none.
+	 * @param callback the work to run in the transaction.
+	 * @return the result of the callback.
+	 * @throws SQLException if the transaction failed, or kept failing with transient failures.
+	 * @see #inTransaction(TransactionIsolation, RetryPolicy, TransactionCallback)
+	 */
+	public static <T> T inTransaction(TransactionIsolation isolation, TransactionCallback<T> callback) throws SQLException
+	{
+		return inTransaction(isolation, RetryPolicy.DEFAULT, callback);
+	}
+
+	/**
+	 * Runs a callback in a transaction, committing if it returns and rolling back if it throws.
+	 * <p/>
+	 * If the callback or the commit fails with a {@link TransactionFailure}, the transaction is
+	 * rolled back and the callback run again in a new transaction after a backoff, until
+	 * the retry policy runs out of attempts. Other exceptions are thrown immediately.
+	 * <p/>
+	 * If the thread is already in a transaction, the callback runs in a nested transaction
+	 * instead, so that a failing callback only rolls back its own changes. Retries are left
+	 * to the outermost transaction.
+	 * <p/>
+	 * Outcomes and retries are counted in {@link #getTransactionStatistics()}.
+	 *
+	 * @param isolation the isolation level to use, or null for none.
+	 * @param retryPolicy how to retry on transient failures.
+	 * @param callback the work to run in the transaction.
+	 * @return the result of the callback.
+	 * @throws SQLException if the transaction failed, or kept failing with transient failures.
+	 */
+	public static <T> T inTransaction(TransactionIsolation isolation, RetryPolicy retryPolicy,
+	                                  TransactionCallback<T> callback) throws SQLException
+	{
+		DbProxy db = getSelectedDb();
+		if (db.inTransaction()) return inNestedTransaction(db, isolation, callback);
+		int attempt = 1;
+		while (true)
+		{
+			try
+			{
+				// Begin inside the try, so that failing to begin is classified and retried as well.
+				db.beginTransaction(isolation);
+				T result = callback.run();
+				db.commit();
+				s_transactionStatistics.committed();
+				return result;
+			}
+			catch (SQLException e)
+			{
+				rollbackSilently(db);
+				TransactionFailure failure = TransactionFailure.classify(e);
+				if (failure == null || attempt >= retryPolicy.getMaxAttempts())
+				{
+					s_transactionStatistics.failed(failure);
+					throw e;
+				}
+				s_transactionStatistics.retried(failure);
+				try
+				{
+					Thread.sleep(retryPolicy.getBackoff(attempt));
+				}
+				catch (InterruptedException interrupt)
+				{
+					Thread.currentThread().interrupt();
+					s_transactionStatistics.failed(null);
+					throw e;
+				}
+				attempt++;
+			}
+			catch (RuntimeException e)
+			{
+				rollbackSilently(db);
+				s_transactionStatistics.failed(null);
+				throw e;
+			}
+			catch (Error e)
+			{
+				rollbackSilently(db);
+				s_transactionStatistics.failed(null);
+				throw e;
+			}
+		}
+	}
+
+	private static <T> T inNestedTransaction(DbProxy db, TransactionIsolation isolation,
+	                                         TransactionCallback<T> callback) throws SQLException
+	{
+		db.beginTransaction(isolation);
+		try
+		{
+			T result = callback.run();
+			db.commit();
+			return result;
+		}
+		catch (SQLException e)
+		{
+			rollbackSilently(db);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			rollbackSilently(db);
+			throw e;
+		}
+		catch (Error e)
+		{
+			rollbackSilently(db);
+			throw e;
+		}
+	}
+
+	private static void rollbackSilently(DbProxy db)
+	{
+		if (!db.inTransaction()) return;
+		try
+		{
+			db.rollback();
+		}
+		catch (SQLException e)
+		{
+			// The rollback always ends the transaction, and the original error is more relevant.
+		}
+	}
+
+	/**
+	 * Returns the counters for transactions run with
+	 * {@link #inTransaction(TransactionIsolation, RetryPolicy, TransactionCallback)}.
+	 *
+	 * @return the transaction statistics.
+	 */
+	public static TransactionStatistics getTransactionStatistics()
+	{
+		return s_transactionStatistics;
 	}
 
 	/**
@@ -294,6 +531,7 @@ public final class Db
 		{
 			db.shutdown();
 		}
+		s_unregistrations.incrementAndGet();
 	}
 
 
@@ -328,7 +566,15 @@ public final class Db
 	@SuppressWarnings({"RedundantTypeArguments"})
 	public static <T> T queryOne(String query, Object... args) throws SQLException
 	{
-		return getSelectedDb().query(new SingleResultProcessor<T>(), query, args);
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.query(new SingleResultProcessor<T>(), query, args);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
 	}
 
 	/**
@@ -363,7 +609,67 @@ public final class Db
 	 */
 	public static <T> List<T> queryAll(String query, Object... args) throws SQLException
 	{
-		return getSelectedDb().query(new AllResultProcessor<T>(), query, args);
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.query(new AllResultProcessor<T>(), query, args);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+	}
+
+	/**
+	 * Returns the first row of the given query, mapped by a {@link RowMapper}.
+	 *
+	 * @param mapper the mapper to map the row with.
+	 * @param query the query to run.
+	 * @param args the arguments to the query.
+	 * @return the mapped row, or null if the query returned no rows.
+	 * @throws SQLException if the query fails for some reason.
+	 */
+	public static <T> T queryOne(RowMapper<T> mapper, String query, Object... args) throws SQLException
+	{
+		DbProxy db = getSelectedDb();
+		List<T> result;
+		try
+		{
+			result = db.query(new MappingResultProcessor<T>(mapper, 1), query, args);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	/**
+	 * Returns all rows of the given query, each mapped by a {@link RowMapper}.
+	 * <p/>
+	 * This avoids the overhead of {@link #queryAll(String, Object[])}, which reads every
+	 * column as a boxed object into a new list for each row:
+	 * <pre>
+	 * List&lt;long[]&gt; scores = Db.queryAll(RowMappers.longs(0), "select player, score from scores");
+	 * </pre>
+	 *
+	 * @param mapper the mapper to map each row with.
+	 * @param query the query to run.
+	 * @param args the arguments to the query.
+	 * @return a list of the mapped rows.
+	 * @throws SQLException if the query fails for some reason.
+	 */
+	public static <T> List<T> queryAll(RowMapper<T> mapper, String query, Object... args) throws SQLException
+	{
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.query(new MappingResultProcessor<T>(mapper), query, args);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
 	}
 
 	/**
@@ -379,7 +685,109 @@ public final class Db
 	 */
 	public static <T> T query(ResultProcessor<T> processor, String query, Object... args) throws SQLException
 	{
-		return getSelectedDb().query(processor, query, args);
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.query(processor, query, args);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+	}
+
+	/**
+	 * Performs a db query and allows a ResultProcessor work on each row in the
+	 * result set, using {@code options} to control how the result is read.
+	 * <p/>
+	 * This is useful to process very large results in constant memory:
+	 * <pre>
+	 * Db.query(QueryOptions.streaming(1000), processor, "select * from events");
+	 * </pre>
+	 *
+	 * @param options the fetch size and max rows to use.
+	 * @param processor the result processor to use.
+	 * @param query the query to use, with '?' to represent arguments.
+	 * @param args a list of arguments, should always be same number as the '?' in the query.
+	 * @return the result from the ResultProcessor's {@code getResult} method
+	 * @throws SQLException if there was an error performing the query.
+	 * @see QueryOptions
+	 */
+	public static <T> T query(QueryOptions options, ResultProcessor<T> processor, String query, Object... args) throws SQLException
+	{
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.query(options, processor, query, args);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+	}
+
+	/**
+	 * Runs a query and returns a cursor that lazily reads the resulting rows,
+	 * without collecting all rows in memory.
+	 * <p/>
+	 * Rows are read the same way as {@link #queryAll}. The cursor holds a
+	 * connection until it is closed or read to the end, so always close it:
+	 * <pre>
+	 * Cursor&lt;List&gt; cursor = Db.stream("select * from users");
+	 * try
+	 * {
+	 *     for (List row : cursor)
+	 *     {
+	 *         ... handle the row ...
+	 *     }
+	 * }
+	 * finally
+	 * {
+	 *     cursor.close();
+	 * }
+	 * </pre>
+	 *
+	 * @param query the query to run.
+	 * @param args the arguments to the query.
+	 * @return an open cursor over the rows of the query.
+	 * @throws SQLException if the query fails for some reason.
+	 * @see Cursor
+	 */
+	public static <T> Cursor<T> stream(String query, Object... args) throws SQLException
+	{
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.cursor(QueryOptions.DEFAULT, query, args);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+	}
+
+	/**
+	 * Runs a query and returns a cursor that lazily reads the resulting rows,
+	 * using {@code options} to control fetch size and max rows.
+	 *
+	 * @param options the fetch size and max rows to use.
+	 * @param query the query to run.
+	 * @param args the arguments to the query.
+	 * @return an open cursor over the rows of the query.
+	 * @throws SQLException if the query fails for some reason.
+	 * @see #stream(String, Object[])
+	 */
+	public static <T> Cursor<T> stream(QueryOptions options, String query, Object... args) throws SQLException
+	{
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.cursor(options, query, args);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
 	}
 
 	/**
@@ -398,7 +806,15 @@ public final class Db
 	@SuppressWarnings({"RedundantTypeArguments"})
 	public static <T> T insert(String insert, Object... args) throws SQLException
 	{
-		return getSelectedDb().<T>insert(insert, args);
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.<T>insert(insert, args);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
 	}
 
 	/**
@@ -411,7 +827,206 @@ public final class Db
 	 */
 	public static int update(String update, Object... args) throws SQLException
 	{
-		return getSelectedDb().update(update, args);
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.update(update, args);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+	}
+
+	/**
+	 * Runs a db SQL update whose result isn't needed right away.
+	 * <p/>
+	 * Inside a transaction the update may be queued and sent together with other queued
+	 * updates in a single batch, before the next query or statement, or at commit:
+	 * <pre>
+	 * Db.beginTransaction();
+	 * for (Player player : players)
+	 * {
+	 *     Db.updateDeferred("update players set chips = ? where id = ?", player.getChips(), player.getId());
+	 * }
+	 * // All updates are sent in one batch.
+	 * Db.commit();
+	 * </pre>
+	 * Any error is thrown at the latest from {@link #commit()}.
+	 *
+	 * @param update the sql update statement.
+	 * @param args the arguments to the sql statement.
+	 * @throws SQLException if the update failed, or an earlier queued update failed.
+	 * @see DbProxy#updateDeferred(String, Object[])
+	 */
+	public static void updateDeferred(String update, Object... args) throws SQLException
+	{
+		DbProxy db = getSelectedDb();
+		try
+		{
+			db.updateDeferred(update, args);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+	}
+
+	/**
+	 * Runs a db SQL update once for each row of arguments, sending the
+	 * rows to the database in JDBC batches.
+	 * <p/>
+	 * Works both inside and outside of a transaction.
+	 * <pre>
+	 * List&lt;Object[]&gt; rows = new ArrayList&lt;Object[]&gt;();
+	 * rows.add(new Object[] { "Sune", 1 });
+	 * rows.add(new Object[] { "Gurgi", 2 });
+	 * Db.updateBatch("update users set name = ? where key = ?", rows);
+	 * </pre>
+	 *
+	 * @param update the sql update statement.
+	 * @param rows the arguments for each execution of the update.
+	 * @return the number of rows changed for each row of arguments.
+	 * @throws SQLException if the update failed.
+	 * @see DbProxy#updateBatch(String, java.util.List)
+	 */
+	public static int[] updateBatch(String update, List<Object[]> rows) throws SQLException
+	{
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.updateBatch(update, rows);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+	}
+
+	/**
+	 * Runs an insert once for each row of arguments, sending the
+	 * rows to the database in JDBC batches, and returns the keys generated.
+	 *
+	 * @param insert the insert to run.
+	 * @param rows the arguments for each execution of the insert.
+	 * @return the keys generated, note that some drivers only return the
+	 * key of the last row in each batch.
+	 * @throws SQLException if the insert failed.
+	 * @see DbProxy#insertBatch(String, java.util.List)
+	 */
+	@SuppressWarnings({"RedundantTypeArguments"})
+	public static <T> List<T> insertBatch(String insert, List<Object[]> rows) throws SQLException
+	{
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.<T>insertBatch(insert, rows);
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+	}
+
+	/**
+	 * Returns the first resulting row of a query with named parameters, see {@link #queryOne(String, Object[])}.
+	 * <pre>
+	 * String name = Db.queryOneNamed("select name from players where id = :id", params);
+	 * </pre>
+	 *
+	 * @param query the query to run, with named parameters on the form {@code :name}.
+	 * @param params the values of the parameters, by name.
+	 * @return a list of values with the values in the columns, unless there is a single value -
+	 * in this case that value is returned.
+	 * @throws SQLException if the query fails for some reason.
+	 * @throws IllegalArgumentException if a parameter has no value.
+	 * @see NamedQuery
+	 */
+	public static <T> T queryOneNamed(String query, Map<String, ?> params) throws SQLException
+	{
+		NamedQuery namedQuery = NamedQuery.parse(query);
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.query(new SingleResultProcessor<T>(), namedQuery.getSql(), namedQuery.bind(params));
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+	}
+
+	/**
+	 * Returns all rows of a query with named parameters, see {@link #queryAll(String, Object[])}.
+	 *
+	 * @param query the query to run, with named parameters on the form {@code :name}.
+	 * @param params the values of the parameters, by name.
+	 * @return a list of rows
+	 * @throws SQLException if the query fails for some reason.
+	 * @throws IllegalArgumentException if a parameter has no value.
+	 * @see NamedQuery
+	 */
+	public static <T> List<T> queryAllNamed(String query, Map<String, ?> params) throws SQLException
+	{
+		NamedQuery namedQuery = NamedQuery.parse(query);
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.query(new AllResultProcessor<T>(), namedQuery.getSql(), namedQuery.bind(params));
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+	}
+
+	/**
+	 * Performs an insert with named parameters, see {@link #insert(String, Object[])}.
+	 *
+	 * @param insert the insert to run, with named parameters on the form {@code :name}.
+	 * @param params the values of the parameters, by name.
+	 * @return the key generated if a single key, a list (List) of keys if the number of keys is != 1.
+	 * @throws SQLException if the insert fails for some reason.
+	 * @throws IllegalArgumentException if a parameter has no value.
+	 * @see NamedQuery
+	 */
+	@SuppressWarnings({"RedundantTypeArguments"})
+	public static <T> T insertNamed(String insert, Map<String, ?> params) throws SQLException
+	{
+		NamedQuery namedQuery = NamedQuery.parse(insert);
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.<T>insert(namedQuery.getSql(), namedQuery.bind(params));
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
+	}
+
+	/**
+	 * Runs a db SQL update with named parameters, see {@link #update(String, Object[])}.
+	 *
+	 * @param update the sql update statement, with named parameters on the form {@code :name}.
+	 * @param params the values of the parameters, by name.
+	 * @return the number of rows in the update.
+	 * @throws SQLException if the update failed.
+	 * @throws IllegalArgumentException if a parameter has no value.
+	 * @see NamedQuery
+	 */
+	public static int updateNamed(String update, Map<String, ?> params) throws SQLException
+	{
+		NamedQuery namedQuery = NamedQuery.parse(update);
+		DbProxy db = getSelectedDb();
+		try
+		{
+			return db.update(namedQuery.getSql(), namedQuery.bind(params));
+		}
+		catch (SQLException e)
+		{
+			throw deselectIfInvalid(db, e);
+		}
 	}
 
 	/**
@@ -424,10 +1039,11 @@ public final class Db
 	 */
 	public static void select(String key)
 	{
+		int unregistrations = s_unregistrations.get();
 		DbProxy db = getDb(key);
 		if (db == null) throw new IllegalArgumentException("Tried to select unknown database '" + key + "'.");
 		//db.close();
-		s_activeDb.set(db);
+		s_activeDb.set(new Selection(db, unregistrations));
 	}
 
 	/**
@@ -439,4 +1055,29 @@ public final class Db
 	{
 		return getSelectedDb().inTransaction();
 	}
+
+	/**
+	 * The db selected by a thread, and the number of unregistrations when it was last checked.
+	 */
+	private static class Selection
+	{
+		private final DbProxy m_db;
+		private final int m_unregistrations;
+
+		private Selection(DbProxy db, int unregistrations)
+		{
+			m_db = db;
+			m_unregistrations = unregistrations;
+		}
+
+		public DbProxy getDb()
+		{
+			return m_db;
+		}
+
+		public int getUnregistrations()
+		{
+			return m_unregistrations;
+		}
+	}
 }
@@ -3,46 +3,90 @@ package xtras.sql;
 import xtras.lang.ObjectExtras;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /** @author Christoffer Lerno */
 class DbConnection
 {
-	private Connection m_connection;
+	private PooledConnection m_connection;
 	private DbPool m_pool;
 	private boolean m_hasErrors;
+	private long m_lastPoolWait;
+	private final List<Cursor<?>> m_transactionCursors;
+	private final List<DeferredUpdate> m_deferred;
+	private final List<Savepoint> m_savepoints;
 
 	public DbConnection()
 	{
 		m_pool = null;
 		m_connection = null;
+		m_transactionCursors = new ArrayList<Cursor<?>>();
+		m_deferred = new ArrayList<DeferredUpdate>();
+		m_savepoints = new ArrayList<Savepoint>();
 	}
 
-	private Connection newConnection(DbPool pool) throws SQLException
+	private PooledConnection newConnection(DbPool pool) throws SQLException
 	{
 		if (m_connection != null)
 		{
 			if (!ObjectExtras.equals(m_pool, pool))
 			{
-				try
-				{
-					rollback();
-				}
-				catch (Exception e)
-				{
-					// Ignore the rollback result since our original error
-					// is using another connection.
-				}
+				// Ignore the rollback result since our original error
+				// is using another connection.
+				releaseTransaction();
 				throw new SQLException("Tried to mix multiple connections in single transaction.");
 			}
+			m_lastPoolWait = 0;
+			flushDeferred();
 			return m_connection;
 		}
-		else
+		PooledConnection c = acquire(pool);
+		try
+		{
+			// Settings are left in place by the last user, so e.g. auto-commit may still be off.
+			c.resetSession();
+			return c;
+		}
+		catch (SQLException e)
 		{
-			m_hasErrors = false;
-			return pool.acquire();
+			m_hasErrors = true;
+			pool.release(c, true);
+			throw e;
 		}
 	}
 
+	/**
+	 * Acquires a connection from the pool, with the session settings left by its last user.
+	 *
+	 * @param pool the pool to acquire the connection from.
+	 * @return the connection.
+	 * @throws SQLException if no connection could be acquired.
+	 */
+	private PooledConnection acquire(DbPool pool) throws SQLException
+	{
+		m_hasErrors = false;
+		long startTime = System.nanoTime();
+		try
+		{
+			return pool.acquirePooled();
+		}
+		finally
+		{
+			m_lastPoolWait = System.nanoTime() - startTime;
+		}
+	}
+
+	/**
+	 * Returns the time the last call spent acquiring a connection from the pool.
+	 *
+	 * @return the time in ns, 0 if the last call used the connection of a transaction.
+	 */
+	public long getLastPoolWait()
+	{
+		return m_lastPoolWait;
+	}
+
 	/**
 	 * Runs a query using a ResultProcessor to work on the ResultSet.
 	 *
@@ -56,13 +100,33 @@ class DbConnection
 	 * @throws SQLException if there was an error performing the query.
 	 */
 	public <T> T query(DbPool pool, ResultProcessor<T> processor, String query, Object... args) throws SQLException
+	{
+		return query(pool, QueryOptions.DEFAULT, processor, query, args);
+	}
+
+	/**
+	 * Runs a query using a ResultProcessor to work on the ResultSet, using
+	 * the given options for fetch size and max rows.
+	 *
+	 * @param pool the pool to get connections from (no new connection will be used
+	 * if currently in a transaction).
+	 * @param options the options for reading the result.
+	 * @param processor a ResultProcessor to work on the ResultSet.
+	 * @param query the SQL query to execute.
+	 * @param args the arguments to insert at each '?' in the query string.
+	 * @return the result as generated by {@link ResultProcessor#getResult} after
+	 * it has worked on the result set.
+	 * @throws SQLException if there was an error performing the query.
+	 */
+	public <T> T query(DbPool pool, QueryOptions options, ResultProcessor<T> processor, String query, Object... args) throws SQLException
 	{
 		PreparedStatement statement = null;
 		ResultSet resultSet = null;
-		Connection connection = newConnection(pool);
+		PooledConnection connection = newConnection(pool);
 		try
 		{
 			statement = preparedStatement(connection, query, args);
+			if (options.isCustomized()) applyOptions(statement, options);
 			resultSet = statement.executeQuery();
 			while (resultSet.next())
 			{
@@ -77,9 +141,103 @@ class DbConnection
 		}
 		finally
 		{
+			SQL.closeSilently(resultSet);
+			if (options.isCustomized()) resetOptions(statement);
+			closeStatement(connection, query, statement);
+			close(pool, connection);
+		}
+	}
+
+	/**
+	 * Runs a query and returns a cursor that reads the rows lazily.
+	 * <p/>
+	 * Outside of a transaction, the cursor holds a connection from the pool until
+	 * it is closed. Inside a transaction, the cursor uses the transaction's connection
+	 * and is closed when the transaction ends.
+	 *
+	 * @param pool the pool to get connections from (no new connection will be used
+	 * if currently in a transaction).
+	 * @param options the options for reading the result.
+	 * @param query the SQL query to execute.
+	 * @param args the arguments to insert at each '?' in the query string.
+	 * @return an open cursor positioned before the first row.
+	 * @throws SQLException if there was an error performing the query.
+	 */
+	@SuppressWarnings({"JDBCResourceOpenedButNotSafelyClosed"})
+	public <T> Cursor<T> cursor(final DbPool pool, QueryOptions options, String query, Object... args) throws SQLException
+	{
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		final PooledConnection connection = newConnection(pool);
+		try
+		{
+			// The statement is not cached, as the cursor may outlive our use of the connection.
+			statement = connection.getConnection().prepareStatement(query);
+			setParameters(statement, args);
+			if (options.isCustomized()) applyOptions(statement, options);
+			resultSet = statement.executeQuery();
+		}
+		catch (SQLException e)
+		{
+			m_hasErrors = true;
 			SQL.closeSilently(resultSet);
 			SQL.closeSilently(statement);
 			close(pool, connection);
+			throw e;
+		}
+		if (connection == m_connection)
+		{
+			Cursor<T> cursor = new Cursor<T>(resultSet, statement, new Cursor.Releaser()
+			{
+				public void release(Cursor<?> cursor, boolean hadErrors)
+				{
+					if (hadErrors) m_hasErrors = true;
+					m_transactionCursors.remove(cursor);
+				}
+			});
+			m_transactionCursors.add(cursor);
+			return cursor;
+		}
+		return new Cursor<T>(resultSet, statement, new Cursor.Releaser()
+		{
+			public void release(Cursor<?> cursor, boolean hadErrors)
+			{
+				pool.release(connection, hadErrors);
+			}
+		});
+	}
+
+	/**
+	 * Sets fetch size and max rows on a statement.
+	 *
+	 * @param statement the statement to configure.
+	 * @param options the options to apply.
+	 * @throws SQLException if the driver rejected the options.
+	 */
+	private static void applyOptions(PreparedStatement statement, QueryOptions options) throws SQLException
+	{
+		statement.setFetchSize(options.getFetchSize());
+		statement.setMaxRows(options.getMaxRows());
+	}
+
+	/**
+	 * Restores fetch size and max rows to the defaults, so that the statement
+	 * can be returned to the statement cache.
+	 *
+	 * @param statement the statement to reset, may be null.
+	 */
+	private void resetOptions(PreparedStatement statement)
+	{
+		if (statement == null) return;
+		try
+		{
+			statement.setFetchSize(0);
+			statement.setMaxRows(0);
+		}
+		catch (SQLException e)
+		{
+			// Make sure the statement isn't cached.
+			m_hasErrors = true;
 		}
 	}
 
@@ -90,7 +248,7 @@ class DbConnection
 	 * @param pool the pool to return the connection to.
 	 * @param connection the connection to return.
 	 */
-	private void close(DbPool pool, Connection connection)
+	private void close(DbPool pool, PooledConnection connection)
 	{
 		if (ObjectExtras.equals(m_connection, connection)) return;
 		pool.release(connection, m_hasErrors);
@@ -98,29 +256,31 @@ class DbConnection
 
 	/**
 	 * Begin a database transaction with the given transaction isolation.
+	 * <p/>
+	 * If already in a transaction, this begins a nested transaction by setting a savepoint
+	 * on the connection of the transaction. Commit and rollback then only end the nested
+	 * transaction, and a rollback only discards the changes made since the savepoint.
+	 * The isolation level of a nested transaction is ignored.
 	 *
 	 * @param pool the pool to acquire connections from.
 	 * @param transactionIsolation the isolation level to use, or null for none.
 	 * @throws SQLException if there was any issue starting the transaction.
 	 * <em>Note that we are guaranteed that there is no open transaction after
-	 * the exception is thrown.</em>
+	 * the exception is thrown, this includes any outer transaction if starting a nested
+	 * transaction failed.</em>
 	 */
 	public void beginTransaction(DbPool pool, TransactionIsolation transactionIsolation) throws SQLException
 	{
 		if (m_connection != null)
 		{
-			releaseTransaction();
-			throw new SQLException("Tried to start transaction while already in transaction.");
+			beginNestedTransaction(pool);
+			return;
 		}
-		Connection c = null;
+		PooledConnection c = null;
 		try
 		{
-			c = newConnection(pool);
-			c.setAutoCommit(false);
-			if (transactionIsolation != null)
-			{
-				c.setTransactionIsolation(transactionIsolation.getId());
-			}
+			c = acquire(pool);
+			beginSession(c, transactionIsolation);
 			m_connection = c;
 			m_pool = pool;
 		}
@@ -132,11 +292,74 @@ class DbConnection
 		}
 	}
 
+	/**
+	 * Applies the session settings of a transaction, which only differ from the defaults
+	 * of the connection in auto-commit and isolation. Settings already in place, such as
+	 * those left by a previous transaction, are not sent to the driver again.
+	 * <p/>
+	 * If the driver could not report the defaults, the settings are sent unconditionally.
+	 *
+	 * @param c the connection to start the transaction on.
+	 * @param transactionIsolation the isolation level to use, or null for the default.
+	 * @throws SQLException if the settings could not be applied.
+	 */
+	private static void beginSession(PooledConnection c, TransactionIsolation transactionIsolation) throws SQLException
+	{
+		SessionState session = c.getDefaultSession();
+		if (session == null)
+		{
+			c.getConnection().setAutoCommit(false);
+			if (transactionIsolation != null)
+			{
+				c.getConnection().setTransactionIsolation(transactionIsolation.getId());
+			}
+			return;
+		}
+		session = session.withAutoCommit(false);
+		c.applySession(transactionIsolation == null ? session : session.withIsolation(transactionIsolation.getId()));
+	}
+
+	/**
+	 * Begins a nested transaction by setting a savepoint.
+	 * <p/>
+	 * Deferred updates are sent first, so that they are not undone by a rollback
+	 * of the nested transaction.
+	 *
+	 * @param pool the pool of the current transaction.
+	 * @throws SQLException if the savepoint could not be set, in which case the
+	 * entire transaction has been rolled back.
+	 */
+	private void beginNestedTransaction(DbPool pool) throws SQLException
+	{
+		try
+		{
+			newConnection(pool);
+			m_savepoints.add(m_connection.getConnection().setSavepoint());
+		}
+		catch (SQLException e)
+		{
+			m_hasErrors = true;
+			releaseTransaction();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of transactions currently open.
+	 *
+	 * @return 0 if not in a transaction, otherwise 1 plus the number of nested transactions.
+	 */
+	public int getTransactionDepth()
+	{
+		return m_connection == null ? 0 : m_savepoints.size() + 1;
+	}
+
 	/**
 	 * Attempts to perform a rollback on the current transaction.
 	 * <p>
 	 * This will end the transaction and discard any updates or inserts made
-	 * in the transaction.
+	 * in the transaction. In a nested transaction, this rolls back to the savepoint
+	 * of the nested transaction, and the outer transaction continues.
 	 *
 	 * @throws SQLException if there was an error doing rollback.
 	 * <em>Note that we are guaranteed that there is no open transaction after
@@ -144,10 +367,27 @@ class DbConnection
 	 */
 	public void rollback() throws SQLException
 	{
+		if (!m_savepoints.isEmpty())
+		{
+			Savepoint savepoint = m_savepoints.remove(m_savepoints.size() - 1);
+			m_deferred.clear();
+			try
+			{
+				m_connection.getConnection().rollback(savepoint);
+				return;
+			}
+			catch (SQLException e)
+			{
+				m_hasErrors = true;
+				releaseTransaction();
+				throw e;
+			}
+		}
 		try
 		{
 			if (m_connection == null) throw new SQLException("Tried to rollback outside of transaction.");
-			m_connection.rollback();
+			closeTransactionCursors();
+			m_connection.getConnection().rollback();
 		}
 		catch (SQLException e)
 		{
@@ -161,6 +401,22 @@ class DbConnection
 
 	}
 
+	/**
+	 * Closes any cursors still open on the connection of the current transaction.
+	 * <p/>
+	 * This must be done before ending the transaction, as some drivers
+	 * refuse to commit or rollback with open statements.
+	 */
+	private void closeTransactionCursors()
+	{
+		if (m_transactionCursors.isEmpty()) return;
+		for (Cursor<?> cursor : new ArrayList<Cursor<?>>(m_transactionCursors))
+		{
+			cursor.close();
+		}
+		m_transactionCursors.clear();
+	}
+
 	/**
 	 * Releases the connection of the current transaction.
 	 * <p/>
@@ -169,17 +425,20 @@ class DbConnection
 	 */
 	private void releaseTransaction()
 	{
+		m_deferred.clear();
+		m_savepoints.clear();
 		if (m_connection != null)
 		{
+			closeTransactionCursors();
 			try
 			{
-				m_connection.rollback();
+				m_connection.getConnection().rollback();
 			}
 			catch (Exception e)
 			{
 				m_hasErrors = true;
 			}
-			Connection c = m_connection;
+			PooledConnection c = m_connection;
 			DbPool pool = m_pool;
 			m_connection = null;
 			m_pool = null;
@@ -192,6 +451,7 @@ class DbConnection
 	 * Creates a prepared statement on the given connection, and loads
 	 * the parameters with the values given in {@code args}.
 	 * <p/>
+	 * The statement is taken from the connection's statement cache if it has one.
 	 * If there are any errors, the statement will immediately be
 	 * closed (if opened), and {@link #hasErrors} will return true.
 	 *
@@ -203,17 +463,16 @@ class DbConnection
 	 * @see java.sql.PreparedStatement for an explanation of how parameters work.
 	 */
 	@SuppressWarnings({"JDBCResourceOpenedButNotSafelyClosed"})
-	private PreparedStatement preparedStatement(Connection c, String query, Object... args) throws SQLException
+	private PreparedStatement preparedStatement(PooledConnection c, String query, Object... args) throws SQLException
 	{
 		PreparedStatement statement = null;
 		try
 		{
-			statement = c.prepareStatement(query);
-			int index = 0;
-			for (Object arg : args)
-			{
-				statement.setObject(++index, arg);
-			}
+			StatementCache cache = c.getStatementCache();
+			statement = cache == null
+			            ? c.getConnection().prepareStatement(query)
+			            : cache.prepare(c.getConnection(), query);
+			setParameters(statement, args);
 			return statement;
 		}
 		catch (SQLException e)
@@ -224,6 +483,109 @@ class DbConnection
 		}
 	}
 
+	/**
+	 * Loads the parameters of a statement with the values given in {@code args}.
+	 * <p/>
+	 * Each value is set with the setter matching its type, see {@link SQL#setParameter}.
+	 *
+	 * @param statement the statement to set the parameters on.
+	 * @param args the arguments to insert in the parameter slots.
+	 * @throws SQLException if there was an error setting a parameter.
+	 */
+	private static void setParameters(PreparedStatement statement, Object... args) throws SQLException
+	{
+		int index = 0;
+		for (Object arg : args)
+		{
+			SQL.setParameter(statement, ++index, arg);
+		}
+	}
+
+	/**
+	 * Closes a statement created by {@link #preparedStatement}, or returns
+	 * it to the statement cache of the connection.
+	 * <p/>
+	 * Statements are never cached after an error.
+	 *
+	 * @param c the connection the statement was created on.
+	 * @param query the SQL query of the statement.
+	 * @param statement the statement to close, may be null.
+	 */
+	private void closeStatement(PooledConnection c, String query, PreparedStatement statement)
+	{
+		if (statement == null) return;
+		StatementCache cache = c.getStatementCache();
+		if (cache == null || m_hasErrors)
+		{
+			SQL.closeSilently(statement);
+			return;
+		}
+		cache.release(query, statement);
+	}
+
+	/**
+	 * Runs an SQL update whose result isn't needed right away.
+	 * <p/>
+	 * Inside a transaction the update is queued, and the queued updates are sent as
+	 * JDBC batches before any other statement on the connection and at commit.
+	 * Consecutive updates with the same sql share a batch. A rollback discards
+	 * any queued updates. Outside of a transaction the update is run immediately.
+	 *
+	 * @param pool the pool to get connections from.
+	 * @param batchSize the number of queued updates that causes them to be sent.
+	 * @param update the sql update query, parameterized with '?'.
+	 * @param args the arguments to insert in the parameter slots.
+	 * @throws SQLException if there was an error executing the update, or any queued update.
+	 */
+	public void deferUpdate(DbPool pool, int batchSize, String update, Object... args) throws SQLException
+	{
+		if (m_connection == null)
+		{
+			update(pool, update, args);
+			return;
+		}
+		if (!ObjectExtras.equals(m_pool, pool)) newConnection(pool);
+		m_deferred.add(new DeferredUpdate(update, args));
+		if (m_deferred.size() >= batchSize) flushDeferred();
+	}
+
+	/**
+	 * Sends all queued updates to the database.
+	 * <p/>
+	 * The queue is emptied even if a batch fails.
+	 *
+	 * @throws SQLException if there was an error executing any of the updates.
+	 */
+	private void flushDeferred() throws SQLException
+	{
+		if (m_deferred.isEmpty()) return;
+		List<DeferredUpdate> deferred = new ArrayList<DeferredUpdate>(m_deferred);
+		m_deferred.clear();
+		int start = 0;
+		while (start < deferred.size())
+		{
+			String sql = deferred.get(start).getSql();
+			List<Object[]> rows = new ArrayList<Object[]>();
+			int end = start;
+			while (end < deferred.size() && deferred.get(end).getSql().equals(sql))
+			{
+				rows.add(deferred.get(end++).getArgs());
+			}
+			executeBatch(m_pool, sql, rows, rows.size(), null);
+			start = end;
+		}
+	}
+
+	/**
+	 * Returns the number of updates queued in the current transaction.
+	 *
+	 * @return the number of queued updates.
+	 */
+	public int getDeferredCount()
+	{
+		return m_deferred.size();
+	}
+
 	/**
 	 * Executes an SQL update query and returns the number of rows changed.
 	 *
@@ -237,8 +599,7 @@ class DbConnection
 	public int update(DbPool pool, String update, Object... args) throws SQLException
 	{
 		PreparedStatement statement = null;
-		ResultSet resultSet = null;
-		Connection connection = newConnection(pool);
+		PooledConnection connection = newConnection(pool);
 		try
 		{
 			statement = preparedStatement(connection, update, args);
@@ -251,8 +612,7 @@ class DbConnection
 		}
 		finally
 		{
-			SQL.closeSilently(resultSet);
-			SQL.closeSilently(statement);
+			closeStatement(connection, update, statement);
 			close(pool, connection);
 		}
 	}
@@ -261,7 +621,8 @@ class DbConnection
 	 * Attempts to perform a commit on the current transaction.
 	 * <p>
 	 * This will end the transaction and apply all updates or inserts made
-	 * in the transaction.
+	 * in the transaction. In a nested transaction, this releases the savepoint of
+	 * the nested transaction, and its changes are committed with the outer transaction.
 	 *
 	 * @throws SQLException if there was an error doing the commit.
 	 * <em>Note that we are guaranteed that there is no open transaction after
@@ -270,13 +631,29 @@ class DbConnection
 	 */
 	public void commit() throws SQLException
 	{
+		if (!m_savepoints.isEmpty())
+		{
+			Savepoint savepoint = m_savepoints.remove(m_savepoints.size() - 1);
+			try
+			{
+				m_connection.getConnection().releaseSavepoint(savepoint);
+			}
+			catch (SQLException e)
+			{
+				// Not all drivers support releasing savepoints, they are
+				// released anyway when the outer transaction ends.
+			}
+			return;
+		}
 		try
 		{
 			if (m_connection == null)
 			{
 				throw new SQLException("Tried to commit transaction outside of transaction.");
 			}
-			m_connection.commit();
+			flushDeferred();
+			closeTransactionCursors();
+			m_connection.getConnection().commit();
 		}
 		catch (SQLException e)
 		{
@@ -318,7 +695,7 @@ class DbConnection
 	{
 		PreparedStatement statement = null;
 		ResultSet resultSet = null;
-		Connection connection = newConnection(pool);
+		PooledConnection connection = newConnection(pool);
 		try
 		{
 			statement = preparedStatement(connection, insert, args);
@@ -334,15 +711,157 @@ class DbConnection
 		finally
 		{
 			SQL.closeSilently(resultSet);
+			closeStatement(connection, insert, statement);
+			close(pool, connection);
+		}
+	}
+
+	/**
+	 * Executes an SQL update once for every row of arguments, sending the rows to
+	 * the database in batches of at most {@code batchSize} rows.
+	 * <p/>
+	 * Outside of a transaction, each batch is committed according to
+	 * the driver's auto-commit behaviour.
+	 *
+	 * @param pool the pool to get connections from.
+	 * @param update the sql update query, parameterized with '?'.
+	 * @param rows the arguments for each execution of the update.
+	 * @param batchSize the maximum number of rows to send in a single batch.
+	 * @return the update count for each row, as returned by {@link Statement#executeBatch()}.
+	 * @throws SQLException if there was an error executing the update.
+	 */
+	public int[] updateBatch(DbPool pool, String update, List<Object[]> rows, int batchSize) throws SQLException
+	{
+		return executeBatch(pool, update, rows, batchSize, null);
+	}
+
+	/**
+	 * Executes an SQL insert once for every row of arguments, sending the rows to
+	 * the database in batches of at most {@code batchSize} rows,
+	 * and returns the keys generated.
+	 * <p/>
+	 * Note that drivers differ in what keys they return for a batch, some
+	 * will only return the key generated for the last row of each batch.
+	 *
+	 * @param pool the pool to get connections from.
+	 * @param insert the sql insert query, parameterized with '?'.
+	 * @param rows the arguments for each execution of the insert.
+	 * @param batchSize the maximum number of rows to send in a single batch.
+	 * @return a list of the keys generated by the inserts.
+	 * @throws SQLException if there was an error executing the insert.
+	 */
+	public List<Object> insertBatch(DbPool pool, String insert, List<Object[]> rows, int batchSize) throws SQLException
+	{
+		List<Object> keys = new ArrayList<Object>(rows.size());
+		executeBatch(pool, insert, rows, batchSize, keys);
+		return keys;
+	}
+
+	/**
+	 * Executes a batch update.
+	 * <p/>
+	 * Batch statements are never cached, as drivers differ in how well they
+	 * handle reuse after {@link java.sql.Statement#executeBatch()}.
+	 *
+	 * @param pool the pool to get connections from.
+	 * @param sql the sql query, parameterized with '?'.
+	 * @param rows the arguments for each execution of the query.
+	 * @param batchSize the maximum number of rows to send in a single batch.
+	 * @param keys a list to add generated keys to, or null if keys should not be read.
+	 * @return the update count for each row.
+	 * @throws SQLException if there was an error executing the batch.
+	 */
+	@SuppressWarnings({"JDBCResourceOpenedButNotSafelyClosed"})
+	private int[] executeBatch(DbPool pool, String sql, List<Object[]> rows, int batchSize, List<Object> keys) throws SQLException
+	{
+		if (batchSize < 1) throw new IllegalArgumentException("Batch size must be at least 1.");
+		int[] updateCounts = new int[rows.size()];
+		if (rows.isEmpty()) return updateCounts;
+		PreparedStatement statement = null;
+		PooledConnection connection = newConnection(pool);
+		try
+		{
+			statement = connection.getConnection().prepareStatement(sql);
+			int executed = 0;
+			int batched = 0;
+			for (Object[] row : rows)
+			{
+				setParameters(statement, row);
+				statement.addBatch();
+				if (++batched == batchSize || executed + batched == updateCounts.length)
+				{
+					int[] result = statement.executeBatch();
+					System.arraycopy(result, 0, updateCounts, executed, Math.min(result.length, batched));
+					executed += batched;
+					batched = 0;
+					if (keys != null) readKeys(statement, keys);
+				}
+			}
+			return updateCounts;
+		}
+		catch (SQLException e)
+		{
+			m_hasErrors = true;
+			throw e;
+		}
+		finally
+		{
 			SQL.closeSilently(statement);
 			close(pool, connection);
 		}
 	}
 
+	/**
+	 * Adds the generated keys of a statement to a list.
+	 *
+	 * @param statement the statement that was executed.
+	 * @param keys the list to add the keys to.
+	 * @throws SQLException if there was an error reading the keys.
+	 */
+	private static void readKeys(PreparedStatement statement, List<Object> keys) throws SQLException
+	{
+		ResultSet resultSet = null;
+		try
+		{
+			resultSet = statement.getGeneratedKeys();
+			while (resultSet.next())
+			{
+				keys.add(SQL.readResultSet(resultSet));
+			}
+		}
+		finally
+		{
+			SQL.closeSilently(resultSet);
+		}
+	}
+
 	public boolean isInTransaction()
 	{
 		return m_connection != null;
 	}
 
-}
+	/**
+	 * An update queued until the next statement or commit.
+	 */
+	private static class DeferredUpdate
+	{
+		private final String m_sql;
+		private final Object[] m_args;
+
+		private DeferredUpdate(String sql, Object[] args)
+		{
+			m_sql = sql;
+			m_args = args;
+		}
+
+		public String getSql()
+		{
+			return m_sql;
+		}
 
+		public Object[] getArgs()
+		{
+			return m_args;
+		}
+	}
+}
@@ -1,29 +1,106 @@
 package xtras.sql;
 
 import xtras.time.Time;
-import xtras.util.Tuple;
 
+import java.lang.ref.WeakReference;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A DbPool implementation, which lazily allocates a number of
  * db connections up to its pool size.
+ * <p/>
+ * The pool does not use any global lock. Free connections are kept
+ * in a concurrent deque, and a connection released while other threads
+ * are waiting is handed directly to the longest waiting thread through
+ * a fair hand-off queue. Connections are created outside of any lock, so
+ * a slow connect will not block threads acquiring or releasing other connections.
+ * <p/>
+ * Setting a minimum number of idle connections with {@link #setMinIdle(int)} starts
+ * a background thread which opens connections ahead of demand, and keeps
+ * the pool topped up as connections are acquired. The same thread closes connections
+ * that have been idle or open for too long ({@link #setIdleTimeout(long)},
+ * {@link #setMaxLifetime(long)}), and validates idle connections
+ * ({@link #setKeepAliveInterval(long)}), so that broken connections are
+ * found before they are handed out.
+ * <p/>
+ * With thread affinity enabled ({@link #setThreadAffinity(boolean)}) a thread will
+ * get back the connection it last released if nobody else has taken it since,
+ * without touching the free list.
+ * <p/>
+ * Waiting threads park through {@code java.util.concurrent} rather than
+ * {@code synchronized} and {@code wait()}, so the pool may be used from
+ * a large number of lightweight threads without pinning their carrier threads
+ * while they wait for a connection.
  *
  * @author Christoffer Lerno
  */
 public class DbPool
 {
-	private ArrayList<Tuple<Connection, Long>> m_freeConnections;
-	private ArrayList<Connection> m_busyConnections;
+	/**
+	 * Marker handed to waiting threads to make them retry, used when capacity
+	 * is freed up or the pool is shut down.
+	 */
+	private final static PooledConnection WAKE_UP = new PooledConnection(null, PooledConnection.REMOVED);
+
+	/**
+	 * Marker set by a waiting thread that gave up waiting, so that no connection is handed to it.
+	 */
+	private final static PooledConnection CANCELLED = new PooledConnection(null, PooledConnection.REMOVED);
+
+	/**
+	 * The longest time the housekeeper thread sleeps between rounds of checking
+	 * the number of idle connections and retiring old connections.
+	 */
+	private final static long HOUSEKEEPING_INTERVAL = Time.ONE_SECOND;
+
+	/**
+	 * The largest fraction of the maximum lifetime that is randomly subtracted
+	 * from the lifetime of each connection.
+	 */
+	private final static double MAX_LIFETIME_JITTER = 0.025;
+
+
+	private final ConcurrentHashMap<Connection, PooledConnection> m_connections;
+	private final ConcurrentLinkedDeque<PooledConnection> m_freeConnections;
+	private final ConcurrentLinkedQueue<Waiter> m_handOff;
+	private final AtomicInteger m_size;
+	private final AtomicInteger m_waiters;
 	private final String m_url;
-	private long m_acquireTimeout;
-	private int m_poolSize;
+	private volatile long m_acquireTimeout;
+	private final int m_poolSize;
 	private String m_username;
 	private String m_password;
-	private volatile boolean m_shutdown;
+	private final AtomicBoolean m_shutdown;
+	private final ReentrantLock m_housekeeperLock = new ReentrantLock();
+	private volatile DbPoolListener m_listener;
+	private final AtomicBoolean m_fillRequested;
+	private volatile int m_minIdle;
+	private volatile long m_idleTimeout;
+	private volatile long m_maxLifetime;
+	private volatile long m_keepAliveInterval;
+	private volatile ValidationPolicy m_validationPolicy;
+	private volatile boolean m_asyncValidation;
+	private final ConcurrentLinkedQueue<PooledConnection> m_quarantine;
+	private volatile Thread m_housekeeper;
+	private volatile boolean m_threadAffinity;
+	private volatile int m_statementCacheSize;
+	private final AtomicLong m_retiredStatementCacheHits;
+	private final AtomicLong m_retiredStatementCacheMisses;
+	// Weak, so that connections removed from the pool are not kept reachable by every thread that used them.
+	private final ThreadLocal<WeakReference<PooledConnection>> m_lastReleased;
 
 	/**
 	 * Create a db pool for the given db url and credentials.
@@ -38,18 +115,366 @@ public class DbPool
 	public DbPool(String url, String username, String password, int maxPoolSize)
 	{
 		m_url = url;
-		m_freeConnections = new ArrayList<Tuple<Connection, Long>>(maxPoolSize);
-		m_busyConnections = new ArrayList<Connection>(maxPoolSize);
+		m_connections = new ConcurrentHashMap<Connection, PooledConnection>(maxPoolSize);
+		m_freeConnections = new ConcurrentLinkedDeque<PooledConnection>();
+		m_handOff = new ConcurrentLinkedQueue<Waiter>();
+		m_size = new AtomicInteger(0);
+		m_waiters = new AtomicInteger(0);
 		m_acquireTimeout = Time.TEN_SECONDS;
 		m_password = password;
 		m_username = username;
 		m_poolSize = maxPoolSize;
-		m_shutdown = false;
+		m_shutdown = new AtomicBoolean(false);
+		m_fillRequested = new AtomicBoolean(false);
+		m_minIdle = 0;
+		m_idleTimeout = 0;
+		m_maxLifetime = 0;
+		m_keepAliveInterval = 0;
+		m_validationPolicy = ValidationPolicy.DEFAULT;
+		m_asyncValidation = false;
+		m_quarantine = new ConcurrentLinkedQueue<PooledConnection>();
+		m_housekeeper = null;
+		m_threadAffinity = false;
+		m_lastReleased = new ThreadLocal<WeakReference<PooledConnection>>();
+		m_statementCacheSize = 0;
+		m_listener = null;
+		m_retiredStatementCacheHits = new AtomicLong(0);
+		m_retiredStatementCacheMisses = new AtomicLong(0);
+	}
+
+	/**
+	 * Sets the number of prepared statements to cache for each connection.
+	 * <p/>
+	 * Cached statements are keyed on their sql, and the least recently used statement
+	 * is closed when the cache is full. The setting only applies to connections
+	 * opened after the call, so it should be set before the pool is used.
+	 * <p/>
+	 * Default is 0, meaning that statements are not cached.
+	 *
+	 * @param statementCacheSize the maximum number of cached statements per connection.
+	 */
+	public void setStatementCacheSize(int statementCacheSize)
+	{
+		m_statementCacheSize = Math.max(statementCacheSize, 0);
+	}
+
+	/**
+	 * Returns the number of prepared statements cached per connection.
+	 *
+	 * @return the maximum number of cached statements per connection.
+	 */
+	public int getStatementCacheSize()
+	{
+		return m_statementCacheSize;
+	}
+
+	/**
+	 * Returns the number of times a prepared statement was reused from
+	 * a statement cache, since the pool was created.
+	 *
+	 * @return the number of statement cache hits.
+	 */
+	public long getStatementCacheHits()
+	{
+		long hits = m_retiredStatementCacheHits.get();
+		for (PooledConnection connection : m_connections.values())
+		{
+			StatementCache cache = connection.getStatementCache();
+			if (cache != null) hits += cache.getHits();
+		}
+		return hits;
+	}
+
+	/**
+	 * Returns the number of times a statement had to be prepared on a connection
+	 * with a statement cache, since the pool was created.
+	 *
+	 * @return the number of statement cache misses.
+	 */
+	public long getStatementCacheMisses()
+	{
+		long misses = m_retiredStatementCacheMisses.get();
+		for (PooledConnection connection : m_connections.values())
+		{
+			StatementCache cache = connection.getStatementCache();
+			if (cache != null) misses += cache.getMisses();
+		}
+		return misses;
+	}
+
+	/**
+	 * Enables or disables thread affinity for connections.
+	 * <p/>
+	 * When enabled, each thread remembers the last connection it released, and will
+	 * reacquire that connection if it is still free. This avoids touching the
+	 * shared free list for the common case of a thread doing a series of calls,
+	 * and keeps any per-connection caches in the driver warm.
+	 * Connections are still available to other threads while free.
+	 * <p/>
+	 * Default is disabled.
+	 *
+	 * @param threadAffinity true to enable thread affinity.
+	 */
+	public void setThreadAffinity(boolean threadAffinity)
+	{
+		m_threadAffinity = threadAffinity;
+	}
+
+	/**
+	 * Checks if thread affinity is enabled.
+	 *
+	 * @return true if threads prefer the connection they last released.
+	 * @see #setThreadAffinity(boolean)
+	 */
+	public boolean isThreadAffinity()
+	{
+		return m_threadAffinity;
+	}
+
+	/**
+	 * Sets the number of free connections the pool should try to keep ready, as
+	 * long as the maximum pool size allows it.
+	 * <p/>
+	 * When set to a value larger than 0, the housekeeper thread is started, which
+	 * immediately starts opening connections, so that the first requests to the pool
+	 * do not have to pay for setting up connections.
+	 * <p/>
+	 * Default is 0.
+	 *
+	 * @param minIdle the number of free connections to keep ready.
+	 * @see #startHousekeeper()
+	 */
+	public void setMinIdle(int minIdle)
+	{
+		m_minIdle = Math.min(Math.max(minIdle, 0), m_poolSize);
+		startHousekeeper();
+		requestFill();
+	}
+
+	/**
+	 * Sets the time a free connection may be idle before it is closed, as long
+	 * as there are more than {@link #getMinIdle()} free connections.
+	 * <p/>
+	 * Default is 0.
+	 *
+	 * @param idleTimeout the idle timeout in ms, 0 to keep idle connections open.
+	 * @see #startHousekeeper()
+	 */
+	public void setIdleTimeout(long idleTimeout)
+	{
+		m_idleTimeout = Math.max(idleTimeout, 0);
+		startHousekeeper();
+	}
+
+	/**
+	 * Returns the time a free connection may be idle before it is closed.
+	 *
+	 * @return the idle timeout in ms, 0 if idle connections are kept open.
+	 */
+	public long getIdleTimeout()
+	{
+		return m_idleTimeout;
+	}
+
+	/**
+	 * Sets the maximum time a connection is kept in the pool.
+	 * <p/>
+	 * Free connections are closed when they expire, while busy connections are
+	 * closed when they are released. To avoid closing many connections at once,
+	 * each connection has its lifetime shortened by a random amount of up to 2.5%.
+	 * <p/>
+	 * Default is 0.
+	 *
+	 * @param maxLifetime the maximum lifetime in ms, 0 for unlimited.
+	 * @see #startHousekeeper()
+	 */
+	public void setMaxLifetime(long maxLifetime)
+	{
+		m_maxLifetime = Math.max(maxLifetime, 0);
+		startHousekeeper();
+	}
+
+	/**
+	 * Returns the maximum time a connection is kept in the pool.
+	 *
+	 * @return the maximum lifetime in ms, 0 for unlimited.
+	 */
+	public long getMaxLifetime()
+	{
+		return m_maxLifetime;
+	}
+
+	/**
+	 * Sets how often free connections are validated, to detect connections
+	 * closed by the database or the network while idle.
+	 * <p/>
+	 * Validation is done by the housekeeper thread using the {@link ValidationPolicy} of
+	 * the pool, by default {@link Connection#isValid(int)}, so broken
+	 * connections are removed before they reach a thread acquiring a connection.
+	 * <p/>
+	 * Default is 0.
+	 *
+	 * @param keepAliveInterval the time in ms a connection may be idle without being validated,
+	 * 0 to not validate idle connections.
+	 * @see #startHousekeeper()
+	 */
+	public void setKeepAliveInterval(long keepAliveInterval)
+	{
+		m_keepAliveInterval = Math.max(keepAliveInterval, 0);
+		startHousekeeper();
+	}
+
+	/**
+	 * Returns how often free connections are validated.
+	 *
+	 * @return the keep-alive interval in ms, 0 if idle connections are not validated.
+	 */
+	public long getKeepAliveInterval()
+	{
+		return m_keepAliveInterval;
+	}
+
+	/**
+	 * Sets the policy deciding when and how connections are validated.
+	 * <p/>
+	 * Default is {@link ValidationPolicy#DEFAULT}, which validates connections
+	 * released after an error using {@link Connection#isValid(int)}.
+	 *
+	 * @param validationPolicy the validation policy.
+	 */
+	public void setValidationPolicy(ValidationPolicy validationPolicy)
+	{
+		if (validationPolicy == null) throw new NullPointerException("Validation policy must not be null.");
+		m_validationPolicy = validationPolicy;
+	}
+
+	/**
+	 * Returns the policy deciding when and how connections are validated.
+	 *
+	 * @return the validation policy.
+	 */
+	public ValidationPolicy getValidationPolicy()
+	{
+		return m_validationPolicy;
+	}
+
+	/**
+	 * Sets if connections released after an error should be validated on the
+	 * housekeeper thread rather than by the releasing thread.
+	 * <p/>
+	 * When enabled, a connection that needs validation on release is put
+	 * in quarantine and release returns immediately. The connection rejoins the pool
+	 * once it has been validated, or is discarded if validation fails. This keeps
+	 * release fast even when the database is slow to respond.
+	 * <p/>
+	 * Default is false.
+	 *
+	 * @param asyncValidation true to validate released connections in the background.
+	 */
+	public void setAsyncValidation(boolean asyncValidation)
+	{
+		m_asyncValidation = asyncValidation;
+	}
+
+	/**
+	 * Checks if connections released after an error are validated in the background.
+	 *
+	 * @return true if validation on release is asynchronous.
+	 */
+	public boolean isAsyncValidation()
+	{
+		return m_asyncValidation;
+	}
+
+	/**
+	 * Returns the number of connections waiting to be validated.
+	 *
+	 * @return the number of quarantined connections.
+	 */
+	public int getConnectionsQuarantined()
+	{
+		return countConnections(PooledConnection.QUARANTINED);
+	}
+
+	/**
+	 * Starts the housekeeper thread if there is any housekeeping to do.
+	 * <p/>
+	 * The housekeeper is a daemon thread which opens connections to keep
+	 * {@link #getMinIdle()} connections ready, closes connections that have been idle
+	 * or alive for too long, and validates idle connections. It wakes up at least once
+	 * a second, and exits when the pool is shut down or there is nothing left to do.
+	 */
+	private void startHousekeeper()
+	{
+		m_housekeeperLock.lock();
+		try
+		{
+			if (m_housekeeper == null && hasHousekeeping() && !m_shutdown.get())
+			{
+				m_housekeeper = new Housekeeper();
+				m_housekeeper.start();
+			}
+		}
+		finally
+		{
+			m_housekeeperLock.unlock();
+		}
+	}
+
+	private boolean hasHousekeeping()
+	{
+		return m_minIdle > 0 || m_idleTimeout > 0 || m_maxLifetime > 0 || m_keepAliveInterval > 0
+		       || !m_quarantine.isEmpty();
+	}
+
+	/**
+	 * Returns the number of free connections the pool tries to keep ready.
+	 *
+	 * @return the minimum number of idle connections.
+	 */
+	public int getMinIdle()
+	{
+		return m_minIdle;
+	}
+
+	/**
+	 * Sets a listener to receive events about connections being acquired, released,
+	 * created and discarded, for example to collect {@link DbPoolMetrics}.
+	 * <p/>
+	 * Default is null.
+	 *
+	 * @param listener the listener, or null to not send any events.
+	 */
+	public void setListener(DbPoolListener listener)
+	{
+		m_listener = listener;
+	}
+
+	/**
+	 * Returns the listener receiving events from this pool.
+	 *
+	 * @return the listener, or null if there is none.
+	 */
+	public DbPoolListener getListener()
+	{
+		return m_listener;
+	}
+
+	/**
+	 * Returns the maximum number of connections in the pool.
+	 *
+	 * @return the maximum pool size.
+	 */
+	public int getPoolSize()
+	{
+		return m_poolSize;
 	}
 
 	/**
 	 * Sets the maximum time to wait when waiting for a new connection.
 	 * <p/>
+	 * A timeout is thrown as a {@link SQLTransientConnectionException} with SQL state 08001.
+	 * <p/>
 	 * Default is 10000 ms.
 	 *
 	 * @param acquireTimeout the new timeout in ms, a negative value means
@@ -77,122 +502,513 @@ public class DbPool
 	 * Acquire a connection from the pool, waiting at the most {@link #getAcquireTimeout} ms
 	 * if there currently are no connections available.
 	 * <p/>
+	 * Session settings changed by the pool, such as auto-commit being turned off for a
+	 * transaction, are restored to the ones the connection was opened with. Settings changed
+	 * by the previous caller of this method are left as they are.
+	 * <p/>
 	 * <em>This method is thread-safe.</em>
 	 *
 	 * @return a java.sql.Connection object.
+	 * @throws SQLException if the pool was shut down, there was a
+	 * timeout waiting for a connection or the settings of the connection could not be restored.
+	 */
+	public Connection acquire() throws SQLException
+	{
+		PooledConnection connection = acquirePooled();
+		// Only settings known to differ are restored, so this is free after another caller of acquire().
+		if (connection.getSession() != null)
+		{
+			try
+			{
+				connection.resetSession();
+			}
+			catch (SQLException e)
+			{
+				release(connection, true);
+				throw e;
+			}
+		}
+		// The caller may change the settings directly on the connection.
+		connection.invalidateSession();
+		return connection.getConnection();
+	}
+
+	/**
+	 * Acquire a pooled connection, see {@link #acquire()}.
+	 *
+	 * @return the pooled connection, which is owned by the caller until released.
 	 * @throws SQLException if the pool was shut down or there was a
 	 * timeout waiting for a connection.
 	 */
-	public synchronized Connection acquire() throws SQLException
+	PooledConnection acquirePooled() throws SQLException
+	{
+		DbPoolListener listener = m_listener;
+		if (listener == null) return acquireValidConnection();
+		long startTime = System.nanoTime();
+		PooledConnection connection = acquireValidConnection();
+		long acquiredAt = System.nanoTime();
+		connection.setAcquiredAt(acquiredAt);
+		listener.connectionAcquired(acquiredAt - startTime);
+		return connection;
+	}
+
+	/**
+	 * Acquires a connection, validating it first if the validation policy
+	 * requires it after the connection has been idle.
+	 *
+	 * @return a connection owned by the caller.
+	 * @throws SQLException if the pool was shut down or there was a
+	 * timeout waiting for a connection.
+	 */
+	private PooledConnection acquireValidConnection() throws SQLException
 	{
-		long startTime = System.currentTimeMillis();
 		while (true)
 		{
-			if (m_shutdown) throw new SQLException("Db connection already shut down.");
-			createConnectionOnDemand();
-			if (m_freeConnections.size() > 0)
+			PooledConnection connection = acquireConnection();
+			ValidationPolicy policy = m_validationPolicy;
+			long now = System.currentTimeMillis();
+			if (!policy.shouldValidate(false, now - connection.getLastActive())) return connection;
+			if (connection.validate(policy))
 			{
-				Connection c = m_freeConnections.remove(m_freeConnections.size() - 1).first;
-				m_busyConnections.add(c);
-				return c;
+				connection.setLastValidated(now);
+				return connection;
 			}
-			try
+			if (connection.tryRemove(PooledConnection.BUSY))
 			{
-				waitForConnection(startTime);
+				discard(connection);
+				DbPoolListener listener = m_listener;
+				if (listener != null) listener.connectionDiscarded(true);
 			}
-			catch (InterruptedException e)
+		}
+	}
+
+	private PooledConnection acquireConnection() throws SQLException
+	{
+		// Released connections go to waiting threads first, so only use affinity when nobody waits.
+		if (m_threadAffinity && m_handOff.isEmpty())
+		{
+			PooledConnection connection = acquireLastReleased();
+			if (connection != null)
+			{
+				if (m_minIdle > 0 && m_freeConnections.isEmpty()) requestFill();
+				return connection;
+			}
+		}
+		long startTime = System.currentTimeMillis();
+		while (true)
+		{
+			if (m_shutdown.get()) throw new SQLException("Db connection already shut down.");
+			PooledConnection connection = pollFreeConnection();
+			if (connection != null)
 			{
-				throw new SQLException("Interrupt while waiting for connection.");
+				if (m_minIdle > 0 && m_freeConnections.isEmpty()) requestFill();
+				return connection;
 			}
+			connection = createConnectionOnDemand();
+			if (connection != null) return connection;
+			connection = waitForConnection(startTime);
+			if (connection != null) return connection;
 		}
 	}
 
+	/**
+	 * Reacquires the connection the current thread last released, if it is still free.
+	 * <p/>
+	 * The connection is only contended if another thread found it on the
+	 * free list, so this is usually a single uncontended compare-and-set.
+	 *
+	 * @return a connection owned by the caller, or null if the connection was not free.
+	 */
+	private PooledConnection acquireLastReleased()
+	{
+		WeakReference<PooledConnection> reference = m_lastReleased.get();
+		PooledConnection connection = reference == null ? null : reference.get();
+		if (connection == null) return null;
+		if (connection.isFree() && connection.tryAcquire()) return connection;
+		if (connection.getState() == PooledConnection.REMOVED) m_lastReleased.remove();
+		return null;
+	}
+
+	/**
+	 * Takes the most recently released connection from the list of free connections.
+	 * <p/>
+	 * Entries for connections that already have been acquired through the hand-off
+	 * queue are discarded.
+	 *
+	 * @return a connection owned by the caller, or null if there were no free connections.
+	 */
+	private PooledConnection pollFreeConnection()
+	{
+		PooledConnection connection;
+		while ((connection = m_freeConnections.pollLast()) != null)
+		{
+			connection.setQueued(false);
+			if (connection.tryAcquire()) return connection;
+		}
+		return null;
+	}
+
 	/**
 	 * Performs the internal wait, throwing an exception if the timeout has been reached.
+	 * <p/>
+	 * A return value of null means that the caller should retry acquiring a connection.
 	 *
 	 * @param startTime the time when the original call was made.
-	 * @throws SQLException if a timeout was detected.
-	 * @throws InterruptedException if the wait was interrupted.
+	 * @return a connection owned by the caller, or null if the caller should retry.
+	 * @throws SQLException if a timeout was detected or the wait was interrupted.
 	 */
-	private void waitForConnection(long startTime) throws SQLException, InterruptedException
+	private PooledConnection waitForConnection(long startTime) throws SQLException
 	{
-		if (m_acquireTimeout < 0)
+		Waiter waiter = new Waiter();
+		m_handOff.offer(waiter);
+		m_waiters.incrementAndGet();
+		try
 		{
-			wait();
-			return;
+			// Now that releasing threads can see us waiting, check again so that we
+			// don't miss a connection released just before we registered.
+			PooledConnection connection = pollFreeConnection();
+			if (connection != null || m_shutdown.get() || hasCapacity())
+			{
+				return cancelWait(waiter, connection);
+			}
+			long deadline = m_acquireTimeout < 0 ? 0 : startTime + m_acquireTimeout;
+			while (true)
+			{
+				connection = waiter.getConnection();
+				if (connection != null) return connection == WAKE_UP ? null : connection;
+				if (Thread.interrupted())
+				{
+					returnConnection(cancelWait(waiter, null));
+					throw new SQLException("Interrupt while waiting for connection.");
+				}
+				if (deadline == 0)
+				{
+					LockSupport.park(this);
+					continue;
+				}
+				long timeToWait = deadline - System.currentTimeMillis();
+				if (timeToWait < 1)
+				{
+					connection = cancelWait(waiter, null);
+					if (connection != null) return connection;
+					DbPoolListener listener = m_listener;
+					if (listener != null) listener.acquireTimedOut();
+					// Reported as a connection exception (class 08), since the db could not be reached in time.
+					throw new SQLTransientConnectionException("Timeout waiting to acquire db connection, exceeded "
+					                                          + Time.timeIntervalToString(m_acquireTimeout) + ".",
+					                                          "08001");
+				}
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeToWait));
+			}
 		}
-		long timeToWait = m_acquireTimeout - System.currentTimeMillis() + startTime;
-		if (timeToWait < 1)
+		finally
 		{
-			throw new SQLException("Timeout waiting to acquire db connection, " +
-			                       "exceeded " + Time.timeIntervalToString(m_acquireTimeout) +
-			                       ".");
+			m_handOff.remove(waiter);
+			m_waiters.decrementAndGet();
 		}
-		wait(m_acquireTimeout);
 	}
 
 	/**
-	 * Create a new connection if there are no free connections and the pool size
-	 * has not yet been reached.
+	 * Stops waiting, taking care of any connection handed to the waiter in the meantime.
 	 *
-	 * @throws SQLException if there was an error creating a connection.
+	 * @param waiter the waiter to cancel.
+	 * @param connection a connection the waiting thread already owns, or null.
+	 * @return the connection the waiting thread should use, or null if it should retry.
 	 */
-	@SuppressWarnings({"JDBCResourceOpenedButNotSafelyClosed"})
-	private void createConnectionOnDemand() throws SQLException
+	private PooledConnection cancelWait(Waiter waiter, PooledConnection connection)
+	{
+		PooledConnection handedOff = waiter.cancel();
+		if (handedOff == null || handedOff == WAKE_UP) return connection;
+		if (connection == null) return handedOff;
+		returnConnection(handedOff);
+		return connection;
+	}
+
+	/**
+	 * Makes a connection owned by the pool, but never used, free again.
+	 *
+	 * @param connection the connection to return, may be null.
+	 */
+	private void returnConnection(PooledConnection connection)
+	{
+		if (connection != null && connection.tryReturn()) addFreeConnection(connection);
+	}
+
+	/**
+	 * Checks if the pool has room for more connections.
+	 *
+	 * @return true if the pool size has not yet been reached.
+	 */
+	private boolean hasCapacity()
 	{
-		if (m_freeConnections.isEmpty() && m_busyConnections.size() < m_poolSize)
+		return m_size.get() < m_poolSize;
+	}
+
+	/**
+	 * Reserves room in the pool for a new connection.
+	 *
+	 * @return true if room was reserved, false if the pool is full.
+	 */
+	private boolean reserveCapacity()
+	{
+		while (true)
 		{
-			addFreeConnection(DriverManager.getConnection(m_url, m_username, m_password));
+			int size = m_size.get();
+			if (size >= m_poolSize) return false;
+			if (m_size.compareAndSet(size, size + 1)) return true;
 		}
 	}
 
 	/**
-	 * Add a connection to the pool of free connections, together with a timestamp telling
-	 * when this connection was added.
+	 * Create a new connection if the pool size has not yet been reached.
+	 * <p/>
+	 * The connection is created without holding any lock.
 	 *
-	 * @param connection the connection to add.
+	 * @return the new connection, already acquired by the caller, or null if the pool is full.
+	 * @throws SQLException if there was an error creating a connection.
 	 */
-	private synchronized void addFreeConnection(Connection connection)
+	private PooledConnection createConnectionOnDemand() throws SQLException
 	{
-		m_freeConnections.add(new Tuple<Connection, Long>(connection, System.currentTimeMillis()));
+		if (!reserveCapacity()) return null;
+		return openConnection(PooledConnection.BUSY);
 	}
 
-
 	/**
-	 * Tests if a connection is ok using the {@code lastCallHadError} flag as
-	 * a hint if the connection should be tested with a simple statement
-	 * to see that the db connection is ok.
+	 * Opens a new connection and adds it to the pool. The caller must already have
+	 * reserved capacity for the connection.
 	 *
-	 * @param connection the connection to test.
-	 * @param lastCallHadError a hint that the connection had errors and
-	 * that a diagnostic db query should be made to verify that it is ok.
-	 * @return true if the connection tested ok, false otherwise.
+	 * @param state the initial state of the connection.
+	 * @return the new connection.
+	 * @throws SQLException if there was an error creating a connection.
 	 */
 	@SuppressWarnings({"JDBCResourceOpenedButNotSafelyClosed"})
-	boolean connectionIsOk(Connection connection, boolean lastCallHadError)
+	private PooledConnection openConnection(int state) throws SQLException
 	{
+		Connection c;
 		try
 		{
-			if (connection.isClosed()) return false;
-			if (lastCallHadError)
+			c = DriverManager.getConnection(m_url, m_username, m_password);
+		}
+		catch (SQLException e)
+		{
+			m_size.decrementAndGet();
+			signalCapacity();
+			throw e;
+		}
+		SessionState session;
+		try
+		{
+			session = SessionState.read(c);
+		}
+		catch (SQLException e)
+		{
+			// The driver can't report its settings, they will be set unconditionally when needed.
+			session = null;
+		}
+		PooledConnection connection = new PooledConnection(c, state, m_statementCacheSize, session);
+		m_connections.put(c, connection);
+		if (m_shutdown.get())
+		{
+			// Shutdown raced with our connect, make sure the connection isn't leaked.
+			connection.markRemoved();
+			discard(connection);
+			throw new SQLException("Db connection already shut down.");
+		}
+		DbPoolListener listener = m_listener;
+		if (listener != null) listener.connectionCreated();
+		return connection;
+	}
+
+	/**
+	 * Wakes up the housekeeper thread to fill up the pool, if it is running.
+	 */
+	private void requestFill()
+	{
+		Thread housekeeper = m_housekeeper;
+		if (housekeeper != null && m_fillRequested.compareAndSet(false, true))
+		{
+			LockSupport.unpark(housekeeper);
+		}
+	}
+
+	/**
+	 * Opens connections until there are at least {@link #getMinIdle()} free connections
+	 * or the pool is full.
+	 * <p/>
+	 * If a connection fails to open, this method gives up until the next call.
+	 */
+	private void fillToMinIdle()
+	{
+		while (!m_shutdown.get() && getConnectionsFree() < m_minIdle && reserveCapacity())
+		{
+			PooledConnection connection;
+			try
+			{
+				connection = openConnection(PooledConnection.FREE);
+			}
+			catch (SQLException e)
+			{
+				return;
+			}
+			addFreeConnection(connection);
+		}
+	}
+
+	/**
+	 * Closes expired and idle free connections, and validates free connections that have
+	 * been idle longer than the keep-alive interval.
+	 * <p/>
+	 * This is normally run by the housekeeper thread.
+	 *
+	 * @return the number of connections removed.
+	 */
+	int maintain()
+	{
+		long now = System.currentTimeMillis();
+		long idleTimeout = m_idleTimeout;
+		long maxLifetime = m_maxLifetime;
+		long keepAliveInterval = m_keepAliveInterval;
+		int free = getConnectionsFree();
+		int removed = 0;
+		for (PooledConnection connection : m_connections.values())
+		{
+			if (m_shutdown.get()) break;
+			if (!connection.isFree()) continue;
+			if (connection.isExpired(now, maxLifetime, MAX_LIFETIME_JITTER)
+			    || (idleTimeout > 0 && free > m_minIdle && now - connection.getLastReleased() >= idleTimeout))
+			{
+				if (connection.tryRemove(PooledConnection.FREE))
+				{
+					free--;
+					removed++;
+					discard(connection);
+					DbPoolListener listener = m_listener;
+					if (listener != null) listener.connectionDiscarded(false);
+				}
+				continue;
+			}
+			if (keepAliveInterval > 0 && now - connection.getLastActive() >= keepAliveInterval && connection.tryAcquire())
 			{
-				Statement s = null;
+				if (validate(connection))
+				{
+					connection.setLastValidated(now);
+					connection.tryReturn();
+					addFreeConnection(connection);
+				}
+				else
+				{
+					free--;
+					removed++;
+					connection.markRemoved();
+					discard(connection);
+					DbPoolListener listener = m_listener;
+					if (listener != null) listener.connectionDiscarded(true);
+				}
+				continue;
+			}
+			// Requeue free connections whose free list entry was dropped as stale
+			// while they were in use.
+			if (!connection.isQueued() && connection.isFree()) addFreeConnection(connection);
+		}
+		return removed;
+	}
+
+	/**
+	 * Checks that a connection is alive using the validation policy.
+	 *
+	 * @param connection the connection to validate.
+	 * @return true if the connection is valid.
+	 */
+	boolean validate(PooledConnection connection)
+	{
+		return connection.validate(m_validationPolicy);
+	}
+
+	/**
+	 * Validates quarantined connections, returning them to the pool or discarding them.
+	 * <p/>
+	 * This is run by the housekeeper thread.
+	 */
+	private void validateQuarantined()
+	{
+		PooledConnection connection;
+		while ((connection = m_quarantine.poll()) != null)
+		{
+			// Connections removed by a shutdown are skipped.
+			if (!connection.tryUnquarantine()) continue;
+			releaseConnection(connection, validate(connection));
+		}
+	}
+
+	/**
+	 * The background thread keeping {@link #getMinIdle()} connections ready
+	 * and doing maintenance on free connections.
+	 */
+	private class Housekeeper extends Thread
+	{
+		private Housekeeper()
+		{
+			super("DbPool housekeeper [" + m_url + "]");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				m_housekeeperLock.lock();
 				try
 				{
-					s = connection.createStatement();
-					s.execute("select 1;");
+					if (m_shutdown.get() || !hasHousekeeping())
+					{
+						m_housekeeper = null;
+						return;
+					}
 				}
 				finally
 				{
-					SQL.closeSilently(s);
+					m_housekeeperLock.unlock();
 				}
+				m_fillRequested.set(false);
+				validateQuarantined();
+				maintain();
+				fillToMinIdle();
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(HOUSEKEEPING_INTERVAL));
 			}
-			return true;
+		}
+	}
+
+	/**
+	 * Tests if a connection is ok to return to the pool, using the {@code lastCallHadError} flag as
+	 * a hint to the validation policy that the connection should be validated.
+	 *
+	 * @param connection the connection to test.
+	 * @param lastCallHadError a hint that the connection had errors and
+	 * may need to be validated.
+	 * @return true if the connection tested ok, false otherwise.
+	 * @see #setValidationPolicy(ValidationPolicy)
+	 */
+	boolean connectionIsOk(Connection connection, boolean lastCallHadError)
+	{
+		return connectionIsOk(null, connection, lastCallHadError);
+	}
+
+	private boolean connectionIsOk(PooledConnection pooledConnection, Connection connection, boolean lastCallHadError)
+	{
+		ValidationPolicy policy = m_validationPolicy;
+		try
+		{
+			if (policy.checksClosed() && connection.isClosed()) return false;
 		}
 		catch (SQLException e)
 		{
 			return false;
 		}
+		if (!policy.shouldValidate(lastCallHadError, 0)) return true;
+		boolean valid = policy.validate(connection);
+		if (pooledConnection != null) pooledConnection.endValidation();
+		return valid;
 	}
 
 	/**
@@ -205,51 +1021,224 @@ public class DbPool
 	 * @param connection the connection to return to the pool.
 	 * @param lastCallHadError a hint that the connection had errors and should
 	 * be tested before being returned to the pool.
+	 * @see #setAsyncValidation(boolean)
 	 */
 	public void release(Connection connection, boolean lastCallHadError)
 	{
-		boolean connectionOk = connectionIsOk(connection, lastCallHadError);
-		releaseConnection(connection, connectionOk);
+		// Ignore connections that does not belong to this pool.
+		PooledConnection pooledConnection = m_connections.get(connection);
+		if (pooledConnection == null) return;
+		release(pooledConnection, connection, lastCallHadError);
+	}
+
+	/**
+	 * Release a pooled connection back to the pool, see {@link #release(java.sql.Connection, boolean)}.
+	 *
+	 * @param connection the connection to return to the pool.
+	 * @param lastCallHadError a hint that the connection had errors and should
+	 * be tested before being returned to the pool.
+	 */
+	void release(PooledConnection connection, boolean lastCallHadError)
+	{
+		release(connection, connection.getConnection(), lastCallHadError);
 	}
 
-	private synchronized void releaseConnection(Connection connection, boolean connectionOk)
+	private void release(PooledConnection pooledConnection, Connection connection, boolean lastCallHadError)
 	{
-		// Ignore connections that might already have been released or does not belong to this pool.
-		if (!m_busyConnections.remove(connection)) return;
-		if (connectionOk)
+		if (m_asyncValidation && m_validationPolicy.shouldValidate(lastCallHadError, 0))
 		{
-			addFreeConnection(connection);
+			quarantine(pooledConnection);
+			return;
+		}
+		releaseConnection(pooledConnection, connectionIsOk(pooledConnection, connection, lastCallHadError));
+	}
+
+	/**
+	 * Takes a released connection out of use and leaves it to the housekeeper to validate.
+	 *
+	 * @param connection the connection to quarantine.
+	 */
+	private void quarantine(PooledConnection connection)
+	{
+		long acquiredAt = connection.getAcquiredAt();
+		// Ignore connections that might already have been released.
+		if (!connection.tryQuarantine()) return;
+		connection.setAcquiredAt(0);
+		fireReleased(acquiredAt);
+		m_quarantine.offer(connection);
+		startHousekeeper();
+		Thread housekeeper = m_housekeeper;
+		if (housekeeper != null) LockSupport.unpark(housekeeper);
+	}
+
+	private void releaseConnection(PooledConnection connection, boolean connectionOk)
+	{
+		// Read before releasing, as the connection may be acquired again right after.
+		long acquiredAt = connection.getAcquiredAt();
+		if (!connectionOk)
+		{
+			// Ignore connections that might already have been released.
+			if (connection.tryRemove(PooledConnection.BUSY))
+			{
+				fireReleased(acquiredAt);
+				discard(connection);
+				DbPoolListener listener = m_listener;
+				if (listener != null) listener.connectionDiscarded(true);
+			}
+			return;
+		}
+		if (connection.isExpired(System.currentTimeMillis(), m_maxLifetime, MAX_LIFETIME_JITTER))
+		{
+			if (connection.tryRemove(PooledConnection.BUSY))
+			{
+				fireReleased(acquiredAt);
+				discard(connection);
+				DbPoolListener listener = m_listener;
+				if (listener != null) listener.connectionDiscarded(false);
+				requestFill();
+			}
+			return;
+		}
+		if (!connection.tryRelease()) return;
+		fireReleased(acquiredAt);
+		if (m_threadAffinity)
+		{
+			WeakReference<PooledConnection> reference = m_lastReleased.get();
+			if (reference == null || reference.get() != connection)
+			{
+				m_lastReleased.set(new WeakReference<PooledConnection>(connection));
+			}
+		}
+		addFreeConnection(connection);
+	}
+
+	/**
+	 * Notifies the listener that a connection was released.
+	 *
+	 * @param acquiredAt the time the connection was acquired, 0 if it was acquired without a listener.
+	 */
+	private void fireReleased(long acquiredAt)
+	{
+		DbPoolListener listener = m_listener;
+		if (listener != null && acquiredAt != 0) listener.connectionReleased(System.nanoTime() - acquiredAt);
+	}
+
+	/**
+	 * Makes a free connection available, handing it directly to the longest
+	 * waiting thread if there is one, so that threads arriving later cannot take it first.
+	 * <p/>
+	 * The connection is only added to the free list if no waiting thread took it.
+	 *
+	 * @param connection the free connection.
+	 */
+	private void addFreeConnection(PooledConnection connection)
+	{
+		// Take ownership on behalf of the waiter, so nobody else can acquire the connection in between.
+		if (!m_handOff.isEmpty() && connection.tryAcquire())
+		{
+			if (handOff(connection)) return;
+			connection.tryReturn();
+		}
+		queueFreeConnection(connection);
+		// A thread may have started waiting after we looked for waiters, but checked the
+		// free list before the connection was queued. Either it finds the connection, or
+		// we find it here.
+		while (!m_handOff.isEmpty())
+		{
+			PooledConnection free = pollFreeConnection();
+			if (free == null) return;
+			if (!handOff(free))
+			{
+				free.tryReturn();
+				queueFreeConnection(free);
+			}
+		}
+	}
+
+	private void queueFreeConnection(PooledConnection connection)
+	{
+		if (!connection.isQueued())
+		{
+			connection.setQueued(true);
+			m_freeConnections.offerLast(connection);
+		}
+	}
+
+	/**
+	 * Hands a connection to the longest waiting thread.
+	 *
+	 * @param connection a connection owned by the caller, or {@link #WAKE_UP}.
+	 * @return true if a waiting thread took the connection, false if there were no waiting threads.
+	 */
+	private boolean handOff(PooledConnection connection)
+	{
+		Waiter waiter;
+		while ((waiter = m_handOff.poll()) != null)
+		{
+			if (waiter.offer(connection)) return true;
 		}
-		else
+		return false;
+	}
+
+	/**
+	 * Closes a removed connection and frees up its room in the pool.
+	 *
+	 * @param connection the connection to discard.
+	 */
+	private void discard(PooledConnection connection)
+	{
+		m_connections.remove(connection.getConnection());
+		StatementCache cache = connection.getStatementCache();
+		if (cache != null)
 		{
-			SQL.closeSilently(connection);
+			m_retiredStatementCacheHits.addAndGet(cache.getHits());
+			m_retiredStatementCacheMisses.addAndGet(cache.getMisses());
 		}
-		notifyAll();
+		connection.close();
+		m_size.decrementAndGet();
+		signalCapacity();
 	}
 
+	/**
+	 * Wakes up a waiting thread so that it may use the capacity freed up
+	 * by a discarded connection.
+	 */
+	private void signalCapacity()
+	{
+		if (hasCapacity()) handOff(WAKE_UP);
+	}
+
+	/**
+	 * Closes and removes free connections that have been idle longer than {@code maxAge}.
+	 *
+	 * @param maxAge the maximum time in ms a connection may be idle.
+	 * @return the number of connections removed.
+	 */
 	public int resizePool(long maxAge)
 	{
-		List<Connection> oldConnections = removeOldFreeConnections(maxAge);
-		for (Connection c : oldConnections)
+		List<PooledConnection> oldConnections = removeOldFreeConnections(maxAge);
+		DbPoolListener listener = m_listener;
+		for (PooledConnection c : oldConnections)
 		{
-			SQL.closeSilently(c);
+			discard(c);
+			if (listener != null) listener.connectionDiscarded(false);
 		}
 		return oldConnections.size();
 	}
 
-	private List<Connection> removeOldFreeConnections(long maxAge)
+	private List<PooledConnection> removeOldFreeConnections(long maxAge)
 	{
 		long earliestOkTime = System.currentTimeMillis() - maxAge;
-		List<Connection> removedConnections = new ArrayList<Connection>();
-		for (Iterator<Tuple<Connection, Long>> it = m_freeConnections.iterator(); it.hasNext(); )
+		List<PooledConnection> removedConnections = new ArrayList<PooledConnection>();
+		for (Iterator<PooledConnection> it = m_freeConnections.iterator(); it.hasNext(); )
 		{
-			Tuple<Connection, Long> tuple = it.next();
-			if (tuple.second > earliestOkTime)
+			PooledConnection connection = it.next();
+			if (connection.getLastReleased() > earliestOkTime) continue;
+			if (connection.tryRemove(PooledConnection.FREE))
 			{
-				break;
+				it.remove();
+				removedConnections.add(connection);
 			}
-			it.remove();
-			removedConnections.add(tuple.first);
 		}
 		return removedConnections;
 	}
@@ -263,21 +1252,26 @@ public class DbPool
 	 * <p/>
 	 * <em>This method is thread-safe.</em>
 	 */
-	public synchronized void shutdown()
+	public void shutdown()
 	{
-		if (m_shutdown) return;
-		for (Tuple<Connection, Long> tuple : m_freeConnections)
+		if (!m_shutdown.compareAndSet(false, true)) return;
+		for (PooledConnection connection : m_connections.values())
 		{
-			SQL.closeSilently(tuple.first);
+			connection.markRemoved();
+			SQL.closeSilently(connection.getConnection());
 		}
-		for (Connection c : m_busyConnections)
+		m_connections.clear();
+		m_freeConnections.clear();
+		m_quarantine.clear();
+		Thread housekeeper = m_housekeeper;
+		if (housekeeper != null) LockSupport.unpark(housekeeper);
+		// Threads that start waiting after this see the shutdown when they check again.
+		while (handOff(WAKE_UP))
 		{
-			SQL.closeSilently(c);
+			// Wake up all waiting threads.
 		}
-		m_freeConnections.clear();
-		m_busyConnections.clear();
-		m_shutdown = true;
-		notifyAll();
+		DbPoolListener listener = m_listener;
+		if (listener != null) listener.poolShutdown();
 	}
 
 	/**
@@ -287,7 +1281,7 @@ public class DbPool
 	 */
 	public boolean isValid()
 	{
-		return !m_shutdown;
+		return !m_shutdown.get();
 	}
 
 	/**
@@ -301,28 +1295,92 @@ public class DbPool
 	public String toString()
 	{
 		return "DbPool[" + m_url + ", "
-		       + (m_shutdown ? "SHUTDOWN" : getConnectionsFree() + " free, " + getConnectionsBusy() + " busy") + "]";
+		       + (m_shutdown.get() ? "SHUTDOWN" : getConnectionsFree() + " free, " + getConnectionsBusy() + " busy") + "]";
 	}
 
 	/**
 	 * Retrieves the number of connections that are currently acquired from
 	 * the pool and have yet to be released back.
+	 * <p/>
+	 * The value is a snapshot and might be outdated by the time it is returned.
 	 *
 	 * @return the number of busy connections.
 	 */
-	public synchronized int getConnectionsBusy()
+	public int getConnectionsBusy()
 	{
-		return m_busyConnections.size();
+		return countConnections(PooledConnection.BUSY);
 	}
 
 	/**
 	 * Retrieves the number of connections in the pool that are free to use.
+	 * <p/>
+	 * The value is a snapshot and might be outdated by the time it is returned.
 	 *
 	 * @return the number of free connections.
 	 */
-	public synchronized int getConnectionsFree()
+	public int getConnectionsFree()
 	{
-		return m_freeConnections.size();
+		return countConnections(PooledConnection.FREE);
 	}
 
+	private int countConnections(int state)
+	{
+		int count = 0;
+		for (PooledConnection connection : m_connections.values())
+		{
+			if (connection.getState() == state) count++;
+		}
+		return count;
+	}
+
+
+	/**
+	 * A thread waiting for a connection, parked until a connection is handed to it.
+	 */
+	private static class Waiter
+	{
+		private final Thread m_thread;
+		private final AtomicReference<PooledConnection> m_connection;
+
+		private Waiter()
+		{
+			m_thread = Thread.currentThread();
+			m_connection = new AtomicReference<PooledConnection>();
+		}
+
+		/**
+		 * Hands a connection to the waiting thread.
+		 *
+		 * @param connection the connection, owned by the caller until this succeeds.
+		 * @return true if the thread took the connection, false if it already stopped waiting.
+		 */
+		public boolean offer(PooledConnection connection)
+		{
+			if (!m_connection.compareAndSet(null, connection)) return false;
+			LockSupport.unpark(m_thread);
+			return true;
+		}
+
+		/**
+		 * Returns the connection handed to this waiter.
+		 *
+		 * @return the connection, or null if none has been handed over yet.
+		 */
+		public PooledConnection getConnection()
+		{
+			PooledConnection connection = m_connection.get();
+			return connection == CANCELLED ? null : connection;
+		}
+
+		/**
+		 * Stops waiting, so that no connection is handed over after this.
+		 *
+		 * @return the connection handed over before cancelling, or null if there was none.
+		 */
+		public PooledConnection cancel()
+		{
+			if (m_connection.compareAndSet(null, CANCELLED)) return null;
+			return getConnection();
+		}
+	}
 }
@@ -0,0 +1,51 @@
+package xtras.sql;
+
+/**
+ * Receives events from a {@link DbPool}, see {@link DbPool#setListener(DbPoolListener)}.
+ * <p/>
+ * Events are delivered synchronously on the thread acquiring or releasing the
+ * connection, so implementations must be thread-safe, fast, and should avoid
+ * allocating or blocking.
+ *
+ * @author Christoffer Lerno
+ * @see DbPoolMetrics
+ */
+public interface DbPoolListener
+{
+	/**
+	 * Called when a connection has been acquired from the pool.
+	 *
+	 * @param waitNanos the time spent acquiring the connection, in ns.
+	 */
+	void connectionAcquired(long waitNanos);
+
+	/**
+	 * Called when a connection is returned to the pool, or discarded on release.
+	 *
+	 * @param holdNanos the time the connection was held, in ns.
+	 */
+	void connectionReleased(long holdNanos);
+
+	/**
+	 * Called when an acquire gave up after waiting for the acquire timeout.
+	 */
+	void acquireTimedOut();
+
+	/**
+	 * Called when the pool has opened a new connection.
+	 */
+	void connectionCreated();
+
+	/**
+	 * Called when the pool has closed and removed a connection.
+	 *
+	 * @param broken true if the connection was removed because it failed the
+	 * check on release, false if it was removed for being idle.
+	 */
+	void connectionDiscarded(boolean broken);
+
+	/**
+	 * Called once when the pool is shut down.
+	 */
+	void poolShutdown();
+}
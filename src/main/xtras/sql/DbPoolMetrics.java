@@ -0,0 +1,228 @@
+package xtras.sql;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link DbPoolListener} collecting statistics on pool usage: how long threads wait
+ * to acquire connections, how long connections are held, timeouts, created
+ * and discarded connections, as well as current and peak number of busy connections.
+ * <p/>
+ * The metrics may be published as a JMX MBean using {@link #registerMBean(String)},
+ * see also {@link Db#enableMetrics(String)}. The MBean is unregistered automatically
+ * when the pool is shut down.
+ *
+ * @author Christoffer Lerno
+ */
+public class DbPoolMetrics implements DbPoolListener, DbPoolMetricsMBean
+{
+	private final static double NANOS_PER_MS = 1000000.0;
+
+	private final LatencyHistogram m_acquireWait;
+	private final LatencyHistogram m_holdTime;
+	private final AtomicLong m_acquireTimeouts;
+	private final AtomicLong m_connectionsCreated;
+	private final AtomicLong m_connectionsDiscardedBroken;
+	private final AtomicLong m_connectionsDiscardedIdle;
+	private final AtomicInteger m_busy;
+	private final AtomicInteger m_peakBusy;
+	private volatile ObjectName m_objectName;
+
+	/**
+	 * Creates a new set of empty metrics.
+	 */
+	public DbPoolMetrics()
+	{
+		m_acquireWait = new LatencyHistogram();
+		m_holdTime = new LatencyHistogram();
+		m_acquireTimeouts = new AtomicLong(0);
+		m_connectionsCreated = new AtomicLong(0);
+		m_connectionsDiscardedBroken = new AtomicLong(0);
+		m_connectionsDiscardedIdle = new AtomicLong(0);
+		m_busy = new AtomicInteger(0);
+		m_peakBusy = new AtomicInteger(0);
+		m_objectName = null;
+	}
+
+	public void connectionAcquired(long waitNanos)
+	{
+		m_acquireWait.record(waitNanos);
+		int busy = m_busy.incrementAndGet();
+		int peak;
+		while (busy > (peak = m_peakBusy.get()))
+		{
+			if (m_peakBusy.compareAndSet(peak, busy)) break;
+		}
+	}
+
+	public void connectionReleased(long holdNanos)
+	{
+		m_holdTime.record(holdNanos);
+		m_busy.decrementAndGet();
+	}
+
+	public void acquireTimedOut()
+	{
+		m_acquireTimeouts.incrementAndGet();
+	}
+
+	public void connectionCreated()
+	{
+		m_connectionsCreated.incrementAndGet();
+	}
+
+	public void connectionDiscarded(boolean broken)
+	{
+		(broken ? m_connectionsDiscardedBroken : m_connectionsDiscardedIdle).incrementAndGet();
+	}
+
+	/**
+	 * Unregisters the MBean, if registered.
+	 */
+	public void poolShutdown()
+	{
+		unregisterMBean();
+	}
+
+	/**
+	 * Returns the histogram of time spent acquiring connections.
+	 *
+	 * @return the acquire wait histogram, in ns.
+	 */
+	public LatencyHistogram getAcquireWait()
+	{
+		return m_acquireWait;
+	}
+
+	/**
+	 * Returns the histogram of time connections were held before being released.
+	 *
+	 * @return the hold time histogram, in ns.
+	 */
+	public LatencyHistogram getHoldTime()
+	{
+		return m_holdTime;
+	}
+
+	public long getAcquireCount()
+	{
+		return m_acquireWait.getCount();
+	}
+
+	public long getAcquireTimeouts()
+	{
+		return m_acquireTimeouts.get();
+	}
+
+	public double getAcquireWaitMean()
+	{
+		return m_acquireWait.getMean() / NANOS_PER_MS;
+	}
+
+	public double getAcquireWait99Percentile()
+	{
+		return m_acquireWait.getPercentile(99) / NANOS_PER_MS;
+	}
+
+	public double getAcquireWaitMax()
+	{
+		return m_acquireWait.getMax() / NANOS_PER_MS;
+	}
+
+	public double getHoldTimeMean()
+	{
+		return m_holdTime.getMean() / NANOS_PER_MS;
+	}
+
+	public double getHoldTime99Percentile()
+	{
+		return m_holdTime.getPercentile(99) / NANOS_PER_MS;
+	}
+
+	public double getHoldTimeMax()
+	{
+		return m_holdTime.getMax() / NANOS_PER_MS;
+	}
+
+	public long getConnectionsCreated()
+	{
+		return m_connectionsCreated.get();
+	}
+
+	public long getConnectionsDiscardedBroken()
+	{
+		return m_connectionsDiscardedBroken.get();
+	}
+
+	public long getConnectionsDiscardedIdle()
+	{
+		return m_connectionsDiscardedIdle.get();
+	}
+
+	public int getConnectionsBusy()
+	{
+		return m_busy.get();
+	}
+
+	public int getPeakConnectionsBusy()
+	{
+		return m_peakBusy.get();
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server, using the
+	 * object name {@code xtras.sql:type=DbPool,name=<name>}.
+	 *
+	 * @param name the name to register the metrics under, typically the key of the Db.
+	 * @return the object name used.
+	 * @throws IllegalStateException if the metrics already are registered, or registration failed.
+	 */
+	public ObjectName registerMBean(String name)
+	{
+		if (m_objectName != null) throw new IllegalStateException("Metrics already registered as " + m_objectName + ".");
+		try
+		{
+			ObjectName objectName = new ObjectName("xtras.sql:type=DbPool,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			m_objectName = objectName;
+			return objectName;
+		}
+		catch (JMException e)
+		{
+			throw new IllegalStateException("Failed to register metrics '" + name + "'.", e);
+		}
+	}
+
+	/**
+	 * Unregisters these metrics from the platform MBean server, ignoring any errors.
+	 * <p/>
+	 * Calling this method when the metrics are not registered has no effect.
+	 */
+	public void unregisterMBean()
+	{
+		ObjectName objectName = m_objectName;
+		if (objectName == null) return;
+		m_objectName = null;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+		}
+		catch (JMException e)
+		{
+			// Ignore, the bean is already gone.
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DbPoolMetrics[acquire " + m_acquireWait + ", hold " + m_holdTime + ", "
+		       + getConnectionsBusy() + " busy, " + getPeakConnectionsBusy() + " peak, "
+		       + getAcquireTimeouts() + " timeouts]";
+	}
+}
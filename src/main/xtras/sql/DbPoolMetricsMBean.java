@@ -0,0 +1,37 @@
+package xtras.sql;
+
+/**
+ * The management interface of {@link DbPoolMetrics}.
+ * <p/>
+ * Durations are in ms.
+ *
+ * @author Christoffer Lerno
+ */
+public interface DbPoolMetricsMBean
+{
+	long getAcquireCount();
+
+	long getAcquireTimeouts();
+
+	double getAcquireWaitMean();
+
+	double getAcquireWait99Percentile();
+
+	double getAcquireWaitMax();
+
+	double getHoldTimeMean();
+
+	double getHoldTime99Percentile();
+
+	double getHoldTimeMax();
+
+	long getConnectionsCreated();
+
+	long getConnectionsDiscardedBroken();
+
+	long getConnectionsDiscardedIdle();
+
+	int getConnectionsBusy();
+
+	int getPeakConnectionsBusy();
+}
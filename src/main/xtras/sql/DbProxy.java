@@ -1,6 +1,7 @@
 package xtras.sql;
 
 import java.sql.SQLException;
+import java.util.List;
 
 /**
  * Implement DbProxy to allow a db proxy implementation be
@@ -23,6 +24,10 @@ public interface DbProxy
 
 	/**
 	 * Begin a database transaction with the given transaction isolation.
+	 * <p>
+	 * If already in a transaction, an implementation may begin a nested transaction,
+	 * which is ended by the next commit or rollback. A rollback of the nested
+	 * transaction only discards the changes made since it began.
 	 *
 	 * @param isolation the isolation level to use, or null for none.
 	 * @throws SQLException if there was any issue starting the transaction.
@@ -84,6 +89,53 @@ public interface DbProxy
 	 */
 	int update(String update, Object... args) throws SQLException;
 
+	/**
+	 * Executes an SQL update query when its result isn't needed right away.
+	 * <p/>
+	 * Inside a transaction, an implementation may queue the update and send it to the
+	 * database later, together with other queued updates, but always before the next
+	 * query or other statement and before commit returns. Errors are thrown from
+	 * the call that sends the update, at the latest from {@link #commit()}.
+	 * Outside of a transaction this is the same as {@link #update(String, Object[])}.
+	 *
+	 * @param update the sql update query, parameterized with '?'.
+	 * @param args the arguments to insert in the parameter slots.
+	 * @throws SQLException if there was an error executing the update, or an earlier queued update.
+	 */
+	void updateDeferred(String update, Object... args) throws SQLException;
+
+	/**
+	 * Executes an SQL update once for each row of arguments, using JDBC batches
+	 * to reduce the number of round-trips to the database.
+	 * <p/>
+	 * Large lists of rows are split into several batches.
+	 * Inside a transaction all batches are part of the transaction,
+	 * outside of a transaction each batch is committed as the driver
+	 * auto-commits it.
+	 *
+	 * @param update the sql update query, parameterized with '?'.
+	 * @param rows a list where each entry holds the arguments for one execution of the update.
+	 * @return the number of rows changed for each entry in {@code rows}, note that
+	 * drivers may return {@link java.sql.Statement#SUCCESS_NO_INFO} rather than the actual count.
+	 * @throws SQLException if there was an error executing the batch.
+	 */
+	int[] updateBatch(String update, List<Object[]> rows) throws SQLException;
+
+	/**
+	 * Executes an SQL insert once for each row of arguments, using JDBC batches
+	 * to reduce the number of round-trips to the database, and returns
+	 * the keys generated.
+	 * <p/>
+	 * Large lists of rows are split into several batches, see {@link #updateBatch}.
+	 *
+	 * @param insert the sql insert query, parameterized with '?'.
+	 * @param rows a list where each entry holds the arguments for one execution of the insert.
+	 * @return the keys generated by the inserts. Note that drivers differ in
+	 * which keys are returned for a batch.
+	 * @throws SQLException if there was an error executing the batch.
+	 */
+	<T> List<T> insertBatch(String insert, List<Object[]> rows) throws SQLException;
+
 	/**
 	 * Runs a query using a ResultProcessor to work on the ResultSet.
 	 * <p/>
@@ -99,6 +151,40 @@ public interface DbProxy
 	 */
 	<T> T query(ResultProcessor<T> processor, String query, Object... args) throws SQLException;
 
+	/**
+	 * Runs a query using a ResultProcessor to work on the ResultSet, using
+	 * {@code options} to control fetch size and the maximum number of rows read.
+	 * <p/>
+	 * Use this to stream large results through a processor without
+	 * the driver buffering the entire result in memory.
+	 *
+	 * @param options the options to use when reading the result.
+	 * @param processor a ResultProcessor to work on the ResultSet.
+	 * @param query the SQL query to execute.
+	 * @param args the arguments to insert at each '?' in the query string.
+	 * @return the result as generated by {@link ResultProcessor#getResult} after
+	 * it has worked on the result set.
+	 * @throws SQLException if there was an error performing the query.
+	 * @see QueryOptions
+	 */
+	<T> T query(QueryOptions options, ResultProcessor<T> processor, String query, Object... args) throws SQLException;
+
+	/**
+	 * Runs a query and returns a cursor which reads the rows lazily as it is iterated.
+	 * <p/>
+	 * The cursor holds its connection until it is closed or read to the end,
+	 * and must always be closed by the caller. A cursor opened in a transaction
+	 * uses the transaction's connection and is closed when the transaction ends.
+	 *
+	 * @param options the options to use when reading the result.
+	 * @param query the SQL query to execute.
+	 * @param args the arguments to insert at each '?' in the query string.
+	 * @return an open cursor.
+	 * @throws SQLException if there was an error performing the query.
+	 * @see Cursor
+	 */
+	<T> Cursor<T> cursor(QueryOptions options, String query, Object... args) throws SQLException;
+
 	/**
 	 * Checks if this proxy is valid (ie has not yet been shut down).
 	 *
@@ -169,16 +169,63 @@ public class DbProxyFake implements DbProxy
 		return result.next() ? (Integer) result.getObject(1) : 0;
 	}
 
+	/**
+	 * Runs {@link #update} immediately.
+	 */
+	public void updateDeferred(String update, Object... args) throws SQLException
+	{
+		update(update, args);
+	}
+
+	/**
+	 * Runs {@link #update} for each row, using the same fake responses.
+	 */
+	public int[] updateBatch(String update, List<Object[]> rows) throws SQLException
+	{
+		int[] result = new int[rows.size()];
+		int index = 0;
+		for (Object[] row : rows)
+		{
+			result[index++] = update(update, row);
+		}
+		return result;
+	}
+
+	/**
+	 * Runs {@link #insert} for each row, using the same fake responses.
+	 */
+	public <T> List<T> insertBatch(String insert, List<Object[]> rows) throws SQLException
+	{
+		List<T> keys = new ArrayList<T>(rows.size());
+		for (Object[] row : rows)
+		{
+			keys.add(this.<T>insert(insert, row));
+		}
+		return keys;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	public <T> T query(ResultProcessor<T> processor, String query, Object... args) throws SQLException
+	{
+		return query(QueryOptions.DEFAULT, processor, query, args);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * The fake ignores the fetch size, but will not return more rows than
+	 * the maximum number of rows set.
+	 */
+	public <T> T query(QueryOptions options, ResultProcessor<T> processor, String query, Object... args) throws SQLException
 	{
 		FakeResultSet result = getResult(query, args);
 		ResultSet resultSet = ObjectExtras.adapt(ResultSet.class, result);
+		int rows = 0;
 		while (resultSet.next())
 		{
-			if (!processor.process(resultSet))
+			if (!processor.process(resultSet) || ++rows == options.getMaxRows())
 			{
 				break;
 			}
@@ -186,6 +233,16 @@ public class DbProxyFake implements DbProxy
 		return processor.getResult();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * The fake ignores the query options.
+	 */
+	public <T> Cursor<T> cursor(QueryOptions options, String query, Object... args) throws SQLException
+	{
+		return new Cursor<T>(ObjectExtras.adapt(ResultSet.class, getResult(query, args)), null, null);
+	}
+
 	private static class FakeResultSet
 	{
 		private int m_row;
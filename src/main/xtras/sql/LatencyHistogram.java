@@ -0,0 +1,144 @@
+package xtras.sql;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of durations, using buckets with power of two bounds.
+ * <p/>
+ * Recording a value is a few atomic increments and does not allocate,
+ * so it is suitable for use on hot paths. In return percentiles are approximate:
+ * a percentile is reported as the upper bound of the bucket it falls in,
+ * which is at most twice the actual value.
+ *
+ * @author Christoffer Lerno
+ */
+public class LatencyHistogram
+{
+	private final static int BUCKETS = 64;
+
+	private final AtomicLongArray m_buckets;
+	private final AtomicLong m_count;
+	private final AtomicLong m_total;
+	private final AtomicLong m_max;
+
+	/**
+	 * Creates a new empty histogram.
+	 */
+	public LatencyHistogram()
+	{
+		m_buckets = new AtomicLongArray(BUCKETS);
+		m_count = new AtomicLong(0);
+		m_total = new AtomicLong(0);
+		m_max = new AtomicLong(0);
+	}
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos the duration in ns, negative values are recorded as 0.
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0) nanos = 0;
+		m_buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+		m_count.incrementAndGet();
+		m_total.addAndGet(nanos);
+		long max;
+		while (nanos > (max = m_max.get()))
+		{
+			if (m_max.compareAndSet(max, nanos)) break;
+		}
+	}
+
+	/**
+	 * Returns the number of recorded durations.
+	 *
+	 * @return the number of durations.
+	 */
+	public long getCount()
+	{
+		return m_count.get();
+	}
+
+	/**
+	 * Returns the sum of all recorded durations.
+	 *
+	 * @return the total in ns.
+	 */
+	public long getTotal()
+	{
+		return m_total.get();
+	}
+
+	/**
+	 * Returns the longest recorded duration.
+	 *
+	 * @return the maximum in ns, 0 if nothing has been recorded.
+	 */
+	public long getMax()
+	{
+		return m_max.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded durations.
+	 *
+	 * @return the mean in ns, 0 if nothing has been recorded.
+	 */
+	public double getMean()
+	{
+		long count = m_count.get();
+		return count == 0 ? 0 : (double) m_total.get() / count;
+	}
+
+	/**
+	 * Returns an approximate percentile of the recorded durations.
+	 *
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return an upper bound of the percentile in ns, 0 if nothing has been recorded.
+	 * @throws IllegalArgumentException if the percentile is outside of 0-100.
+	 */
+	public long getPercentile(double percentile)
+	{
+		if (percentile < 0 || percentile > 100)
+		{
+			throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+		}
+		long[] buckets = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			buckets[i] = m_buckets.get(i);
+			count += buckets[i];
+		}
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += buckets[i];
+			if (seen >= rank) return Math.min(upperBound(i), m_max.get());
+		}
+		return m_max.get();
+	}
+
+	/**
+	 * Returns the largest value that is recorded in a bucket, values are
+	 * recorded in the bucket given by their number of significant bits.
+	 *
+	 * @param bucket the index of the bucket.
+	 * @return the upper bound of the bucket.
+	 */
+	private static long upperBound(int bucket)
+	{
+		return (1L << bucket) - 1;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LatencyHistogram[count " + getCount() + ", mean " + (long) getMean() + " ns, p99 "
+		       + getPercentile(99) + " ns, max " + getMax() + " ns]";
+	}
+}
@@ -0,0 +1,65 @@
+package xtras.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * A column of {@code long} values, read using {@link SQL#getLong(java.sql.ResultSet, int, long)}.
+ *
+ * @author Christoffer Lerno
+ */
+public class LongColumn extends ResultColumn
+{
+	private final long m_nullValue;
+	private long[] m_values;
+
+	/**
+	 * Creates a new column.
+	 *
+	 * @param nullValue the value to store for null values.
+	 */
+	public LongColumn(long nullValue)
+	{
+		m_nullValue = nullValue;
+		m_values = new long[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Returns the value of a row.
+	 *
+	 * @param row the index of the row, starting with 0.
+	 * @return the value of the row.
+	 * @throws IndexOutOfBoundsException if the row is outside of the column.
+	 */
+	public long get(int row)
+	{
+		checkRow(row);
+		return m_values[row];
+	}
+
+	/**
+	 * Returns a copy of the values in the column.
+	 *
+	 * @return an array with one value per row.
+	 */
+	public long[] toArray()
+	{
+		return Arrays.copyOf(m_values, size());
+	}
+
+	protected int capacity()
+	{
+		return m_values.length;
+	}
+
+	protected void grow(int capacity)
+	{
+		m_values = Arrays.copyOf(m_values, capacity);
+	}
+
+	protected void read(ResultSet resultSet, int column, int row) throws SQLException
+	{
+		m_values[row] = SQL.getLong(resultSet, column, m_nullValue);
+	}
+}
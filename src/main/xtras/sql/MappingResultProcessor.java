@@ -0,0 +1,66 @@
+package xtras.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A processor that maps rows with a {@link RowMapper} and collects them in a list.
+ * <p/>
+ * The mapper is bound once to the result set, before the first row is mapped,
+ * and the binding is kept by the processor, so the mapper itself can be shared.
+ *
+ * @author Christoffer Lerno
+ */
+public class MappingResultProcessor<T> extends AbstractResultProcessor<List<T>>
+{
+	private final RowMapper<T> m_mapper;
+	private final int m_maxRows;
+	private ResultSet m_resultSet;
+	private RowBinding<T> m_binding;
+
+	/**
+	 * Creates a new processor collecting all rows.
+	 *
+	 * @param mapper the mapper to map each row with.
+	 */
+	public MappingResultProcessor(RowMapper<T> mapper)
+	{
+		this(mapper, 0);
+	}
+
+	/**
+	 * Creates a new processor collecting at the most {@code maxRows} rows.
+	 *
+	 * @param mapper the mapper to map each row with.
+	 * @param maxRows the maximum number of rows to read, 0 for all rows.
+	 */
+	public MappingResultProcessor(RowMapper<T> mapper, int maxRows)
+	{
+		m_mapper = mapper;
+		m_maxRows = maxRows;
+		m_resultSet = null;
+		m_binding = null;
+		setResult(new ArrayList<T>());
+	}
+
+	/**
+	 * Maps the current row and adds it to the list.
+	 *
+	 * @param resultSet the result set to handle.
+	 * @return true until {@code maxRows} rows have been read.
+	 * @throws SQLException if there was an exception reading from the result set.
+	 */
+	public boolean process(ResultSet resultSet) throws SQLException
+	{
+		if (resultSet != m_resultSet)
+		{
+			m_binding = m_mapper.bind(resultSet.getMetaData());
+			m_resultSet = resultSet;
+		}
+		List<T> result = getResult();
+		result.add(m_binding.mapRow(resultSet));
+		return m_maxRows == 0 || result.size() < m_maxRows;
+	}
+}
@@ -0,0 +1,243 @@
+package xtras.sql;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A query using named parameters on the form {@code :name}, parsed into a query with
+ * positional '?' parameters.
+ * <p/>
+ * The arguments for the positional query are bound from a map or from the properties of a bean:
+ * <pre>
+ * NamedQuery query = NamedQuery.parse("update players set chips = :chips where id = :id");
+ * Db.update(query.getSql(), query.bindBean(player));
+ * </pre>
+ * {@link Db} also has methods taking named queries with map parameters directly:
+ * <pre>
+ * Map&lt;String, Object&gt; params = new HashMap&lt;String, Object&gt;();
+ * params.put("id", playerId);
+ * String name = Db.queryOneNamed("select name from players where id = :id", params);
+ * </pre>
+ * A parameter may be used several times in a query. Colons inside string literals,
+ * quoted identifiers and comments are ignored, as are double colons such as
+ * PostgreSQL's {@code ::type} casts.
+ * <p/>
+ * Parsed queries are cached, since queries are usually constant strings. The cache
+ * keeps at most {@link #MAX_CACHED} queries, after which new queries are parsed
+ * without being cached.
+ * <p/>
+ * NamedQueries are immutable and may be shared between threads.
+ *
+ * @author Christoffer Lerno
+ */
+public final class NamedQuery
+{
+	/**
+	 * The maximum number of parsed queries to cache.
+	 */
+	public final static int MAX_CACHED = 1000;
+
+	private final static ConcurrentHashMap<String, NamedQuery> s_queries = new ConcurrentHashMap<String, NamedQuery>();
+	private final static ConcurrentHashMap<Class<?>, Map<String, Method>> s_getters
+			= new ConcurrentHashMap<Class<?>, Map<String, Method>>();
+
+	private final String m_sql;
+	private final String[] m_names;
+
+	private NamedQuery(String sql, String[] names)
+	{
+		m_sql = sql;
+		m_names = names;
+	}
+
+	/**
+	 * Returns the parsed form of a query with named parameters.
+	 *
+	 * @param namedSql the sql using named parameters.
+	 * @return the parsed query.
+	 */
+	public static NamedQuery parse(String namedSql)
+	{
+		NamedQuery query = s_queries.get(namedSql);
+		if (query != null) return query;
+		query = parseQuery(namedSql);
+		if (s_queries.size() < MAX_CACHED) s_queries.put(namedSql, query);
+		return query;
+	}
+
+	private static NamedQuery parseQuery(String namedSql)
+	{
+		StringBuilder sql = new StringBuilder(namedSql.length());
+		List<String> names = new ArrayList<String>();
+		int length = namedSql.length();
+		int i = 0;
+		while (i < length)
+		{
+			char c = namedSql.charAt(i);
+			int end = i + 1;
+			if (c == '\'' || c == '"' || c == '`')
+			{
+				end = namedSql.indexOf(c, i + 1);
+				end = end < 0 ? length : end + 1;
+			}
+			else if (c == '-' && namedSql.startsWith("--", i))
+			{
+				end = namedSql.indexOf('\n', i);
+				end = end < 0 ? length : end + 1;
+			}
+			else if (c == '/' && namedSql.startsWith("/*", i))
+			{
+				end = namedSql.indexOf("*/", i + 2);
+				end = end < 0 ? length : end + 2;
+			}
+			else if (c == ':' && i + 1 < length && namedSql.charAt(i + 1) == ':')
+			{
+				end = i + 2;
+			}
+			else if (c == ':' && i + 1 < length && Character.isJavaIdentifierStart(namedSql.charAt(i + 1)))
+			{
+				while (end < length && Character.isJavaIdentifierPart(namedSql.charAt(end)))
+				{
+					end++;
+				}
+				names.add(namedSql.substring(i + 1, end));
+				sql.append('?');
+				i = end;
+				continue;
+			}
+			sql.append(namedSql, i, end);
+			i = end;
+		}
+		return new NamedQuery(sql.toString(), names.toArray(new String[names.size()]));
+	}
+
+	/**
+	 * Returns the query with positional parameters.
+	 *
+	 * @return the sql with each named parameter replaced by '?'.
+	 */
+	public String getSql()
+	{
+		return m_sql;
+	}
+
+	/**
+	 * Returns the name of the parameter in each position of the query.
+	 *
+	 * @return the names of the parameters, in order.
+	 */
+	public List<String> getParameterNames()
+	{
+		return Collections.unmodifiableList(Arrays.asList(m_names));
+	}
+
+	/**
+	 * Creates the positional arguments of the query from a map.
+	 *
+	 * @param params the values of the parameters, by name.
+	 * @return the arguments to use with {@link #getSql()}.
+	 * @throws IllegalArgumentException if a parameter has no value in the map.
+	 */
+	public Object[] bind(Map<String, ?> params)
+	{
+		Object[] args = new Object[m_names.length];
+		for (int i = 0; i < m_names.length; i++)
+		{
+			Object value = params.get(m_names[i]);
+			if (value == null && !params.containsKey(m_names[i]))
+			{
+				throw new IllegalArgumentException("No value for parameter '" + m_names[i] + "'.");
+			}
+			args[i] = value;
+		}
+		return args;
+	}
+
+	/**
+	 * Creates the positional arguments of the query from the properties of a bean,
+	 * so that {@code :name} is bound to the result of {@code getName()} or {@code isName()}.
+	 *
+	 * @param bean the bean to read the parameters from.
+	 * @return the arguments to use with {@link #getSql()}.
+	 * @throws IllegalArgumentException if the bean has no readable property for a parameter,
+	 * or a property could not be read.
+	 */
+	public Object[] bindBean(Object bean)
+	{
+		Map<String, Method> getters = getGetters(bean.getClass());
+		Object[] args = new Object[m_names.length];
+		for (int i = 0; i < m_names.length; i++)
+		{
+			Method getter = getters.get(m_names[i]);
+			if (getter == null)
+			{
+				throw new IllegalArgumentException("No value for parameter '" + m_names[i] + "'.");
+			}
+			try
+			{
+				args[i] = getter.invoke(bean);
+			}
+			catch (IllegalAccessException e)
+			{
+				throw new IllegalArgumentException("Failed to read parameter '" + m_names[i] + "'.", e);
+			}
+			catch (InvocationTargetException e)
+			{
+				throw new IllegalArgumentException("Failed to read parameter '" + m_names[i] + "'.", e.getCause());
+			}
+		}
+		return args;
+	}
+
+	/**
+	 * Returns the getters of the readable properties of a class.
+	 *
+	 * @param type the class to look up.
+	 * @return the getters, by property name.
+	 */
+	private static Map<String, Method> getGetters(Class<?> type)
+	{
+		Map<String, Method> getters = s_getters.get(type);
+		if (getters != null) return getters;
+		getters = new HashMap<String, Method>();
+		try
+		{
+			for (PropertyDescriptor property : Introspector.getBeanInfo(type).getPropertyDescriptors())
+			{
+				Method getter = property.getReadMethod();
+				if (getter == null) continue;
+				try
+				{
+					getter.setAccessible(true);
+				}
+				catch (RuntimeException e)
+				{
+					// Public getters are still readable.
+				}
+				getters.put(property.getName(), getter);
+			}
+		}
+		catch (IntrospectionException e)
+		{
+			throw new IllegalArgumentException("Failed to read properties of " + type.getName() + ".", e);
+		}
+		s_getters.put(type, getters);
+		return getters;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "NamedQuery[" + m_sql + ", " + Arrays.toString(m_names) + "]";
+	}
+}
@@ -0,0 +1,422 @@
+package xtras.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The book-keeping a {@link DbPool} keeps for each of its connections.
+ * <p/>
+ * Ownership of a connection is decided by a compare-and-set on its state,
+ * so a connection may safely be reachable from several places in the pool
+ * at once (e.g. both the free list and the hand-off queue), whoever wins
+ * the state change owns the connection.
+ * <p/>
+ * The session settings of the connection are tracked, so that only settings that
+ * differ from the current ones are sent to the driver. The settings the connection
+ * was opened with are its defaults. Settings are left in place when the connection is released,
+ * and each user applies the settings it needs when acquiring the connection, so consecutive
+ * transactions with the same settings need no calls at all. Validating a connection may start
+ * a transaction while auto-commit is off, so such a transaction is rolled back after validation
+ * and the settings are treated as unknown until the next user applies its own.
+ *
+ * @author Christoffer Lerno
+ */
+class PooledConnection
+{
+	final static int FREE = 0;
+	final static int BUSY = 1;
+	final static int REMOVED = 2;
+	final static int QUARANTINED = 3;
+
+	private final Connection m_connection;
+	private final AtomicInteger m_state;
+	private volatile boolean m_queued;
+	private volatile long m_lastReleased;
+	private volatile long m_acquiredAt;
+	private volatile long m_lastValidated;
+	private final long m_created;
+	private final double m_lifetimeJitter;
+	private final StatementCache m_statementCache;
+	private final SessionState m_defaultSession;
+	// Only accessed by the owner of the connection, null if unknown.
+	private SessionState m_session;
+
+	/**
+	 * Creates a new pooled connection without a statement cache or session defaults.
+	 *
+	 * @param connection the connection to wrap, may be null for marker instances.
+	 * @param state the initial state of the connection.
+	 */
+	PooledConnection(Connection connection, int state)
+	{
+		this(connection, state, 0, null);
+	}
+
+	/**
+	 * Creates a new pooled connection.
+	 *
+	 * @param connection the connection to wrap, may be null for marker instances.
+	 * @param state the initial state of the connection.
+	 * @param statementCacheSize the maximum number of prepared statements to cache,
+	 * 0 to not cache statements.
+	 * @param session the current session settings of the connection, used as its defaults,
+	 * or null if unknown.
+	 */
+	PooledConnection(Connection connection, int state, int statementCacheSize, SessionState session)
+	{
+		m_connection = connection;
+		m_defaultSession = session;
+		m_session = session;
+		m_statementCache = statementCacheSize > 0 ? new StatementCache(statementCacheSize) : null;
+		m_state = new AtomicInteger(state);
+		m_queued = false;
+		m_created = System.currentTimeMillis();
+		m_lastReleased = m_created;
+		m_lastValidated = m_created;
+		m_lifetimeJitter = Math.random();
+		m_acquiredAt = 0;
+	}
+
+	/**
+	 * Returns the underlying jdbc connection.
+	 *
+	 * @return the jdbc connection.
+	 */
+	public Connection getConnection()
+	{
+		return m_connection;
+	}
+
+	/**
+	 * Returns the statement cache of this connection.
+	 * <p/>
+	 * The cache may only be used by the current owner of the connection.
+	 *
+	 * @return the statement cache, or null if statements should not be cached.
+	 */
+	public StatementCache getStatementCache()
+	{
+		return m_statementCache;
+	}
+
+	/**
+	 * Returns the session settings the connection was opened with.
+	 *
+	 * @return the default settings, or null if unknown.
+	 */
+	public SessionState getDefaultSession()
+	{
+		return m_defaultSession;
+	}
+
+	/**
+	 * Returns the session settings the connection is known to have.
+	 *
+	 * @return the current settings, or null if unknown.
+	 */
+	public SessionState getSession()
+	{
+		return m_session;
+	}
+
+	/**
+	 * Changes the session settings of the connection, only sending the settings
+	 * that differ from the current ones to the driver.
+	 * <p/>
+	 * When turning auto-commit off, the other settings are changed first, so that
+	 * they apply to the transaction. When turning it on, it is changed first, so the
+	 * other settings are not changed in the middle of a transaction.
+	 * <p/>
+	 * If the current settings are unknown, all settings are sent, and any transaction
+	 * left open on the connection is rolled back first so that it is neither committed
+	 * nor joined.
+	 * <p/>
+	 * This must only be called by the owner of the connection.
+	 *
+	 * @param session the settings to use.
+	 * @throws SQLException if a setting could not be changed, in which case the
+	 * settings of the connection are only known up to the failing setting.
+	 */
+	public void applySession(SessionState session) throws SQLException
+	{
+		SessionState current = m_session;
+		if (session.equals(current)) return;
+		if (current == null) rollbackSilently();
+		// Settings are unknown until all are set.
+		m_session = null;
+		if (session.isAutoCommit() && (current == null || !current.isAutoCommit()))
+		{
+			m_connection.setAutoCommit(true);
+		}
+		if (current == null || current.isReadOnly() != session.isReadOnly())
+		{
+			m_connection.setReadOnly(session.isReadOnly());
+		}
+		if (current == null || current.getIsolation() != session.getIsolation())
+		{
+			m_connection.setTransactionIsolation(session.getIsolation());
+		}
+		if (session.getCatalog() != null && (current == null || !session.getCatalog().equals(current.getCatalog())))
+		{
+			m_connection.setCatalog(session.getCatalog());
+		}
+		if (!session.isAutoCommit() && (current == null || current.isAutoCommit()))
+		{
+			m_connection.setAutoCommit(false);
+		}
+		m_session = session;
+	}
+
+	private void rollbackSilently()
+	{
+		try
+		{
+			m_connection.rollback();
+		}
+		catch (SQLException e)
+		{
+			// Some drivers refuse to rollback in auto-commit mode, where there is nothing to discard.
+		}
+	}
+
+	/**
+	 * Applies the default session settings, if they are known.
+	 * <p/>
+	 * This must only be called by the owner of the connection.
+	 *
+	 * @throws SQLException if a setting could not be applied.
+	 */
+	public void resetSession() throws SQLException
+	{
+		if (m_defaultSession != null) applySession(m_defaultSession);
+	}
+
+	/**
+	 * Forgets the session settings of the connection, used when the connection is handed
+	 * out to code that may change them without going through {@link #applySession}.
+	 * <p/>
+	 * This must only be called by the owner of the connection.
+	 */
+	public void invalidateSession()
+	{
+		m_session = null;
+	}
+
+	/**
+	 * Checks that the connection is alive using a validation policy.
+	 * <p/>
+	 * Unless the connection is known to be in auto-commit mode, the transaction the validation
+	 * may have started is rolled back and the session settings are forgotten, so the next user
+	 * neither joins nor commits it.
+	 * <p/>
+	 * This must only be called by the owner of the connection.
+	 *
+	 * @param policy the policy to validate with.
+	 * @return true if the connection is valid.
+	 */
+	public boolean validate(ValidationPolicy policy)
+	{
+		try
+		{
+			return policy.validate(m_connection);
+		}
+		finally
+		{
+			endValidation();
+		}
+	}
+
+	/**
+	 * Rolls back any transaction a validation of the connection may have started,
+	 * see {@link #validate(ValidationPolicy)}.
+	 * <p/>
+	 * This must only be called by the owner of the connection.
+	 */
+	public void endValidation()
+	{
+		SessionState session = m_session;
+		if (session == null || !session.isAutoCommit())
+		{
+			rollbackSilently();
+			m_session = null;
+		}
+	}
+
+	/**
+	 * Closes any cached statements and the connection, ignoring any errors.
+	 * <p/>
+	 * This must only be called by the owner of the connection, or after the
+	 * connection has been removed from the pool.
+	 */
+	public void close()
+	{
+		if (m_statementCache != null) m_statementCache.close();
+		SQL.closeSilently(m_connection);
+	}
+
+	/**
+	 * Attempts to take ownership of a free connection.
+	 *
+	 * @return true if the connection was free and is now busy, false otherwise.
+	 */
+	public boolean tryAcquire()
+	{
+		return m_state.compareAndSet(FREE, BUSY);
+	}
+
+	/**
+	 * Marks a busy connection as free, stamping the time of the release.
+	 *
+	 * @return true if the connection was busy, false if it was already released or removed.
+	 */
+	public boolean tryRelease()
+	{
+		if (m_state.get() != BUSY) return false;
+		m_lastReleased = System.currentTimeMillis();
+		return m_state.compareAndSet(BUSY, FREE);
+	}
+
+	/**
+	 * Marks a busy connection as free without updating the release time, used
+	 * by the pool when it has only borrowed the connection for maintenance.
+	 *
+	 * @return true if the connection was busy, false otherwise.
+	 */
+	public boolean tryReturn()
+	{
+		return m_state.compareAndSet(BUSY, FREE);
+	}
+
+	/**
+	 * Takes a busy connection out of use until it has been validated.
+	 *
+	 * @return true if the connection was busy and is now quarantined.
+	 */
+	public boolean tryQuarantine()
+	{
+		return m_state.compareAndSet(BUSY, QUARANTINED);
+	}
+
+	/**
+	 * Takes ownership of a quarantined connection, to validate and release it.
+	 *
+	 * @return true if the connection was quarantined and is now busy.
+	 */
+	public boolean tryUnquarantine()
+	{
+		return m_state.compareAndSet(QUARANTINED, BUSY);
+	}
+
+	/**
+	 * Marks the connection as removed from the pool.
+	 *
+	 * @param expectedState the state the connection must be in to be removed.
+	 * @return true if the connection was in the expected state and is now removed.
+	 */
+	public boolean tryRemove(int expectedState)
+	{
+		return m_state.compareAndSet(expectedState, REMOVED);
+	}
+
+	/**
+	 * Unconditionally marks the connection as removed.
+	 */
+	public void markRemoved()
+	{
+		m_state.set(REMOVED);
+	}
+
+	public int getState()
+	{
+		return m_state.get();
+	}
+
+	public boolean isFree()
+	{
+		return m_state.get() == FREE;
+	}
+
+	/**
+	 * Checks if this connection currently has an entry in the pool's free list.
+	 * <p/>
+	 * Note that the entry might be stale, in that the connection has been acquired
+	 * through some other route since it was queued.
+	 *
+	 * @return true if there is an entry in the free list.
+	 */
+	public boolean isQueued()
+	{
+		return m_queued;
+	}
+
+	public void setQueued(boolean queued)
+	{
+		m_queued = queued;
+	}
+
+	/**
+	 * Returns the last time this connection was released to the pool, or
+	 * the creation time if it has never been released.
+	 *
+	 * @return the time in ms.
+	 */
+	public long getLastReleased()
+	{
+		return m_lastReleased;
+	}
+
+	/**
+	 * Checks if the connection has exceeded its maximum lifetime.
+	 * <p/>
+	 * Each connection gets a random reduction of up to {@code jitter} of the maximum
+	 * lifetime, so that connections created at the same time are not all retired at once.
+	 *
+	 * @param now the current time in ms.
+	 * @param maxLifetime the maximum lifetime in ms, 0 for unlimited.
+	 * @param jitter the maximum fraction of the lifetime to subtract.
+	 * @return true if the connection should be retired.
+	 */
+	public boolean isExpired(long now, long maxLifetime, double jitter)
+	{
+		if (maxLifetime <= 0) return false;
+		return now - m_created >= maxLifetime - (long) (maxLifetime * jitter * m_lifetimeJitter);
+	}
+
+	/**
+	 * Returns the last time the connection was released or validated by the pool.
+	 *
+	 * @return the time in ms.
+	 */
+	public long getLastActive()
+	{
+		return Math.max(m_lastReleased, m_lastValidated);
+	}
+
+	public void setLastValidated(long lastValidated)
+	{
+		m_lastValidated = lastValidated;
+	}
+
+	/**
+	 * Returns the time the connection was acquired, as set by the pool
+	 * when it tracks how long connections are held.
+	 *
+	 * @return the time as given by {@link System#nanoTime()}, or 0 if not tracked.
+	 */
+	public long getAcquiredAt()
+	{
+		return m_acquiredAt;
+	}
+
+	public void setAcquiredAt(long acquiredAt)
+	{
+		m_acquiredAt = acquiredAt;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "PooledConnection[" + m_connection + ", state " + m_state.get() + "]";
+	}
+}
@@ -1,6 +1,8 @@
 package xtras.sql;
 
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This is a DbProxy that is backed by a DbPool. It uses thread local
@@ -10,17 +12,21 @@ import java.sql.SQLException;
  */
 public class PooledDbProxy implements DbProxy
 {
-	private final static ThreadLocal<DbConnection> s_connections = new ThreadLocal<DbConnection>()
-	{
-		@Override
-		protected DbConnection initialValue()
-		{
-			return new DbConnection();
-		}
-	};
+	/**
+	 * The default maximum number of rows sent in a single JDBC batch.
+	 */
+	public final static int DEFAULT_BATCH_SIZE = 500;
 
+	// The number of idle connection wrappers kept for reuse with transaction scoped state, a power of 2.
+	private final static int IDLE_CONNECTIONS = 16;
+
+	private final ThreadLocal<DbConnection> m_connections;
+	private final AtomicReferenceArray<DbConnection> m_idleConnections;
 	private final SchemaAliasTranslator m_translator;
 	private final DbPool m_pool;
+	private volatile int m_batchSize;
+	private volatile boolean m_transactionScopedState;
+	private volatile QueryListener m_queryListener;
 
 	/**
 	 * Creates a new PooledDbProxy that uses an underlying DbPool to
@@ -43,9 +49,129 @@ public class PooledDbProxy implements DbProxy
 	                     String password,
 	                     int poolSize) throws ClassNotFoundException
 	{
-		Class.forName(driverClassName);
-		m_pool = new DbPool(url, username, password, poolSize);
+		this(createPool(driverClassName, url, username, password, poolSize));
+	}
+
+	/**
+	 * Creates a new PooledDbProxy using an already configured DbPool.
+	 * <p>
+	 * Use this constructor to tune the pool, for example with {@link DbPool#setMinIdle(int)},
+	 * before it is put into use. Note that the jdbc driver must already
+	 * be loaded.
+	 *
+	 * @param pool the pool to acquire connections from.
+	 */
+	public PooledDbProxy(DbPool pool)
+	{
+		m_pool = pool;
+		m_connections = new ThreadLocal<DbConnection>();
+		m_idleConnections = new AtomicReferenceArray<DbConnection>(IDLE_CONNECTIONS);
 		m_translator = new SchemaAliasTranslator();
+		m_batchSize = DEFAULT_BATCH_SIZE;
+		m_transactionScopedState = false;
+		m_queryListener = null;
+	}
+
+	private static DbPool createPool(String driverClassName,
+	                                 String url,
+	                                 String username,
+	                                 String password,
+	                                 int poolSize) throws ClassNotFoundException
+	{
+		Class.forName(driverClassName);
+		return new DbPool(url, username, password, poolSize);
+	}
+
+	/**
+	 * Returns the pool backing this proxy.
+	 *
+	 * @return the underlying DbPool.
+	 */
+	public DbPool getPool()
+	{
+		return m_pool;
+	}
+
+	/**
+	 * Sets the maximum number of rows sent to the database in a single JDBC batch by
+	 * {@link #updateBatch} and {@link #insertBatch}. Larger lists of rows
+	 * are split into several batches.
+	 * <p/>
+	 * Default is {@link #DEFAULT_BATCH_SIZE}.
+	 *
+	 * @param batchSize the maximum number of rows in a batch.
+	 * @throws IllegalArgumentException if the batch size is less than 1.
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		if (batchSize < 1) throw new IllegalArgumentException("Batch size must be at least 1.");
+		m_batchSize = batchSize;
+	}
+
+	/**
+	 * Returns the maximum number of rows sent in a single JDBC batch.
+	 *
+	 * @return the batch size.
+	 */
+	public int getBatchSize()
+	{
+		return m_batchSize;
+	}
+
+	/**
+	 * Sets if the connection state of a thread should only be kept while the thread is
+	 * in a transaction.
+	 * <p/>
+	 * By default every thread using the proxy keeps its connection state in a thread local
+	 * for as long as the thread lives. When running many short-lived threads,
+	 * such as one lightweight thread per task, this means allocating and
+	 * holding state for threads which never start a transaction. With transaction scoped
+	 * state, calls outside of transactions borrow state shared by all threads, and the thread
+	 * local is only set from {@link #beginTransaction} until the transaction ends.
+	 * <p/>
+	 * Default is false.
+	 *
+	 * @param transactionScopedState true to only keep connection state during transactions.
+	 */
+	public void setTransactionScopedState(boolean transactionScopedState)
+	{
+		m_transactionScopedState = transactionScopedState;
+	}
+
+	/**
+	 * Checks if connection state is only kept while a thread is in a transaction.
+	 *
+	 * @return true if connection state is transaction scoped.
+	 * @see #setTransactionScopedState(boolean)
+	 */
+	public boolean isTransactionScopedState()
+	{
+		return m_transactionScopedState;
+	}
+
+	/**
+	 * Sets a listener to receive timings for every query, update and insert
+	 * run through this proxy, for example {@link QueryStatistics}.
+	 * <p/>
+	 * Cursors are not reported.
+	 * <p/>
+	 * Default is null.
+	 *
+	 * @param queryListener the listener, or null to not report any statements.
+	 */
+	public void setQueryListener(QueryListener queryListener)
+	{
+		m_queryListener = queryListener;
+	}
+
+	/**
+	 * Returns the listener receiving statement timings.
+	 *
+	 * @return the listener, or null if there is none.
+	 */
+	public QueryListener getQueryListener()
+	{
+		return m_queryListener;
 	}
 
 	/** {@inheritDoc} */
@@ -69,49 +195,344 @@ public class PooledDbProxy implements DbProxy
 
 	/**
 	 * Retrieves the thread-local connection.
+	 * <p/>
+	 * With transaction scoped state, a thread outside of a transaction borrows an
+	 * idle connection instead, which must be given back with {@link #releaseConnection}.
 	 *
 	 * @return the DbConnection for this thread.
 	 */
 	private DbConnection getConnection()
 	{
-		return s_connections.get();
+		DbConnection connection = m_connections.get();
+		if (connection == null)
+		{
+			if (m_transactionScopedState) return borrowIdleConnection();
+			connection = new DbConnection();
+			m_connections.set(connection);
+		}
+		return connection;
+	}
+
+	/**
+	 * Drops the thread-local connection and gives it back to the idle connections
+	 * if state is transaction scoped and the connection is not in a transaction.
+	 *
+	 * @param connection the connection used by this thread.
+	 */
+	private void releaseConnection(DbConnection connection)
+	{
+		if (!m_transactionScopedState || connection.isInTransaction()) return;
+		m_connections.remove();
+		int start = (int) Thread.currentThread().getId();
+		for (int i = 0; i < IDLE_CONNECTIONS; i++)
+		{
+			if (m_idleConnections.compareAndSet((start + i) & (IDLE_CONNECTIONS - 1), null, connection)) return;
+		}
+	}
+
+	/**
+	 * Takes one of the idle connections, or creates a new connection if there are none.
+	 *
+	 * @return a connection used by no other thread.
+	 */
+	private DbConnection borrowIdleConnection()
+	{
+		int start = (int) Thread.currentThread().getId();
+		for (int i = 0; i < IDLE_CONNECTIONS; i++)
+		{
+			int slot = (start + i) & (IDLE_CONNECTIONS - 1);
+			DbConnection connection = m_idleConnections.get(slot);
+			if (connection != null && m_idleConnections.compareAndSet(slot, connection, null)) return connection;
+		}
+		return new DbConnection();
 	}
 
 	/** {@inheritDoc} */
 	public void beginTransaction(TransactionIsolation isolation) throws SQLException
 	{
-		getConnection().beginTransaction(m_pool, isolation);
+		DbConnection connection = getConnection();
+		m_connections.set(connection);
+		try
+		{
+			connection.beginTransaction(m_pool, isolation);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
 	}
 
 	/** {@inheritDoc} */
 	public void rollback() throws SQLException
 	{
-		getConnection().rollback();
+		DbConnection connection = getConnection();
+		try
+		{
+			connection.rollback();
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
 	}
 
 	/** {@inheritDoc} */
 	public void commit() throws SQLException
 	{
-		getConnection().commit();
+		DbConnection connection = getConnection();
+		try
+		{
+			connection.commit();
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
 	}
 
 	/** {@inheritDoc} */
 	@SuppressWarnings({"RedundantTypeArguments"})
 	public <T> T insert(String insert, Object... args) throws SQLException
 	{
-		return (T) getConnection().insert(m_pool, translate(insert), args);
+		return (T) insertKey(insert, args);
+	}
+
+	/**
+	 * Runs an insert, notifying the query listener if there is one.
+	 *
+	 * @param insert the sql insert query, parameterized with '?'.
+	 * @param args the arguments to insert in the parameter slots.
+	 * @return the generated key(s).
+	 * @throws SQLException if the insert failed.
+	 */
+	private Object insertKey(String insert, Object... args) throws SQLException
+	{
+		String sql = translate(insert);
+		DbConnection connection = getConnection();
+		try
+		{
+			QueryListener listener = m_queryListener;
+			if (listener == null) return connection.insert(m_pool, sql, args);
+			long startTime = System.nanoTime();
+			SQLException error = null;
+			int rows = 0;
+			try
+			{
+				Object key = connection.insert(m_pool, sql, args);
+				rows = 1;
+				return key;
+			}
+			catch (SQLException e)
+			{
+				error = e;
+				throw e;
+			}
+			finally
+			{
+				fireQueryExecuted(listener, connection, QueryEvent.Type.INSERT, sql, args.length, rows, startTime, 0, error);
+			}
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	/** {@inheritDoc} */
+	public int[] updateBatch(String update, List<Object[]> rows) throws SQLException
+	{
+		String sql = translate(update);
+		DbConnection connection = getConnection();
+		try
+		{
+			QueryListener listener = m_queryListener;
+			if (listener == null) return connection.updateBatch(m_pool, sql, rows, m_batchSize);
+			long startTime = System.nanoTime();
+			SQLException error = null;
+			try
+			{
+				return connection.updateBatch(m_pool, sql, rows, m_batchSize);
+			}
+			catch (SQLException e)
+			{
+				error = e;
+				throw e;
+			}
+			finally
+			{
+				fireQueryExecuted(listener, connection, QueryEvent.Type.BATCH, sql, bindCount(rows), rows.size(),
+				                  startTime, 0, error);
+			}
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@SuppressWarnings({"unchecked"})
+	public <T> List<T> insertBatch(String insert, List<Object[]> rows) throws SQLException
+	{
+		String sql = translate(insert);
+		DbConnection connection = getConnection();
+		try
+		{
+			QueryListener listener = m_queryListener;
+			if (listener == null) return (List<T>) connection.insertBatch(m_pool, sql, rows, m_batchSize);
+			long startTime = System.nanoTime();
+			SQLException error = null;
+			try
+			{
+				return (List<T>) connection.insertBatch(m_pool, sql, rows, m_batchSize);
+			}
+			catch (SQLException e)
+			{
+				error = e;
+				throw e;
+			}
+			finally
+			{
+				fireQueryExecuted(listener, connection, QueryEvent.Type.BATCH, sql, bindCount(rows), rows.size(),
+				                  startTime, 0, error);
+			}
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
 	}
 
 	/** {@inheritDoc} */
 	public <T> T query(ResultProcessor<T> processor, String query, Object... args) throws SQLException
 	{
-		return getConnection().query(m_pool, processor, translate(query), args);
+		return query(QueryOptions.DEFAULT, processor, query, args);
+	}
+
+	/** {@inheritDoc} */
+	public <T> T query(QueryOptions options, ResultProcessor<T> processor, String query, Object... args) throws SQLException
+	{
+		String sql = translate(query);
+		DbConnection connection = getConnection();
+		try
+		{
+			QueryListener listener = m_queryListener;
+			if (listener == null) return connection.query(m_pool, options, processor, sql, args);
+			CountingResultProcessor<T> counter = new CountingResultProcessor<T>(processor);
+			long startTime = System.nanoTime();
+			SQLException error = null;
+			try
+			{
+				return connection.query(m_pool, options, counter, sql, args);
+			}
+			catch (SQLException e)
+			{
+				error = e;
+				throw e;
+			}
+			finally
+			{
+				fireQueryExecuted(listener, connection, QueryEvent.Type.QUERY, sql, args.length, counter.getRows(),
+				                  startTime, counter.getFirstRowTime(), error);
+			}
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	/** {@inheritDoc} */
+	public <T> Cursor<T> cursor(QueryOptions options, String query, Object... args) throws SQLException
+	{
+		DbConnection connection = getConnection();
+		try
+		{
+			return connection.cursor(m_pool, options, translate(query), args);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Inside a transaction, updates are queued and sent as JDBC batches of at most
+	 * {@link #getBatchSize()} updates, saving a round-trip per update. Queued updates
+	 * are not reported to the {@link QueryListener} individually.
+	 */
+	public void updateDeferred(String update, Object... args) throws SQLException
+	{
+		DbConnection connection = m_connections.get();
+		if (connection == null || !connection.isInTransaction())
+		{
+			update(update, args);
+			return;
+		}
+		connection.deferUpdate(m_pool, m_batchSize, translate(update), args);
 	}
 
 	/** {@inheritDoc} */
 	public int update(String update, Object... args) throws SQLException
 	{
-		return getConnection().update(m_pool, translate(update), args);
+		String sql = translate(update);
+		DbConnection connection = getConnection();
+		try
+		{
+			QueryListener listener = m_queryListener;
+			if (listener == null) return connection.update(m_pool, sql, args);
+			long startTime = System.nanoTime();
+			SQLException error = null;
+			int rows = 0;
+			try
+			{
+				rows = connection.update(m_pool, sql, args);
+				return rows;
+			}
+			catch (SQLException e)
+			{
+				error = e;
+				throw e;
+			}
+			finally
+			{
+				fireQueryExecuted(listener, connection, QueryEvent.Type.UPDATE, sql, args.length, rows, startTime, 0, error);
+			}
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	private static int bindCount(List<Object[]> rows)
+	{
+		return rows.isEmpty() ? 0 : rows.get(0).length;
+	}
+
+	/**
+	 * Reports a completed statement to the query listener.
+	 *
+	 * @param listener the listener to report to.
+	 * @param connection the connection that ran the statement.
+	 * @param type the kind of call.
+	 * @param sql the translated sql.
+	 * @param bindCount the number of bound parameters.
+	 * @param rows the number of rows processed.
+	 * @param startTime the start of the call, from {@link System#nanoTime()}.
+	 * @param firstRowTime the time the first row was read, 0 if no row was read.
+	 * @param error the error of the statement, or null.
+	 */
+	private static void fireQueryExecuted(QueryListener listener, DbConnection connection, QueryEvent.Type type,
+	                                      String sql, int bindCount, int rows, long startTime, long firstRowTime,
+	                                      SQLException error)
+	{
+		long totalTime = System.nanoTime() - startTime;
+		listener.queryExecuted(new QueryEvent(type, sql, bindCount, rows,
+		                                      firstRowTime == 0 ? totalTime : firstRowTime - startTime,
+		                                      totalTime, connection.getLastPoolWait(), error));
 	}
 
 	/**
@@ -141,7 +562,8 @@ public class PooledDbProxy implements DbProxy
 	 */
 	public boolean inTransaction()
 	{
-		return getConnection().isInTransaction();
+		DbConnection connection = m_connections.get();
+		return connection != null && connection.isInTransaction();
 	}
 
 }
@@ -0,0 +1,146 @@
+package xtras.sql;
+
+import java.sql.SQLException;
+
+/**
+ * Describes a completed statement, as reported to a {@link QueryListener}.
+ * <p/>
+ * All times are in ns.
+ *
+ * @author Christoffer Lerno
+ */
+public final class QueryEvent
+{
+	/**
+	 * The kind of call that ran the statement.
+	 */
+	public enum Type
+	{
+		QUERY,
+		UPDATE,
+		INSERT,
+		BATCH
+	}
+
+	private final Type m_type;
+	private final String m_sql;
+	private final int m_bindCount;
+	private final int m_rows;
+	private final long m_firstRowTime;
+	private final long m_totalTime;
+	private final long m_poolWaitTime;
+	private final SQLException m_error;
+
+	/**
+	 * Creates a new event.
+	 *
+	 * @param type the kind of call that ran the statement.
+	 * @param sql the sql of the statement, after schema aliases have been replaced.
+	 * @param bindCount the number of parameters bound to the statement.
+	 * @param rows the number of rows read, changed or inserted.
+	 * @param firstRowTime the time until the first row was read, for updates the same as total time.
+	 * @param totalTime the total time of the call, including waiting for a connection.
+	 * @param poolWaitTime the time spent waiting for a connection.
+	 * @param error the error thrown by the statement, or null if it completed successfully.
+	 */
+	public QueryEvent(Type type, String sql, int bindCount, int rows, long firstRowTime, long totalTime,
+	                  long poolWaitTime, SQLException error)
+	{
+		m_type = type;
+		m_sql = sql;
+		m_bindCount = bindCount;
+		m_rows = rows;
+		m_firstRowTime = firstRowTime;
+		m_totalTime = totalTime;
+		m_poolWaitTime = poolWaitTime;
+		m_error = error;
+	}
+
+	public Type getType()
+	{
+		return m_type;
+	}
+
+	/**
+	 * Returns the sql of the statement, with schema aliases replaced.
+	 *
+	 * @return the sql of the statement.
+	 */
+	public String getSql()
+	{
+		return m_sql;
+	}
+
+	/**
+	 * Returns the number of parameters bound to the statement, for batches
+	 * the number of parameters for each row.
+	 *
+	 * @return the number of bound parameters.
+	 */
+	public int getBindCount()
+	{
+		return m_bindCount;
+	}
+
+	/**
+	 * Returns the number of rows processed: rows read by a query, rows changed
+	 * by an update, and rows sent for inserts and batches.
+	 *
+	 * @return the number of rows.
+	 */
+	public int getRows()
+	{
+		return m_rows;
+	}
+
+	/**
+	 * Returns the time from the start of the call until the first row had been read.
+	 * <p/>
+	 * For calls that do not read rows, or queries that returned no rows,
+	 * this is the same as the total time.
+	 *
+	 * @return the time to first row in ns.
+	 */
+	public long getFirstRowTime()
+	{
+		return m_firstRowTime;
+	}
+
+	/**
+	 * Returns the total time of the call, including the time spent waiting for a connection.
+	 *
+	 * @return the total time in ns.
+	 */
+	public long getTotalTime()
+	{
+		return m_totalTime;
+	}
+
+	/**
+	 * Returns the time spent waiting for a connection from the pool.
+	 *
+	 * @return the pool wait in ns, 0 if the call used the connection of a transaction.
+	 */
+	public long getPoolWaitTime()
+	{
+		return m_poolWaitTime;
+	}
+
+	/**
+	 * Returns the error of the statement.
+	 *
+	 * @return the error, or null if the statement completed successfully.
+	 */
+	public SQLException getError()
+	{
+		return m_error;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "QueryEvent[" + m_type + " '" + m_sql + "', " + m_bindCount + " bound, " + m_rows + " rows, first row "
+		       + m_firstRowTime + " ns, total " + m_totalTime + " ns, pool wait " + m_poolWaitTime + " ns"
+		       + (m_error == null ? "" : ", error " + m_error.getMessage()) + "]";
+	}
+}
@@ -0,0 +1,21 @@
+package xtras.sql;
+
+/**
+ * Receives an event for every statement run through a {@link PooledDbProxy},
+ * see {@link PooledDbProxy#setQueryListener(QueryListener)}.
+ * <p/>
+ * Events are delivered synchronously on the thread running the statement, after
+ * the statement has completed, so implementations must be thread-safe and fast.
+ *
+ * @author Christoffer Lerno
+ * @see QueryStatistics
+ */
+public interface QueryListener
+{
+	/**
+	 * Called when a statement has completed, successfully or not.
+	 *
+	 * @param event the timings and result of the statement.
+	 */
+	void queryExecuted(QueryEvent event);
+}
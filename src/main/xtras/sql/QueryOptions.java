@@ -0,0 +1,95 @@
+package xtras.sql;
+
+/**
+ * Options to control how a query reads its result from the database.
+ * <p/>
+ * Queries are always run with a forward-only, read-only cursor. By default
+ * the driver decides how many rows to fetch at a time, which for some drivers
+ * means buffering the entire result in memory before the first row is processed.
+ * Setting a fetch size lets the driver stream the result instead, so that
+ * a {@link ResultProcessor} can walk very large results in constant memory:
+ * <pre>
+ * // Stream all rows, fetching 1000 rows per round-trip.
+ * Db.query(QueryOptions.streaming(1000), new ExportProcessor(), "select * from events");
+ * </pre>
+ * Note that drivers interpret the fetch size differently. MySQL's driver, for example,
+ * only streams rows when the fetch size is {@link Integer#MIN_VALUE}.
+ * <p/>
+ * QueryOptions are immutable and may be shared between threads.
+ *
+ * @author Christoffer Lerno
+ */
+public final class QueryOptions
+{
+	/**
+	 * The options used by queries that don't specify any, leaving fetch size and
+	 * maximum number of rows to the driver.
+	 */
+	public final static QueryOptions DEFAULT = new QueryOptions(0, 0);
+
+	private final int m_fetchSize;
+	private final int m_maxRows;
+
+	/**
+	 * Creates a new set of query options.
+	 *
+	 * @param fetchSize the number of rows the driver should fetch at a time,
+	 * 0 to let the driver decide.
+	 * @param maxRows the maximum number of rows to read, 0 for no limit.
+	 */
+	public QueryOptions(int fetchSize, int maxRows)
+	{
+		if (maxRows < 0) throw new IllegalArgumentException("Max rows must not be negative.");
+		m_fetchSize = fetchSize;
+		m_maxRows = maxRows;
+	}
+
+	/**
+	 * Creates options that stream the result, fetching {@code fetchSize} rows at a time.
+	 *
+	 * @param fetchSize the number of rows the driver should fetch at a time.
+	 * @return the query options.
+	 */
+	public static QueryOptions streaming(int fetchSize)
+	{
+		return new QueryOptions(fetchSize, 0);
+	}
+
+	/**
+	 * Returns the number of rows the driver should fetch at a time.
+	 *
+	 * @return the fetch size, 0 if the driver decides.
+	 * @see java.sql.Statement#setFetchSize(int)
+	 */
+	public int getFetchSize()
+	{
+		return m_fetchSize;
+	}
+
+	/**
+	 * Returns the maximum number of rows to read.
+	 *
+	 * @return the maximum number of rows, 0 for no limit.
+	 * @see java.sql.Statement#setMaxRows(int)
+	 */
+	public int getMaxRows()
+	{
+		return m_maxRows;
+	}
+
+	/**
+	 * Checks if these options differ from the driver defaults.
+	 *
+	 * @return true if fetch size or max rows is set.
+	 */
+	boolean isCustomized()
+	{
+		return m_fetchSize != 0 || m_maxRows != 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "QueryOptions[fetch size " + m_fetchSize + ", max rows " + m_maxRows + "]";
+	}
+}
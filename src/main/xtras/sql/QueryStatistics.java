@@ -0,0 +1,283 @@
+package xtras.sql;
+
+import xtras.time.Time;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link QueryListener} keeping latency histograms for each distinct sql statement,
+ * and a log of the most recent slow statements:
+ * <pre>
+ * QueryStatistics statistics = new QueryStatistics();
+ * statistics.setSlowQueryThreshold(200);
+ * proxy.setQueryListener(statistics);
+ * ...
+ * for (QueryEvent event : statistics.getSlowQueries()) { ... }
+ * </pre>
+ * To bound memory use, only a limited number of distinct statements are tracked.
+ * Statements seen after the limit has been reached are only counted,
+ * see {@link #getUntracked()}.
+ * <p/>
+ * Subclasses may override {@link #slowQuery(QueryEvent)}, for example to write slow
+ * statements to a log.
+ *
+ * @author Christoffer Lerno
+ */
+public class QueryStatistics implements QueryListener
+{
+	/**
+	 * The default maximum number of distinct statements tracked.
+	 */
+	public final static int DEFAULT_MAX_STATEMENTS = 1000;
+
+	/**
+	 * The default number of slow statements kept in the log.
+	 */
+	public final static int DEFAULT_SLOW_LOG_SIZE = 100;
+
+	private final ConcurrentHashMap<String, StatementStatistics> m_statements;
+	private final ConcurrentLinkedQueue<QueryEvent> m_slowQueries;
+	private final AtomicInteger m_slowQueryCount;
+	private final AtomicLong m_untracked;
+	private final int m_maxStatements;
+	private final int m_slowLogSize;
+	private volatile long m_slowQueryThreshold;
+
+	/**
+	 * Creates new statistics with default limits.
+	 */
+	public QueryStatistics()
+	{
+		this(DEFAULT_MAX_STATEMENTS, DEFAULT_SLOW_LOG_SIZE);
+	}
+
+	/**
+	 * Creates new statistics.
+	 *
+	 * @param maxStatements the maximum number of distinct statements to track.
+	 * @param slowLogSize the number of slow statements to keep in the log.
+	 */
+	public QueryStatistics(int maxStatements, int slowLogSize)
+	{
+		m_maxStatements = maxStatements;
+		m_slowLogSize = slowLogSize;
+		m_statements = new ConcurrentHashMap<String, StatementStatistics>();
+		m_slowQueries = new ConcurrentLinkedQueue<QueryEvent>();
+		m_slowQueryCount = new AtomicInteger(0);
+		m_untracked = new AtomicLong(0);
+		m_slowQueryThreshold = Time.ONE_SECOND;
+	}
+
+	/**
+	 * Sets the time a statement must take to be considered slow.
+	 * <p/>
+	 * Default is 1 second.
+	 *
+	 * @param slowQueryThreshold the threshold in ms, a negative value disables the slow query log.
+	 */
+	public void setSlowQueryThreshold(long slowQueryThreshold)
+	{
+		m_slowQueryThreshold = slowQueryThreshold;
+	}
+
+	/**
+	 * Returns the time a statement must take to be considered slow.
+	 *
+	 * @return the threshold in ms, negative if disabled.
+	 */
+	public long getSlowQueryThreshold()
+	{
+		return m_slowQueryThreshold;
+	}
+
+	public void queryExecuted(QueryEvent event)
+	{
+		StatementStatistics statistics = m_statements.get(event.getSql());
+		if (statistics == null && m_statements.size() < m_maxStatements)
+		{
+			StatementStatistics newStatistics = new StatementStatistics();
+			statistics = m_statements.putIfAbsent(event.getSql(), newStatistics);
+			if (statistics == null) statistics = newStatistics;
+		}
+		if (statistics == null)
+		{
+			m_untracked.incrementAndGet();
+		}
+		else
+		{
+			statistics.record(event);
+		}
+		long threshold = m_slowQueryThreshold;
+		if (threshold >= 0 && event.getTotalTime() >= TimeUnit.MILLISECONDS.toNanos(threshold))
+		{
+			slowQuery(event);
+		}
+	}
+
+	/**
+	 * Called for every statement slower than the slow query threshold.
+	 * <p/>
+	 * The default implementation adds the statement to the slow query log,
+	 * removing the oldest entry if the log is full.
+	 *
+	 * @param event the slow statement.
+	 */
+	protected void slowQuery(QueryEvent event)
+	{
+		m_slowQueries.offer(event);
+		if (m_slowQueryCount.incrementAndGet() > m_slowLogSize)
+		{
+			if (m_slowQueries.poll() != null) m_slowQueryCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the most recent slow statements, oldest first.
+	 *
+	 * @return a copy of the slow query log.
+	 */
+	public List<QueryEvent> getSlowQueries()
+	{
+		return new ArrayList<QueryEvent>(m_slowQueries);
+	}
+
+	/**
+	 * Returns the statistics for a statement.
+	 *
+	 * @param sql the sql of the statement, with schema aliases replaced.
+	 * @return the statistics, or null if the statement is not tracked.
+	 */
+	public StatementStatistics getStatistics(String sql)
+	{
+		return m_statements.get(sql);
+	}
+
+	/**
+	 * Returns the statistics for all tracked statements.
+	 *
+	 * @return an unmodifiable snapshot of the statistics keyed on sql.
+	 */
+	public Map<String, StatementStatistics> getStatements()
+	{
+		return Collections.unmodifiableMap(new HashMap<String, StatementStatistics>(m_statements));
+	}
+
+	/**
+	 * Returns the number of statements that were not tracked because the
+	 * maximum number of distinct statements had been reached.
+	 *
+	 * @return the number of untracked statements.
+	 */
+	public long getUntracked()
+	{
+		return m_untracked.get();
+	}
+
+	/**
+	 * Clears all statistics and the slow query log.
+	 */
+	public void reset()
+	{
+		m_statements.clear();
+		m_slowQueries.clear();
+		m_slowQueryCount.set(0);
+		m_untracked.set(0);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "QueryStatistics[" + m_statements.size() + " statements, " + m_slowQueryCount.get() + " slow]";
+	}
+
+	/**
+	 * The statistics collected for a single sql statement.
+	 */
+	public static class StatementStatistics
+	{
+		private final LatencyHistogram m_totalTime;
+		private final LatencyHistogram m_firstRowTime;
+		private final LatencyHistogram m_poolWaitTime;
+		private final AtomicLong m_rows;
+		private final AtomicLong m_errors;
+
+		StatementStatistics()
+		{
+			m_totalTime = new LatencyHistogram();
+			m_firstRowTime = new LatencyHistogram();
+			m_poolWaitTime = new LatencyHistogram();
+			m_rows = new AtomicLong(0);
+			m_errors = new AtomicLong(0);
+		}
+
+		void record(QueryEvent event)
+		{
+			m_totalTime.record(event.getTotalTime());
+			m_firstRowTime.record(event.getFirstRowTime());
+			m_poolWaitTime.record(event.getPoolWaitTime());
+			m_rows.addAndGet(event.getRows());
+			if (event.getError() != null) m_errors.incrementAndGet();
+		}
+
+		/**
+		 * Returns the number of times the statement has been run.
+		 *
+		 * @return the number of executions.
+		 */
+		public long getCount()
+		{
+			return m_totalTime.getCount();
+		}
+
+		public LatencyHistogram getTotalTime()
+		{
+			return m_totalTime;
+		}
+
+		public LatencyHistogram getFirstRowTime()
+		{
+			return m_firstRowTime;
+		}
+
+		public LatencyHistogram getPoolWaitTime()
+		{
+			return m_poolWaitTime;
+		}
+
+		/**
+		 * Returns the total number of rows processed by the statement.
+		 *
+		 * @return the number of rows.
+		 */
+		public long getRows()
+		{
+			return m_rows.get();
+		}
+
+		/**
+		 * Returns the number of times the statement failed.
+		 *
+		 * @return the number of errors.
+		 */
+		public long getErrors()
+		{
+			return m_errors.get();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "StatementStatistics[" + getCount() + " runs, " + getRows() + " rows, "
+			       + getErrors() + " errors, total " + m_totalTime + "]";
+		}
+	}
+}
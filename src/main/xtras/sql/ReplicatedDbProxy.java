@@ -0,0 +1,395 @@
+package xtras.sql;
+
+import xtras.time.Time;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A DbProxy routing reads to a set of replicas and everything else to a primary database.
+ * <p/>
+ * Queries and cursors outside of a transaction are sent to one of the replicas,
+ * while updates, inserts and everything inside a transaction go to the primary.
+ * Each endpoint is a separate {@link PooledDbProxy} with its own {@link DbPool}:
+ * <pre>
+ * List&lt;PooledDbProxy&gt; replicas = new ArrayList&lt;PooledDbProxy&gt;();
+ * replicas.add(new PooledDbProxy(driver, "jdbc:mysql://replica1/poker", user, password, 20));
+ * replicas.add(new PooledDbProxy(driver, "jdbc:mysql://replica2/poker", user, password, 20));
+ * Db.registerDb("pokerdb", new ReplicatedDbProxy(new PooledDbProxy(driver, "jdbc:mysql://primary/poker",
+ *                                                                  user, password, 10), replicas));
+ * </pre>
+ * A replica that fails with a connection error (an SQL state in class "08", which includes
+ * timing out waiting for a connection from its pool) is ejected for a while, see
+ * {@link #setEjectTime(long)}, and the query is retried on another replica. A query is only
+ * retried if no rows were passed to its processor yet, as they cannot be taken back.
+ * When no replica is available, reads go to the primary.
+ * <p/>
+ * Note that replicas may lag behind the primary, so a read directly after a write outside
+ * of a transaction might not see the write.
+ *
+ * @author Christoffer Lerno
+ */
+public class ReplicatedDbProxy implements DbProxy
+{
+	/**
+	 * How a replica is picked for each read.
+	 */
+	public enum Balancing
+	{
+		/**
+		 * Use each replica in turn.
+		 */
+		ROUND_ROBIN,
+
+		/**
+		 * Use the replica with the fewest busy connections.
+		 */
+		LEAST_BUSY
+	}
+
+	private final PooledDbProxy m_primary;
+	private final List<Replica> m_replicas;
+	private final AtomicInteger m_next;
+	private volatile Balancing m_balancing;
+	private volatile long m_ejectTime;
+
+	/**
+	 * Creates a new replicated proxy.
+	 *
+	 * @param primary the proxy for the primary database.
+	 * @param replicas the proxies for the replicas, may be empty.
+	 */
+	public ReplicatedDbProxy(PooledDbProxy primary, List<PooledDbProxy> replicas)
+	{
+		m_primary = primary;
+		List<Replica> list = new ArrayList<Replica>(replicas.size());
+		for (PooledDbProxy replica : replicas)
+		{
+			list.add(new Replica(replica));
+		}
+		m_replicas = Collections.unmodifiableList(list);
+		m_next = new AtomicInteger(0);
+		m_balancing = Balancing.ROUND_ROBIN;
+		m_ejectTime = Time.TEN_SECONDS;
+	}
+
+	/**
+	 * Returns the proxy of the primary database.
+	 *
+	 * @return the primary proxy.
+	 */
+	public PooledDbProxy getPrimary()
+	{
+		return m_primary;
+	}
+
+	/**
+	 * Sets how replicas are picked for reads.
+	 * <p/>
+	 * Default is {@link Balancing#ROUND_ROBIN}.
+	 *
+	 * @param balancing the balancing to use.
+	 */
+	public void setBalancing(Balancing balancing)
+	{
+		m_balancing = balancing;
+	}
+
+	public Balancing getBalancing()
+	{
+		return m_balancing;
+	}
+
+	/**
+	 * Sets how long a replica is left out after a connection error.
+	 * <p/>
+	 * Default is 10 seconds.
+	 *
+	 * @param ejectTime the time in ms.
+	 */
+	public void setEjectTime(long ejectTime)
+	{
+		m_ejectTime = ejectTime;
+	}
+
+	public long getEjectTime()
+	{
+		return m_ejectTime;
+	}
+
+	/**
+	 * Returns the number of replicas currently available for reads.
+	 *
+	 * @return the number of replicas that are not ejected.
+	 */
+	public int getAvailableReplicas()
+	{
+		long now = System.currentTimeMillis();
+		int available = 0;
+		for (Replica replica : m_replicas)
+		{
+			if (replica.isAvailable(now)) available++;
+		}
+		return available;
+	}
+
+	/**
+	 * Picks the replica to use for the next read.
+	 *
+	 * @param now the current time in ms.
+	 * @return the replica, or null if no replica is available.
+	 */
+	private Replica pickReplica(long now)
+	{
+		int size = m_replicas.size();
+		if (size == 0) return null;
+		if (m_balancing == Balancing.LEAST_BUSY)
+		{
+			Replica best = null;
+			int leastBusy = Integer.MAX_VALUE;
+			for (Replica replica : m_replicas)
+			{
+				if (!replica.isAvailable(now)) continue;
+				int busy = replica.getProxy().getPool().getConnectionsBusy();
+				if (busy < leastBusy)
+				{
+					best = replica;
+					leastBusy = busy;
+				}
+			}
+			return best;
+		}
+		int start = m_next.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < size; i++)
+		{
+			Replica replica = m_replicas.get((start + i) % size);
+			if (replica.isAvailable(now)) return replica;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks if an exception means the database could not be reached.
+	 *
+	 * @param e the exception to check.
+	 * @return true if the SQL state is a connection exception.
+	 */
+	private static boolean isConnectionError(SQLException e)
+	{
+		String state = e.getSQLState();
+		return state != null && state.startsWith("08");
+	}
+
+	/**
+	 * Runs a read on a replica, falling back on other replicas and then the primary
+	 * if the replicas cannot be reached. Inside a transaction, the read always goes to the primary.
+	 *
+	 * @param read the read to run.
+	 * @return the result of the read.
+	 * @throws SQLException if the read failed.
+	 */
+	private <T> T read(Read<T> read) throws SQLException
+	{
+		if (m_primary.inTransaction()) return read.run(m_primary);
+		for (int i = 0; i < m_replicas.size(); i++)
+		{
+			long now = System.currentTimeMillis();
+			Replica replica = pickReplica(now);
+			if (replica == null) break;
+			try
+			{
+				return read.run(replica.getProxy());
+			}
+			catch (SQLException e)
+			{
+				if (!isConnectionError(e)) throw e;
+				replica.eject(System.currentTimeMillis() + m_ejectTime);
+				if (!read.isRetryable()) throw e;
+			}
+		}
+		return read.run(m_primary);
+	}
+
+	/** {@inheritDoc} */
+	public void addAlias(String alias, String schema)
+	{
+		m_primary.addAlias(alias, schema);
+		for (Replica replica : m_replicas)
+		{
+			replica.getProxy().addAlias(alias, schema);
+		}
+	}
+
+	/** {@inheritDoc} */
+	public void beginTransaction(TransactionIsolation isolation) throws SQLException
+	{
+		m_primary.beginTransaction(isolation);
+	}
+
+	/** {@inheritDoc} */
+	public void rollback() throws SQLException
+	{
+		m_primary.rollback();
+	}
+
+	/** {@inheritDoc} */
+	public void commit() throws SQLException
+	{
+		m_primary.commit();
+	}
+
+	/** {@inheritDoc} */
+	public <T> T insert(String insert, Object... args) throws SQLException
+	{
+		return m_primary.<T>insert(insert, args);
+	}
+
+	/** {@inheritDoc} */
+	public int update(String update, Object... args) throws SQLException
+	{
+		return m_primary.update(update, args);
+	}
+
+	/** {@inheritDoc} */
+	public void updateDeferred(String update, Object... args) throws SQLException
+	{
+		m_primary.updateDeferred(update, args);
+	}
+
+	/** {@inheritDoc} */
+	public int[] updateBatch(String update, List<Object[]> rows) throws SQLException
+	{
+		return m_primary.updateBatch(update, rows);
+	}
+
+	/** {@inheritDoc} */
+	public <T> List<T> insertBatch(String insert, List<Object[]> rows) throws SQLException
+	{
+		return m_primary.<T>insertBatch(insert, rows);
+	}
+
+	/** {@inheritDoc} */
+	public <T> T query(ResultProcessor<T> processor, String query, Object... args) throws SQLException
+	{
+		return query(QueryOptions.DEFAULT, processor, query, args);
+	}
+
+	/** {@inheritDoc} */
+	public <T> T query(final QueryOptions options, ResultProcessor<T> processor, final String query,
+	                   final Object... args) throws SQLException
+	{
+		final CountingResultProcessor<T> counter = new CountingResultProcessor<T>(processor);
+		return read(new Read<T>()
+		{
+			public T run(DbProxy proxy) throws SQLException
+			{
+				return proxy.query(options, counter, query, args);
+			}
+
+			@Override
+			public boolean isRetryable()
+			{
+				return counter.getRows() == 0;
+			}
+		});
+	}
+
+	/** {@inheritDoc} */
+	public <T> Cursor<T> cursor(final QueryOptions options, final String query, final Object... args) throws SQLException
+	{
+		return read(new Read<Cursor<T>>()
+		{
+			public Cursor<T> run(DbProxy proxy) throws SQLException
+			{
+				return proxy.cursor(options, query, args);
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * The proxy is valid as long as the primary is valid.
+	 */
+	public boolean isValid()
+	{
+		return m_primary.isValid();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * This shuts down the primary and all replicas.
+	 */
+	public void shutdown()
+	{
+		m_primary.shutdown();
+		for (Replica replica : m_replicas)
+		{
+			replica.getProxy().shutdown();
+		}
+	}
+
+	/** {@inheritDoc} */
+	public boolean inTransaction()
+	{
+		return m_primary.inTransaction();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ReplicatedDbProxy[" + m_replicas.size() + " replicas, " + getAvailableReplicas() + " available]";
+	}
+
+	/**
+	 * A read operation that can be run on any of the endpoints.
+	 */
+	private abstract static class Read<T>
+	{
+		public abstract T run(DbProxy proxy) throws SQLException;
+
+		/**
+		 * Checks if the read may be run again on another endpoint after failing.
+		 *
+		 * @return true unless the failed run had partly completed.
+		 */
+		public boolean isRetryable()
+		{
+			return true;
+		}
+	}
+
+	/**
+	 * A replica endpoint and its health.
+	 */
+	private static class Replica
+	{
+		private final PooledDbProxy m_proxy;
+		private volatile long m_ejectedUntil;
+
+		private Replica(PooledDbProxy proxy)
+		{
+			m_proxy = proxy;
+			m_ejectedUntil = 0;
+		}
+
+		public PooledDbProxy getProxy()
+		{
+			return m_proxy;
+		}
+
+		public boolean isAvailable(long now)
+		{
+			return now >= m_ejectedUntil && m_proxy.isValid();
+		}
+
+		public void eject(long until)
+		{
+			m_ejectedUntil = until;
+		}
+	}
+}
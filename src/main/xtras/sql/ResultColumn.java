@@ -0,0 +1,102 @@
+package xtras.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A growable column of values read from a result set, stored in a primitive array.
+ * <p/>
+ * Columns are filled by a {@link ColumnarResultProcessor}, one value per row, and
+ * are intended for analytic queries reading a few columns over a large number of rows,
+ * where a list of boxed values per row would use many times the memory.
+ * <p/>
+ * <em>This class is not thread-safe.</em>
+ *
+ * @author Christoffer Lerno
+ * @see LongColumn
+ * @see IntColumn
+ * @see DoubleColumn
+ * @see StringColumn
+ */
+public abstract class ResultColumn
+{
+	/**
+	 * The initial number of rows a column has room for.
+	 */
+	protected final static int INITIAL_CAPACITY = 16;
+
+	private int m_size;
+
+	/**
+	 * Creates a new empty column.
+	 */
+	protected ResultColumn()
+	{
+		m_size = 0;
+	}
+
+	/**
+	 * Reads a value from the current row of the result set and appends it to the column.
+	 *
+	 * @param resultSet the result set, positioned on the row to read.
+	 * @param column the index of the column to read, starting with 1.
+	 * @throws SQLException if there was an error reading from the result set.
+	 */
+	public void add(ResultSet resultSet, int column) throws SQLException
+	{
+		if (m_size == capacity())
+		{
+			grow(m_size + (m_size >> 1) + 1);
+		}
+		read(resultSet, column, m_size);
+		m_size++;
+	}
+
+	/**
+	 * Returns the number of rows in the column.
+	 *
+	 * @return the number of rows.
+	 */
+	public int size()
+	{
+		return m_size;
+	}
+
+	/**
+	 * Checks that a row index is within the column.
+	 *
+	 * @param row the row index.
+	 * @throws IndexOutOfBoundsException if the row is outside of the column.
+	 */
+	protected void checkRow(int row)
+	{
+		if (row < 0 || row >= m_size)
+		{
+			throw new IndexOutOfBoundsException("Row " + row + " outside of column with " + m_size + " rows.");
+		}
+	}
+
+	/**
+	 * Returns the number of rows the column currently has room for.
+	 *
+	 * @return the capacity of the column.
+	 */
+	protected abstract int capacity();
+
+	/**
+	 * Grows the storage of the column.
+	 *
+	 * @param capacity the new capacity, always larger than the current capacity.
+	 */
+	protected abstract void grow(int capacity);
+
+	/**
+	 * Reads a value from the result set into the given row.
+	 *
+	 * @param resultSet the result set, positioned on the row to read.
+	 * @param column the index of the column to read, starting with 1.
+	 * @param row the row to store the value in.
+	 * @throws SQLException if there was an error reading from the result set.
+	 */
+	protected abstract void read(ResultSet resultSet, int column, int row) throws SQLException;
+}
@@ -0,0 +1,86 @@
+package xtras.sql;
+
+/**
+ * How to retry transactions failing with a transient {@link TransactionFailure}.
+ * <p/>
+ * The delay before each retry grows exponentially from the initial backoff up to the
+ * maximum backoff. A random jitter of up to half the delay is subtracted, so that
+ * transactions failing together don't retry in lockstep.
+ * <p/>
+ * RetryPolicies are immutable and may be shared between threads.
+ *
+ * @author Christoffer Lerno
+ * @see Db#inTransaction(TransactionIsolation, RetryPolicy, TransactionCallback)
+ */
+public final class RetryPolicy
+{
+	/**
+	 * Up to 5 attempts, backing off from 10 ms up to 1 s.
+	 */
+	public final static RetryPolicy DEFAULT = new RetryPolicy(5, 10, 1000);
+
+	/**
+	 * A single attempt without retries.
+	 */
+	public final static RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+	private final int m_maxAttempts;
+	private final long m_initialBackoff;
+	private final long m_maxBackoff;
+
+	/**
+	 * Creates a new retry policy.
+	 *
+	 * @param maxAttempts the maximum number of attempts, including the first.
+	 * @param initialBackoff the delay before the first retry in ms.
+	 * @param maxBackoff the maximum delay before a retry in ms.
+	 * @throws IllegalArgumentException if max attempts is less than 1 or a backoff is negative.
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff)
+	{
+		if (maxAttempts < 1) throw new IllegalArgumentException("Max attempts must be at least 1.");
+		if (initialBackoff < 0 || maxBackoff < 0) throw new IllegalArgumentException("Backoff must not be negative.");
+		m_maxAttempts = maxAttempts;
+		m_initialBackoff = initialBackoff;
+		m_maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Returns the maximum number of attempts.
+	 *
+	 * @return the maximum number of attempts, including the first.
+	 */
+	public int getMaxAttempts()
+	{
+		return m_maxAttempts;
+	}
+
+	public long getInitialBackoff()
+	{
+		return m_initialBackoff;
+	}
+
+	public long getMaxBackoff()
+	{
+		return m_maxBackoff;
+	}
+
+	/**
+	 * Returns the delay before retrying after a failed attempt.
+	 *
+	 * @param attempt the number of the failed attempt, starting with 1.
+	 * @return the delay in ms, including jitter.
+	 */
+	public long getBackoff(int attempt)
+	{
+		long delay = m_initialBackoff << Math.min(attempt - 1, 30);
+		if (delay > m_maxBackoff || delay < 0) delay = m_maxBackoff;
+		return delay - (long) (Math.random() * (delay / 2));
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RetryPolicy[" + m_maxAttempts + " attempts, backoff " + m_initialBackoff + "-" + m_maxBackoff + " ms]";
+	}
+}
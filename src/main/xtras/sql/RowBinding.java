@@ -0,0 +1,26 @@
+package xtras.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maps the rows of a single result set, created by {@link RowMapper#bind}.
+ * <p/>
+ * A binding is only used by the thread reading its result set.
+ *
+ * @author Christoffer Lerno
+ * @see AbstractRowBinding
+ */
+public interface RowBinding<T>
+{
+	/**
+	 * Maps the current row of the result set.
+	 * <p/>
+	 * The binding should not call {@link java.sql.ResultSet#next()}.
+	 *
+	 * @param resultSet the result set, positioned on the row to map.
+	 * @return the mapped row.
+	 * @throws SQLException if there was an error reading from the result set.
+	 */
+	T mapRow(ResultSet resultSet) throws SQLException;
+}
@@ -0,0 +1,46 @@
+package xtras.sql;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Maps the rows of a result set to objects.
+ * <p/>
+ * The mapper is bound once to every result set, and the returned {@link RowBinding}
+ * maps the rows. Column metadata should be resolved when binding, rather than for every
+ * row, and kept in the binding, so that the mapper itself holds no state and can be
+ * shared between threads:
+ * <pre>
+ * new RowMapper&lt;Player&gt;()
+ * {
+ *     public RowBinding&lt;Player&gt; bind(ResultSetMetaData metaData) throws SQLException
+ *     {
+ *         return new AbstractRowBinding&lt;Player&gt;(metaData)
+ *         {
+ *             private final int m_id = column("id");
+ *             private final int m_name = column("name");
+ *
+ *             public Player mapRow(ResultSet resultSet) throws SQLException
+ *             {
+ *                 return new Player(resultSet.getLong(m_id), resultSet.getString(m_name));
+ *             }
+ *         };
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Christoffer Lerno
+ * @see MappingResultProcessor
+ * @see RowMappers
+ */
+public interface RowMapper<T>
+{
+	/**
+	 * Called once for every result set, before the first row is mapped.
+	 *
+	 * @param metaData the metadata of the result set.
+	 * @return the binding mapping the rows of this result set.
+	 * @throws SQLException if there was an error reading the metadata.
+	 */
+	RowBinding<T> bind(ResultSetMetaData metaData) throws SQLException;
+}
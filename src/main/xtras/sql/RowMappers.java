@@ -0,0 +1,129 @@
+package xtras.sql;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Factory methods for common row mappers.
+ * <p/>
+ * The mappers hold no state of their own, so they can be shared between queries
+ * running concurrently.
+ *
+ * @author Christoffer Lerno
+ */
+public final class RowMappers
+{
+	RowMappers() {}
+
+	/**
+	 * Creates a mapper that reads all columns of a row into an array of objects.
+	 *
+	 * @return a new row mapper.
+	 */
+	public static RowMapper<Object[]> objects()
+	{
+		return new RowMapper<Object[]>()
+		{
+			public RowBinding<Object[]> bind(ResultSetMetaData metaData) throws SQLException
+			{
+				return new AbstractRowBinding<Object[]>(metaData)
+				{
+					public Object[] mapRow(ResultSet resultSet) throws SQLException
+					{
+						Object[] row = new Object[getColumnCount()];
+						for (int i = 0; i < row.length; i++)
+						{
+							row[i] = resultSet.getObject(i + 1);
+						}
+						return row;
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Creates a mapper that reads all columns of a row into an array of longs.
+	 *
+	 * @param nullValue the value to use for null columns.
+	 * @return a new row mapper.
+	 */
+	public static RowMapper<long[]> longs(final long nullValue)
+	{
+		return new RowMapper<long[]>()
+		{
+			public RowBinding<long[]> bind(ResultSetMetaData metaData) throws SQLException
+			{
+				return new AbstractRowBinding<long[]>(metaData)
+				{
+					public long[] mapRow(ResultSet resultSet) throws SQLException
+					{
+						long[] row = new long[getColumnCount()];
+						for (int i = 0; i < row.length; i++)
+						{
+							row[i] = SQL.getLong(resultSet, i + 1, nullValue);
+						}
+						return row;
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Creates a mapper that reads all columns of a row into an array of ints.
+	 *
+	 * @param nullValue the value to use for null columns.
+	 * @return a new row mapper.
+	 */
+	public static RowMapper<int[]> ints(final int nullValue)
+	{
+		return new RowMapper<int[]>()
+		{
+			public RowBinding<int[]> bind(ResultSetMetaData metaData) throws SQLException
+			{
+				return new AbstractRowBinding<int[]>(metaData)
+				{
+					public int[] mapRow(ResultSet resultSet) throws SQLException
+					{
+						int[] row = new int[getColumnCount()];
+						for (int i = 0; i < row.length; i++)
+						{
+							row[i] = SQL.getInt(resultSet, i + 1, nullValue);
+						}
+						return row;
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Creates a mapper that reads all columns of a row into an array of doubles.
+	 *
+	 * @param nullValue the value to use for null columns.
+	 * @return a new row mapper.
+	 */
+	public static RowMapper<double[]> doubles(final double nullValue)
+	{
+		return new RowMapper<double[]>()
+		{
+			public RowBinding<double[]> bind(ResultSetMetaData metaData) throws SQLException
+			{
+				return new AbstractRowBinding<double[]>(metaData)
+				{
+					public double[] mapRow(ResultSet resultSet) throws SQLException
+					{
+						double[] row = new double[getColumnCount()];
+						for (int i = 0; i < row.length; i++)
+						{
+							row[i] = SQL.getDouble(resultSet, i + 1, nullValue);
+						}
+						return row;
+					}
+				};
+			}
+		};
+	}
+}
@@ -35,7 +35,22 @@ public final class SQL
 	 */
 	public static Object readResultSet(ResultSet resultSet) throws SQLException
 	{
-		int columns = resultSet.getMetaData().getColumnCount();
+		return readResultSet(resultSet, resultSet.getMetaData().getColumnCount());
+	}
+
+	/**
+	 * Reads a full row from a result set with a known number of columns,
+	 * see {@link #readResultSet(java.sql.ResultSet)}.
+	 * <p/>
+	 * Use this when reading many rows, to only look up the column count once.
+	 *
+	 * @param resultSet the result set to be read.
+	 * @param columns the number of columns in the result set.
+	 * @return the value of the current row in the result set.
+	 * @throws SQLException if there was an error reading from the ResultSet.
+	 */
+	public static Object readResultSet(ResultSet resultSet, int columns) throws SQLException
+	{
 		if (columns == 1)
 		{
 			return resultSet.getObject(1);
@@ -48,6 +63,96 @@ public final class SQL
 		return list;
 	}
 
+	/**
+	 * Reads a column as a long without boxing, using {@code nullValue} for null values.
+	 *
+	 * @param resultSet the result set to read from.
+	 * @param column the index of the column, starting with 1.
+	 * @param nullValue the value to return if the column is null.
+	 * @return the value of the column.
+	 * @throws SQLException if there was an error reading from the ResultSet.
+	 */
+	public static long getLong(ResultSet resultSet, int column, long nullValue) throws SQLException
+	{
+		long value = resultSet.getLong(column);
+		return value == 0 && resultSet.wasNull() ? nullValue : value;
+	}
+
+	/**
+	 * Reads a column as an int without boxing, using {@code nullValue} for null values.
+	 *
+	 * @param resultSet the result set to read from.
+	 * @param column the index of the column, starting with 1.
+	 * @param nullValue the value to return if the column is null.
+	 * @return the value of the column.
+	 * @throws SQLException if there was an error reading from the ResultSet.
+	 */
+	public static int getInt(ResultSet resultSet, int column, int nullValue) throws SQLException
+	{
+		int value = resultSet.getInt(column);
+		return value == 0 && resultSet.wasNull() ? nullValue : value;
+	}
+
+	/**
+	 * Reads a column as a double without boxing, using {@code nullValue} for null values.
+	 *
+	 * @param resultSet the result set to read from.
+	 * @param column the index of the column, starting with 1.
+	 * @param nullValue the value to return if the column is null.
+	 * @return the value of the column.
+	 * @throws SQLException if there was an error reading from the ResultSet.
+	 */
+	public static double getDouble(ResultSet resultSet, int column, double nullValue) throws SQLException
+	{
+		double value = resultSet.getDouble(column);
+		return value == 0 && resultSet.wasNull() ? nullValue : value;
+	}
+
+	/**
+	 * Sets a statement parameter using the setter matching the type of the value,
+	 * so that the driver doesn't need to probe the type as with {@code setObject}.
+	 * <p/>
+	 * Strings, integers, longs, doubles, booleans and byte arrays use their typed
+	 * setters, all other values and null are set with {@code setObject}.
+	 *
+	 * @param statement the statement to set the parameter on.
+	 * @param index the index of the parameter, starting with 1.
+	 * @param value the value to set.
+	 * @throws SQLException if there was an error setting the parameter.
+	 */
+	public static void setParameter(PreparedStatement statement, int index, Object value) throws SQLException
+	{
+		Class<?> type = value == null ? null : value.getClass();
+		if (type == String.class)
+		{
+			statement.setString(index, (String) value);
+		}
+		else if (type == Integer.class)
+		{
+			statement.setInt(index, (Integer) value);
+		}
+		else if (type == Long.class)
+		{
+			statement.setLong(index, (Long) value);
+		}
+		else if (type == Double.class)
+		{
+			statement.setDouble(index, (Double) value);
+		}
+		else if (type == Boolean.class)
+		{
+			statement.setBoolean(index, (Boolean) value);
+		}
+		else if (type == byte[].class)
+		{
+			statement.setBytes(index, (byte[]) value);
+		}
+		else
+		{
+			statement.setObject(index, value);
+		}
+	}
+
 	/**
 	 * Closes a statement, ignoring any exceptions.
 	 *
@@ -1,25 +1,36 @@
 package xtras.sql;
 
-import xtras.util.Tuple;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import java.util.List;
-import java.util.Set;
-import java.util.HashSet;
-import java.util.ArrayList;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-
-/** @author Christoffer Lerno */
+/**
+ * Replaces schema aliases on the form {@literal <alias>.} in queries with their schema.
+ * <p/>
+ * Aliases are matched case insensitively. The alias table and its cache of translations are
+ * replaced together on each change (copy-on-write), so translating never blocks, and each
+ * query is translated in a single pass regardless of the number of aliases.
+ * <p/>
+ * Since queries are usually constant strings, translations are cached. The cache
+ * keeps at most {@link #MAX_CACHED} queries, after which new queries are translated
+ * without being cached.
+ *
+ * @author Christoffer Lerno
+ */
 class SchemaAliasTranslator
 {
+	/**
+	 * The maximum number of translated queries to cache.
+	 */
+	final static int MAX_CACHED = 1000;
+
 	private final Object m_schemaLock = new Object();
-	private final List<Schema> m_schemas;
-	private final Set<String> m_alias;
+	private volatile Aliases m_aliases;
 
 	public SchemaAliasTranslator()
 	{
-		m_alias = new HashSet<String>();
-		m_schemas = new ArrayList<Schema>();
+		m_aliases = new Aliases(Collections.<String, String>emptyMap(), 0);
 	}
 
 	/**
@@ -27,39 +38,91 @@ class SchemaAliasTranslator
 	 *
 	 * @param alias the alias to use for this schema.
 	 * @param schema the key to use with this schema.
+	 * @throws IllegalStateException if the alias was already registered.
 	 */
 	public void addAlias(String alias, String schema)
 	{
 		alias = alias.toLowerCase();
-		Pattern pattern = Pattern.compile(Pattern.quote("<" + alias + ">."), Pattern.CASE_INSENSITIVE);
 		synchronized (m_schemaLock)
 		{
-			if (m_alias.contains(alias)) throw new IllegalStateException("Db schema '" +
-			                                                             alias + "' already registered.");
-			m_schemas.add(new Schema(schema, pattern));
-			m_alias.add(alias);
+			Aliases current = m_aliases;
+			if (current.m_schemas.containsKey(alias)) throw new IllegalStateException("Db schema '" +
+			                                                                          alias + "' already registered.");
+			Map<String, String> schemas = new HashMap<String, String>(current.m_schemas);
+			schemas.put(alias, schema + ".");
+			m_aliases = new Aliases(schemas, Math.max(current.m_maxAliasLength, alias.length()));
 		}
 	}
 
+	/**
+	 * Replaces all aliases in a query with their schemas.
+	 *
+	 * @param query the query to translate.
+	 * @return the translated query, or the query itself if it has no aliases.
+	 */
 	public String translate(String query)
 	{
-		synchronized (m_schemaLock)
+		// Read once, so that the translation and its cache belong to the same aliases.
+		Aliases aliases = m_aliases;
+		if (aliases.m_schemas.isEmpty()) return query;
+		String translated = aliases.m_cache.get(query);
+		if (translated != null) return translated;
+		translated = replaceAliases(query, aliases.m_schemas, aliases.m_maxAliasLength);
+		if (aliases.m_cache.size() < MAX_CACHED) aliases.m_cache.put(query, translated);
+		return translated;
+	}
+
+	/**
+	 * Scans a query for {@literal <alias>.} tokens and replaces them.
+	 *
+	 * @param query the query to translate.
+	 * @param aliases the schemas with a trailing '.', keyed by lower case alias.
+	 * @param maxAliasLength the length of the longest alias.
+	 * @return the translated query.
+	 */
+	private static String replaceAliases(String query, Map<String, String> aliases, int maxAliasLength)
+	{
+		StringBuilder builder = null;
+		int copied = 0;
+		int length = query.length();
+		int start = query.indexOf('<');
+		while (start >= 0)
 		{
-			for (Schema schema : m_schemas)
+			int end = query.indexOf('>', start + 1);
+			if (end < 0) break;
+			int next = start + 1;
+			if (end - start - 1 <= maxAliasLength && end + 1 < length && query.charAt(end + 1) == '.')
 			{
-				Matcher matcher = schema.second.matcher(query);
-				if (matcher.find())
+				String schema = aliases.get(query.substring(start + 1, end).toLowerCase());
+				if (schema != null)
 				{
-					query = matcher.replaceAll(schema.first + ".");
+					if (builder == null) builder = new StringBuilder(length + 16);
+					builder.append(query, copied, start).append(schema);
+					copied = end + 2;
+					next = copied;
 				}
 			}
+			start = query.indexOf('<', next);
 		}
-		return query;
+		if (builder == null) return query;
+		return builder.append(query, copied, length).toString();
 	}
 
-	private static class Schema extends Tuple<String, Pattern>
+	/**
+	 * An immutable alias table together with the cache of translations made with it,
+	 * so that a translation is never cached for another alias table than the one it used.
+	 */
+	private static class Aliases
 	{
-		private Schema(String object1, Pattern object2) { super(object1, object2); }
-	}
+		private final Map<String, String> m_schemas;
+		private final int m_maxAliasLength;
+		private final ConcurrentHashMap<String, String> m_cache;
 
+		private Aliases(Map<String, String> schemas, int maxAliasLength)
+		{
+			m_schemas = schemas;
+			m_maxAliasLength = maxAliasLength;
+			m_cache = new ConcurrentHashMap<String, String>();
+		}
+	}
 }
@@ -0,0 +1,117 @@
+package xtras.sql;
+
+import xtras.lang.ObjectExtras;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * The session settings of a connection: auto-commit, transaction isolation, read-only and catalog.
+ * <p/>
+ * {@link PooledConnection} uses these to track the settings of its connection, so that
+ * settings are only sent to the driver when they actually change.
+ * <p/>
+ * SessionStates are immutable.
+ *
+ * @author Christoffer Lerno
+ */
+final class SessionState
+{
+	private final boolean m_autoCommit;
+	private final int m_isolation;
+	private final boolean m_readOnly;
+	private final String m_catalog;
+
+	SessionState(boolean autoCommit, int isolation, boolean readOnly, String catalog)
+	{
+		m_autoCommit = autoCommit;
+		m_isolation = isolation;
+		m_readOnly = readOnly;
+		m_catalog = catalog;
+	}
+
+	/**
+	 * Reads the current session settings of a connection.
+	 *
+	 * @param connection the connection to read from.
+	 * @return the settings of the connection.
+	 * @throws SQLException if the settings could not be read.
+	 */
+	public static SessionState read(Connection connection) throws SQLException
+	{
+		return new SessionState(connection.getAutoCommit(),
+		                        connection.getTransactionIsolation(),
+		                        connection.isReadOnly(),
+		                        connection.getCatalog());
+	}
+
+	public boolean isAutoCommit()
+	{
+		return m_autoCommit;
+	}
+
+	public int getIsolation()
+	{
+		return m_isolation;
+	}
+
+	public boolean isReadOnly()
+	{
+		return m_readOnly;
+	}
+
+	public String getCatalog()
+	{
+		return m_catalog;
+	}
+
+	/**
+	 * Returns these settings with another auto-commit mode.
+	 *
+	 * @param autoCommit the auto-commit mode to use.
+	 * @return the new settings.
+	 */
+	public SessionState withAutoCommit(boolean autoCommit)
+	{
+		return new SessionState(autoCommit, m_isolation, m_readOnly, m_catalog);
+	}
+
+	/**
+	 * Returns these settings with another transaction isolation.
+	 *
+	 * @param isolation the isolation level to use, one of the Connection.TRANSACTION_* constants.
+	 * @return the new settings.
+	 */
+	public SessionState withIsolation(int isolation)
+	{
+		return new SessionState(m_autoCommit, isolation, m_readOnly, m_catalog);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o) return true;
+		if (!(o instanceof SessionState)) return false;
+		SessionState other = (SessionState) o;
+		return m_autoCommit == other.m_autoCommit
+		       && m_isolation == other.m_isolation
+		       && m_readOnly == other.m_readOnly
+		       && ObjectExtras.equals(m_catalog, other.m_catalog);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int result = m_autoCommit ? 1 : 0;
+		result = 31 * result + m_isolation;
+		result = 31 * result + (m_readOnly ? 1 : 0);
+		return 31 * result + (m_catalog == null ? 0 : m_catalog.hashCode());
+	}
+
+	@Override
+	public String toString()
+	{
+		return "SessionState[autoCommit " + m_autoCommit + ", isolation " + m_isolation
+		       + ", readOnly " + m_readOnly + ", catalog " + m_catalog + "]";
+	}
+}
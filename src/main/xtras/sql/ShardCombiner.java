@@ -0,0 +1,48 @@
+package xtras.sql;
+
+import java.util.List;
+
+/**
+ * Merges the results of a query run on all shards of a {@link ShardedDbProxy}.
+ * <p/>
+ * Each shard processes its rows with its own {@link ResultProcessor}, since the shards are
+ * queried in parallel. The results are then combined into a single result:
+ * <pre>
+ * Long players = proxy.queryAllShards(new ShardCombiner&lt;Object, Long&gt;()
+ * {
+ *     public ResultProcessor&lt;Object&gt; createProcessor(int shard)
+ *     {
+ *         return new SingleResultProcessor&lt;Object&gt;();
+ *     }
+ *
+ *     public Long combine(List&lt;Object&gt; results)
+ *     {
+ *         long total = 0;
+ *         for (Object count : results) total += ((Number) count).longValue();
+ *         return total;
+ *     }
+ * }, "select count(*) from players");
+ * </pre>
+ *
+ * @author Christoffer Lerno
+ */
+public interface ShardCombiner<T, R>
+{
+	/**
+	 * Creates the processor for the rows of a single shard.
+	 * <p/>
+	 * This is called on the calling thread, before any shard is queried.
+	 *
+	 * @param shard the index of the shard.
+	 * @return a new result processor.
+	 */
+	ResultProcessor<T> createProcessor(int shard);
+
+	/**
+	 * Combines the results from all shards.
+	 *
+	 * @param results the result of each shard, in shard order.
+	 * @return the combined result.
+	 */
+	R combine(List<T> results);
+}
@@ -0,0 +1,22 @@
+package xtras.sql;
+
+/**
+ * Extracts the shard key from a statement, for a {@link ShardedDbProxy} to route it by.
+ * <p/>
+ * Usually the key is one of the arguments, see {@link ShardedDbProxy#argument(int)}.
+ *
+ * @author Christoffer Lerno
+ */
+public interface ShardKeyExtractor
+{
+	/**
+	 * Returns the shard key of a statement.
+	 * <p/>
+	 * For batches this is called once for each row of arguments.
+	 *
+	 * @param sql the sql of the statement.
+	 * @param args the arguments of the statement.
+	 * @return the shard key, or null if the statement has no shard key.
+	 */
+	Object getShardKey(String sql, Object[] args);
+}
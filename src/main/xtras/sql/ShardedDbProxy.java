@@ -0,0 +1,653 @@
+package xtras.sql;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A DbProxy that partitions data across several databases, routing each statement
+ * to a single shard by its shard key.
+ * <p/>
+ * The shard key is extracted from each statement by a {@link ShardKeyExtractor},
+ * and the shard is picked from the hash of the key:
+ * <pre>
+ * List&lt;DbProxy&gt; shards = new ArrayList&lt;DbProxy&gt;();
+ * shards.add(new PooledDbProxy(driver, "jdbc:mysql://shard0/poker", user, password, 10));
+ * shards.add(new PooledDbProxy(driver, "jdbc:mysql://shard1/poker", user, password, 10));
+ * // Route by the second argument, the player id.
+ * Db.registerDb("players", new ShardedDbProxy(ShardedDbProxy.argument(1), shards));
+ *
+ * Db.update("update players set chips = ? where id = ?", chips, playerId);
+ * </pre>
+ * Batches are split by the shard key of each row. Queries over all shards run in parallel
+ * with {@link #queryAllShards(ShardCombiner, String, Object[])}.
+ * <p/>
+ * A transaction is bound to the shard of the first statement inside it, and the
+ * transaction is started on that shard when this statement is run. Statements routed
+ * to another shard inside the transaction fail with an {@link IllegalStateException},
+ * while statements without shard key use the bound shard. Nested transactions are started
+ * on the shard as well, once the transaction is bound.
+ *
+ * @author Christoffer Lerno
+ */
+public class ShardedDbProxy implements DbProxy
+{
+	private final static AtomicInteger s_threadId = new AtomicInteger(0);
+
+	private final ShardKeyExtractor m_extractor;
+	private final List<DbProxy> m_shards;
+	private final ThreadPoolExecutor m_executor;
+	private final ThreadLocal<Transaction> m_transaction;
+
+	/**
+	 * Creates a new sharded proxy.
+	 *
+	 * @param extractor the extractor of shard keys from statements.
+	 * @param shards the shards, in a fixed order since keys are routed by index.
+	 * @throws IllegalArgumentException if there are no shards.
+	 */
+	public ShardedDbProxy(ShardKeyExtractor extractor, List<? extends DbProxy> shards)
+	{
+		if (shards.isEmpty()) throw new IllegalArgumentException("At least one shard is required.");
+		m_extractor = extractor;
+		m_shards = Collections.unmodifiableList(new ArrayList<DbProxy>(shards));
+		m_executor = new ThreadPoolExecutor(shards.size(), shards.size(), 60, TimeUnit.SECONDS,
+		                                    new LinkedBlockingQueue<Runnable>(),
+		                                    new DaemonThreadFactory());
+		m_executor.allowCoreThreadTimeOut(true);
+		m_transaction = new ThreadLocal<Transaction>();
+	}
+
+	/**
+	 * Creates an extractor using one of the arguments of each statement as shard key.
+	 *
+	 * @param index the index of the argument.
+	 * @return the extractor, returning null for statements with fewer arguments.
+	 */
+	public static ShardKeyExtractor argument(final int index)
+	{
+		return new ShardKeyExtractor()
+		{
+			public Object getShardKey(String sql, Object[] args)
+			{
+				return index < args.length ? args[index] : null;
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of shards.
+	 *
+	 * @return the number of shards.
+	 */
+	public int getShardCount()
+	{
+		return m_shards.size();
+	}
+
+	/**
+	 * Returns a shard.
+	 *
+	 * @param index the index of the shard.
+	 * @return the shard.
+	 */
+	public DbProxy getShard(int index)
+	{
+		return m_shards.get(index);
+	}
+
+	/**
+	 * Returns the index of the shard a key is routed to.
+	 * <p/>
+	 * Integer keys ({@link Byte}, {@link Short}, {@link Integer} and {@link Long}) are routed
+	 * by their value, so that the same id routes to the same shard whatever its type.
+	 * Other keys are routed by their {@link Object#hashCode()}, so a numeric id
+	 * and the same id as a String are routed differently, and the same key type
+	 * should be used for all statements.
+	 *
+	 * @param key the shard key.
+	 * @return the index of the shard.
+	 * @throws IllegalArgumentException if the key is null.
+	 */
+	public int shardOf(Object key)
+	{
+		if (key == null) throw new IllegalArgumentException("Shard key must not be null.");
+		int hash;
+		if (key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte)
+		{
+			long value = ((Number) key).longValue();
+			hash = (int) (value ^ (value >>> 32));
+		}
+		else
+		{
+			hash = key.hashCode();
+		}
+		return (hash & Integer.MAX_VALUE) % m_shards.size();
+	}
+
+	/**
+	 * Returns the index of the shard to run a statement on, starting a pending
+	 * transaction on the shard if needed.
+	 *
+	 * @param sql the sql of the statement.
+	 * @param args the arguments of the statement.
+	 * @return the index of the shard.
+	 * @throws SQLException if starting the transaction failed.
+	 * @throws IllegalArgumentException if the statement has no shard key and cannot be routed.
+	 * @throws IllegalStateException if the statement is routed to another shard than the transaction.
+	 */
+	private int route(String sql, Object[] args) throws SQLException
+	{
+		Object key = m_extractor.getShardKey(sql, args);
+		Transaction transaction = m_transaction.get();
+		if (transaction == null) return shardOf(key);
+		if (key == null && transaction.getShard() < 0)
+		{
+			throw new IllegalArgumentException("Shard key must not be null.");
+		}
+		return bind(transaction, key == null ? transaction.getShard() : shardOf(key));
+	}
+
+	private int bind(Transaction transaction, int shard) throws SQLException
+	{
+		if (transaction.getShard() < 0)
+		{
+			try
+			{
+				// Start the outer transaction, then any nested transactions begun before binding.
+				for (int i = 0; i <= transaction.getDepth(); i++)
+				{
+					m_shards.get(shard).beginTransaction(transaction.getIsolation());
+				}
+			}
+			catch (SQLException e)
+			{
+				m_transaction.remove();
+				throw e;
+			}
+			transaction.setShard(shard);
+		}
+		else if (transaction.getShard() != shard)
+		{
+			throw new IllegalStateException("Transaction is bound to shard " + transaction.getShard()
+			                                + ", cannot use shard " + shard + ".");
+		}
+		return shard;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * The alias is added to all shards.
+	 */
+	public void addAlias(String alias, String schema)
+	{
+		for (DbProxy shard : m_shards)
+		{
+			shard.addAlias(alias, schema);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * The transaction is started on a shard when the first statement inside it is run.
+	 */
+	public void beginTransaction(TransactionIsolation isolation) throws SQLException
+	{
+		Transaction transaction = m_transaction.get();
+		if (transaction == null)
+		{
+			m_transaction.set(new Transaction(isolation));
+			return;
+		}
+		if (transaction.getShard() >= 0)
+		{
+			try
+			{
+				m_shards.get(transaction.getShard()).beginTransaction(isolation);
+			}
+			catch (SQLException e)
+			{
+				m_transaction.remove();
+				throw e;
+			}
+		}
+		transaction.setDepth(transaction.getDepth() + 1);
+	}
+
+	/**
+	 * Begins a transaction on the shard of a given key.
+	 *
+	 * @param key the shard key.
+	 * @param isolation the isolation level to use, or null for none.
+	 * @throws SQLException if there was any issue starting the transaction.
+	 */
+	public void beginTransaction(Object key, TransactionIsolation isolation) throws SQLException
+	{
+		int shard = shardOf(key);
+		beginTransaction(isolation);
+		bind(m_transaction.get(), shard);
+	}
+
+	/** {@inheritDoc} */
+	public void rollback() throws SQLException
+	{
+		Transaction transaction = m_transaction.get();
+		if (transaction == null) throw new SQLException("Tried to rollback outside of transaction.");
+		if (!transaction.endNested()) m_transaction.remove();
+		if (transaction.getShard() >= 0) m_shards.get(transaction.getShard()).rollback();
+	}
+
+	/** {@inheritDoc} */
+	public void commit() throws SQLException
+	{
+		Transaction transaction = m_transaction.get();
+		if (transaction == null) throw new SQLException("Tried to commit transaction outside of transaction.");
+		if (!transaction.endNested()) m_transaction.remove();
+		if (transaction.getShard() >= 0) m_shards.get(transaction.getShard()).commit();
+	}
+
+	/** {@inheritDoc} */
+	@SuppressWarnings({"RedundantTypeArguments"})
+	public <T> T insert(String insert, Object... args) throws SQLException
+	{
+		return m_shards.get(route(insert, args)).<T>insert(insert, args);
+	}
+
+	/** {@inheritDoc} */
+	public int update(String update, Object... args) throws SQLException
+	{
+		return m_shards.get(route(update, args)).update(update, args);
+	}
+
+	/** {@inheritDoc} */
+	public void updateDeferred(String update, Object... args) throws SQLException
+	{
+		m_shards.get(route(update, args)).updateDeferred(update, args);
+	}
+
+	/**
+	 * Splits the rows of a batch by shard.
+	 *
+	 * @param sql the sql of the batch.
+	 * @param rows the rows of the batch.
+	 * @return the indices of the rows for each shard.
+	 * @throws SQLException if starting a pending transaction failed.
+	 */
+	private List<List<Integer>> splitBatch(String sql, List<Object[]> rows) throws SQLException
+	{
+		List<List<Integer>> indices = new ArrayList<List<Integer>>(m_shards.size());
+		for (int i = 0; i < m_shards.size(); i++)
+		{
+			indices.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i < rows.size(); i++)
+		{
+			indices.get(route(sql, rows.get(i))).add(i);
+		}
+		return indices;
+	}
+
+	private static List<Object[]> select(List<Object[]> rows, List<Integer> indices)
+	{
+		if (indices.size() == rows.size()) return rows;
+		List<Object[]> selected = new ArrayList<Object[]>(indices.size());
+		for (Integer index : indices)
+		{
+			selected.add(rows.get(index));
+		}
+		return selected;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * The rows are split by shard, and each shard runs its rows as a separate batch.
+	 * The counts are returned in the order of the rows.
+	 */
+	public int[] updateBatch(String update, List<Object[]> rows) throws SQLException
+	{
+		List<List<Integer>> indices = splitBatch(update, rows);
+		int[] result = new int[rows.size()];
+		for (int shard = 0; shard < m_shards.size(); shard++)
+		{
+			List<Integer> shardRows = indices.get(shard);
+			if (shardRows.isEmpty()) continue;
+			int[] counts = m_shards.get(shard).updateBatch(update, select(rows, shardRows));
+			for (int i = 0; i < counts.length && i < shardRows.size(); i++)
+			{
+				result[shardRows.get(i)] = counts[i];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * The rows are split by shard, and each shard runs its rows as a separate batch.
+	 * The keys are returned shard by shard, in shard order.
+	 */
+	@SuppressWarnings({"RedundantTypeArguments"})
+	public <T> List<T> insertBatch(String insert, List<Object[]> rows) throws SQLException
+	{
+		List<List<Integer>> indices = splitBatch(insert, rows);
+		List<T> keys = new ArrayList<T>();
+		for (int shard = 0; shard < m_shards.size(); shard++)
+		{
+			List<Integer> shardRows = indices.get(shard);
+			if (shardRows.isEmpty()) continue;
+			keys.addAll(m_shards.get(shard).<T>insertBatch(insert, select(rows, shardRows)));
+		}
+		return keys;
+	}
+
+	/** {@inheritDoc} */
+	public <T> T query(ResultProcessor<T> processor, String query, Object... args) throws SQLException
+	{
+		return m_shards.get(route(query, args)).query(processor, query, args);
+	}
+
+	/** {@inheritDoc} */
+	public <T> T query(QueryOptions options, ResultProcessor<T> processor, String query, Object... args) throws SQLException
+	{
+		return m_shards.get(route(query, args)).query(options, processor, query, args);
+	}
+
+	/** {@inheritDoc} */
+	public <T> Cursor<T> cursor(QueryOptions options, String query, Object... args) throws SQLException
+	{
+		return m_shards.get(route(query, args)).cursor(options, query, args);
+	}
+
+	/**
+	 * Runs a query on all shards in parallel and combines the results.
+	 *
+	 * @param combiner the combiner creating a processor for each shard and merging their results.
+	 * @param query the query to run.
+	 * @param args the arguments to the query.
+	 * @return the combined result.
+	 * @throws SQLException if the query failed on any shard.
+	 * @throws IllegalStateException if the current thread is in a transaction.
+	 */
+	public <T, R> R queryAllShards(ShardCombiner<T, R> combiner, String query, Object... args) throws SQLException
+	{
+		return queryAllShards(QueryOptions.DEFAULT, combiner, query, args);
+	}
+
+	/**
+	 * Runs a query on all shards in parallel and combines the results.
+	 * <p/>
+	 * The last shard is queried on the calling thread. If the query fails on any shard,
+	 * the queries still running on other shards are interrupted, and awaited before
+	 * the failure is thrown.
+	 *
+	 * @param options the fetch size and max rows to use on each shard.
+	 * @param combiner the combiner creating a processor for each shard and merging their results.
+	 * @param query the query to run.
+	 * @param args the arguments to the query.
+	 * @return the combined result.
+	 * @throws SQLException if the query failed on any shard.
+	 * @throws IllegalStateException if the current thread is in a transaction.
+	 */
+	public <T, R> R queryAllShards(QueryOptions options, ShardCombiner<T, R> combiner,
+	                               String query, Object... args) throws SQLException
+	{
+		if (inTransaction())
+		{
+			throw new IllegalStateException("Queries on all shards are not allowed inside a transaction.");
+		}
+		int last = m_shards.size() - 1;
+		List<ShardQuery<T>> queries = new ArrayList<ShardQuery<T>>(last);
+		List<Future<T>> futures = new ArrayList<Future<T>>(last);
+		List<T> results = new ArrayList<T>(m_shards.size());
+		Throwable failure = null;
+		try
+		{
+			for (int i = 0; i < last; i++)
+			{
+				ShardQuery<T> shardQuery = new ShardQuery<T>(m_shards.get(i), options, combiner.createProcessor(i),
+				                                             query, args);
+				futures.add(m_executor.submit(shardQuery));
+				queries.add(shardQuery);
+			}
+			ResultProcessor<T> lastProcessor = combiner.createProcessor(last);
+			T lastResult = m_shards.get(last).query(options, lastProcessor, query, args);
+			for (Future<T> future : futures)
+			{
+				results.add(future.get());
+			}
+			results.add(lastResult);
+		}
+		catch (ExecutionException e)
+		{
+			failure = e.getCause();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			failure = new SQLException("Interrupt while waiting for shards.");
+		}
+		catch (SQLException e)
+		{
+			failure = e;
+		}
+		catch (RuntimeException e)
+		{
+			failure = e;
+		}
+		catch (Error e)
+		{
+			failure = e;
+		}
+		if (failure == null) return combiner.combine(results);
+		for (int i = 0; i < queries.size(); i++)
+		{
+			if (!queries.get(i).skip()) futures.get(i).cancel(true);
+		}
+		boolean interrupted = false;
+		for (ShardQuery<T> shardQuery : queries)
+		{
+			interrupted |= shardQuery.awaitUninterruptibly();
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		if (failure instanceof SQLException) throw (SQLException) failure;
+		if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+		throw (Error) failure;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * The proxy is valid as long as all shards are valid.
+	 */
+	public boolean isValid()
+	{
+		for (DbProxy shard : m_shards)
+		{
+			if (!shard.isValid()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * This shuts down all shards.
+	 */
+	public void shutdown()
+	{
+		m_executor.shutdown();
+		for (DbProxy shard : m_shards)
+		{
+			shard.shutdown();
+		}
+	}
+
+	/** {@inheritDoc} */
+	public boolean inTransaction()
+	{
+		return m_transaction.get() != null;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ShardedDbProxy[" + m_shards.size() + " shards]";
+	}
+
+	/**
+	 * The state of a transaction, bound to a shard on first use.
+	 */
+	private static class Transaction
+	{
+		private final TransactionIsolation m_isolation;
+		private int m_shard;
+		private int m_depth;
+
+		private Transaction(TransactionIsolation isolation)
+		{
+			m_isolation = isolation;
+			m_shard = -1;
+			m_depth = 0;
+		}
+
+		public int getDepth()
+		{
+			return m_depth;
+		}
+
+		public void setDepth(int depth)
+		{
+			m_depth = depth;
+		}
+
+		/**
+		 * Ends the innermost nested transaction.
+		 *
+		 * @return true if a nested transaction was ended, false if this is the outer transaction.
+		 */
+		public boolean endNested()
+		{
+			if (m_depth == 0) return false;
+			m_depth--;
+			return true;
+		}
+
+		public TransactionIsolation getIsolation()
+		{
+			return m_isolation;
+		}
+
+		public int getShard()
+		{
+			return m_shard;
+		}
+
+		public void setShard(int shard)
+		{
+			m_shard = shard;
+		}
+	}
+
+	/**
+	 * A query on a single shard, run by the executor, which can be awaited even if cancelled.
+	 */
+	private static class ShardQuery<T> implements Callable<T>
+	{
+		private final static int PENDING = 0;
+		private final static int RUNNING = 1;
+		private final static int SKIPPED = 2;
+
+		private final DbProxy m_shard;
+		private final QueryOptions m_options;
+		private final ResultProcessor<T> m_processor;
+		private final String m_query;
+		private final Object[] m_args;
+		private final AtomicInteger m_state;
+		private final CountDownLatch m_done;
+
+		private ShardQuery(DbProxy shard, QueryOptions options, ResultProcessor<T> processor, String query,
+		                   Object[] args)
+		{
+			m_shard = shard;
+			m_options = options;
+			m_processor = processor;
+			m_query = query;
+			m_args = args;
+			m_state = new AtomicInteger(PENDING);
+			m_done = new CountDownLatch(1);
+		}
+
+		public T call() throws SQLException
+		{
+			if (!m_state.compareAndSet(PENDING, RUNNING)) return null;
+			try
+			{
+				return m_shard.query(m_options, m_processor, m_query, m_args);
+			}
+			finally
+			{
+				m_done.countDown();
+			}
+		}
+
+		/**
+		 * Prevents the query from running if it has not started yet.
+		 *
+		 * @return true if the query will never run, false if it has already started.
+		 */
+		public boolean skip()
+		{
+			if (!m_state.compareAndSet(PENDING, SKIPPED)) return false;
+			m_done.countDown();
+			return true;
+		}
+
+		/**
+		 * Waits until the query has completed or was skipped, ignoring interrupts.
+		 *
+		 * @return true if the current thread was interrupted while waiting.
+		 */
+		public boolean awaitUninterruptibly()
+		{
+			boolean interrupted = false;
+			while (true)
+			{
+				try
+				{
+					m_done.await();
+					return interrupted;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates named daemon threads, so that the executor never prevents the vm from exiting.
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "ShardedDbProxy-" + s_threadId.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package xtras.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of prepared statements for a single connection.
+ * <p/>
+ * Statements are checked out of the cache while in use and put back
+ * when done, so the same statement will never be handed out twice at the same time.
+ * Statements are keyed on their sql only, and always prepared with
+ * {@link Connection#prepareStatement(String)}.
+ * When the cache is full, the least recently returned statement is closed and evicted.
+ * <p/>
+ * <em>This class is not thread-safe, it should only be used by the thread
+ * currently holding the connection.</em>
+ *
+ * @author Christoffer Lerno
+ */
+class StatementCache
+{
+	private final int m_maxSize;
+	private final LinkedHashMap<String, PreparedStatement> m_statements;
+	private volatile long m_hits;
+	private volatile long m_misses;
+
+	/**
+	 * Creates a new statement cache.
+	 *
+	 * @param maxSize the maximum number of statements to keep.
+	 */
+	public StatementCache(int maxSize)
+	{
+		m_maxSize = maxSize;
+		m_hits = 0;
+		m_misses = 0;
+		m_statements = new LinkedHashMap<String, PreparedStatement>()
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+			{
+				if (size() <= m_maxSize) return false;
+				SQL.closeSilently(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Retrieves a cached statement, or prepares a new statement if there is none.
+	 *
+	 * @param connection the connection the cache belongs to.
+	 * @param sql the sql of the statement.
+	 * @return a prepared statement with no parameters set.
+	 * @throws SQLException if there was an error preparing the statement.
+	 */
+	public PreparedStatement prepare(Connection connection, String sql) throws SQLException
+	{
+		PreparedStatement statement = m_statements.remove(sql);
+		if (statement != null)
+		{
+			m_hits++;
+			return statement;
+		}
+		m_misses++;
+		return connection.prepareStatement(sql);
+	}
+
+	/**
+	 * Returns a statement to the cache after use, clearing its parameters.
+	 * <p/>
+	 * If the statement cannot be cleared it is closed instead.
+	 *
+	 * @param sql the sql of the statement.
+	 * @param statement the statement to return.
+	 */
+	public void release(String sql, PreparedStatement statement)
+	{
+		try
+		{
+			statement.clearParameters();
+		}
+		catch (SQLException e)
+		{
+			SQL.closeSilently(statement);
+			return;
+		}
+		PreparedStatement previous = m_statements.put(sql, statement);
+		if (previous != null && previous != statement)
+		{
+			SQL.closeSilently(previous);
+		}
+	}
+
+	/**
+	 * Closes and removes all statements in the cache.
+	 */
+	public void close()
+	{
+		for (PreparedStatement statement : m_statements.values())
+		{
+			SQL.closeSilently(statement);
+		}
+		m_statements.clear();
+	}
+
+	/**
+	 * Returns the number of statements currently in the cache.
+	 *
+	 * @return the number of cached statements.
+	 */
+	public int size()
+	{
+		return m_statements.size();
+	}
+
+	/**
+	 * Returns the number of times a statement was found in the cache.
+	 *
+	 * @return the number of cache hits.
+	 */
+	public long getHits()
+	{
+		return m_hits;
+	}
+
+	/**
+	 * Returns the number of times a statement had to be prepared.
+	 *
+	 * @return the number of cache misses.
+	 */
+	public long getMisses()
+	{
+		return m_misses;
+	}
+}
@@ -0,0 +1,114 @@
+package xtras.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A dictionary-encoded column of strings.
+ * <p/>
+ * Each distinct string is stored once, and every row only keeps an int code
+ * referring to the string. This works well for columns with few distinct values,
+ * such as countries or status codes, and codes may be used directly to group rows.
+ *
+ * @author Christoffer Lerno
+ */
+public class StringColumn extends ResultColumn
+{
+	/**
+	 * The code used for null values.
+	 */
+	public final static int NULL_CODE = -1;
+
+	private final List<String> m_dictionary;
+	private final HashMap<String, Integer> m_codes;
+	private int[] m_values;
+
+	/**
+	 * Creates a new empty column.
+	 */
+	public StringColumn()
+	{
+		m_dictionary = new ArrayList<String>();
+		m_codes = new HashMap<String, Integer>();
+		m_values = new int[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Returns the value of a row.
+	 *
+	 * @param row the index of the row, starting with 0.
+	 * @return the string value of the row, may be null.
+	 * @throws IndexOutOfBoundsException if the row is outside of the column.
+	 */
+	public String get(int row)
+	{
+		int code = getCode(row);
+		return code == NULL_CODE ? null : m_dictionary.get(code);
+	}
+
+	/**
+	 * Returns the dictionary code of a row.
+	 *
+	 * @param row the index of the row, starting with 0.
+	 * @return the index of the value in the dictionary, or {@link #NULL_CODE} for null.
+	 * @throws IndexOutOfBoundsException if the row is outside of the column.
+	 */
+	public int getCode(int row)
+	{
+		checkRow(row);
+		return m_values[row];
+	}
+
+	/**
+	 * Returns a copy of the dictionary codes in the column.
+	 *
+	 * @return an array with one code per row.
+	 */
+	public int[] toCodeArray()
+	{
+		return Arrays.copyOf(m_values, size());
+	}
+
+	/**
+	 * Returns the distinct strings in the column, in order of first appearance.
+	 *
+	 * @return an unmodifiable view of the dictionary.
+	 */
+	public List<String> getDictionary()
+	{
+		return Collections.unmodifiableList(m_dictionary);
+	}
+
+	protected int capacity()
+	{
+		return m_values.length;
+	}
+
+	protected void grow(int capacity)
+	{
+		m_values = Arrays.copyOf(m_values, capacity);
+	}
+
+	protected void read(ResultSet resultSet, int column, int row) throws SQLException
+	{
+		String value = resultSet.getString(column);
+		if (value == null)
+		{
+			m_values[row] = NULL_CODE;
+			return;
+		}
+		Integer code = m_codes.get(value);
+		if (code == null)
+		{
+			code = m_dictionary.size();
+			m_dictionary.add(value);
+			m_codes.put(value, code);
+		}
+		m_values[row] = code;
+	}
+}
@@ -0,0 +1,22 @@
+package xtras.sql;
+
+import java.sql.SQLException;
+
+/**
+ * The work to run inside a transaction, see {@link Db#inTransaction(TransactionIsolation, TransactionCallback)}.
+ * <p/>
+ * Since the transaction may be retried, the callback may be run several times and
+ * should not have side effects outside of the database.
+ *
+ * @author Christoffer Lerno
+ */
+public interface TransactionCallback<T>
+{
+	/**
+	 * Runs the work of the transaction.
+	 *
+	 * @return the result of the transaction.
+	 * @throws SQLException if there was an error, which rolls back the transaction.
+	 */
+	T run() throws SQLException;
+}
@@ -0,0 +1,66 @@
+package xtras.sql;
+
+import java.sql.SQLException;
+
+/**
+ * The kinds of transient transaction failures where the transaction may succeed if retried.
+ *
+ * @author Christoffer Lerno
+ */
+public enum TransactionFailure
+{
+	/**
+	 * The transaction was chosen as victim to resolve a deadlock.
+	 */
+	DEADLOCK,
+
+	/**
+	 * The transaction timed out waiting for a lock.
+	 */
+	LOCK_TIMEOUT,
+
+	/**
+	 * The transaction could not be serialized with concurrent transactions.
+	 */
+	SERIALIZATION_FAILURE;
+
+	/**
+	 * Classifies an exception by its SQL state, and by the error code where the
+	 * SQL state is ambiguous.
+	 * <p/>
+	 * Chained exceptions are checked as well.
+	 * <ul>
+	 * <li>Deadlock: SQL state 40P01, or 40001 with error code 1213 (MySQL) or 1205 (SQL Server).</li>
+	 * <li>Lock timeout: SQL state 55P03, or HY000/41000 with error code 1205 (MySQL).</li>
+	 * <li>Serialization failure: any other SQL state 40001.</li>
+	 * </ul>
+	 *
+	 * @param e the exception to classify.
+	 * @return the failure, or null if the exception is not a transient transaction failure.
+	 */
+	public static TransactionFailure classify(SQLException e)
+	{
+		while (e != null)
+		{
+			TransactionFailure failure = classifySingle(e);
+			if (failure != null) return failure;
+			e = e.getNextException();
+		}
+		return null;
+	}
+
+	private static TransactionFailure classifySingle(SQLException e)
+	{
+		String state = e.getSQLState();
+		if (state == null) return null;
+		int code = e.getErrorCode();
+		if (state.equals("40001"))
+		{
+			return code == 1213 || code == 1205 ? DEADLOCK : SERIALIZATION_FAILURE;
+		}
+		if (state.equals("40P01")) return DEADLOCK;
+		if (state.equals("55P03")) return LOCK_TIMEOUT;
+		if (code == 1205 && (state.equals("HY000") || state.equals("41000"))) return LOCK_TIMEOUT;
+		return null;
+	}
+}
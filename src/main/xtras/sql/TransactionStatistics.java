@@ -0,0 +1,123 @@
+package xtras.sql;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for transactions run through {@link Db#inTransaction(TransactionIsolation, TransactionCallback)}.
+ * <p/>
+ * A rising number of retries shows contention before it turns into failed transactions.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author Christoffer Lerno
+ */
+public class TransactionStatistics
+{
+	private final AtomicLong m_committed;
+	private final AtomicLong m_failed;
+	private final AtomicLong m_exhausted;
+	private final AtomicLongArray m_retries;
+
+	public TransactionStatistics()
+	{
+		m_committed = new AtomicLong(0);
+		m_failed = new AtomicLong(0);
+		m_exhausted = new AtomicLong(0);
+		m_retries = new AtomicLongArray(TransactionFailure.values().length);
+	}
+
+	void committed()
+	{
+		m_committed.incrementAndGet();
+	}
+
+	void retried(TransactionFailure failure)
+	{
+		m_retries.incrementAndGet(failure.ordinal());
+	}
+
+	void failed(TransactionFailure failure)
+	{
+		m_failed.incrementAndGet();
+		if (failure != null) m_exhausted.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of transactions committed.
+	 *
+	 * @return the number of committed transactions, retried or not.
+	 */
+	public long getCommitted()
+	{
+		return m_committed.get();
+	}
+
+	/**
+	 * Returns the number of transactions that failed.
+	 *
+	 * @return the number of transactions rolled back with an exception.
+	 */
+	public long getFailed()
+	{
+		return m_failed.get();
+	}
+
+	/**
+	 * Returns the number of transactions that failed with a transient failure
+	 * after using all attempts.
+	 *
+	 * @return the number of transactions that ran out of retries.
+	 */
+	public long getExhausted()
+	{
+		return m_exhausted.get();
+	}
+
+	/**
+	 * Returns the total number of retries.
+	 *
+	 * @return the number of retries for any failure.
+	 */
+	public long getRetries()
+	{
+		long retries = 0;
+		for (int i = 0; i < m_retries.length(); i++)
+		{
+			retries += m_retries.get(i);
+		}
+		return retries;
+	}
+
+	/**
+	 * Returns the number of retries caused by a kind of failure.
+	 *
+	 * @param failure the kind of failure.
+	 * @return the number of retries.
+	 */
+	public long getRetries(TransactionFailure failure)
+	{
+		return m_retries.get(failure.ordinal());
+	}
+
+	/**
+	 * Resets all counters to zero.
+	 */
+	public void reset()
+	{
+		m_committed.set(0);
+		m_failed.set(0);
+		m_exhausted.set(0);
+		for (int i = 0; i < m_retries.length(); i++)
+		{
+			m_retries.set(i, 0);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "TransactionStatistics[" + getCommitted() + " committed, " + getFailed() + " failed, "
+		       + getRetries() + " retries]";
+	}
+}
@@ -0,0 +1,220 @@
+package xtras.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Decides when and how a {@link DbPool} validates its connections,
+ * see {@link DbPool#setValidationPolicy(ValidationPolicy)}.
+ * <p/>
+ * The pool asks the policy if a connection should be validated when it is
+ * released after an error, and when it is acquired after having been idle. The same
+ * validation is used for the keep-alive checks of idle connections.
+ * <p/>
+ * Policies must be thread-safe.
+ *
+ * @author Christoffer Lerno
+ */
+public abstract class ValidationPolicy
+{
+	/**
+	 * Never validates connections, and does not check if released connections are closed.
+	 */
+	public final static ValidationPolicy NONE = new ValidationPolicy()
+	{
+		public boolean shouldValidate(boolean lastCallHadError, long idleTime)
+		{
+			return false;
+		}
+
+		public boolean validate(Connection connection)
+		{
+			return true;
+		}
+
+		@Override
+		boolean checksClosed()
+		{
+			return false;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "ValidationPolicy[none]";
+		}
+	};
+
+	/**
+	 * The default policy, validating connections released after an error using
+	 * {@link Connection#isValid(int)} with a timeout of 5 seconds.
+	 */
+	public final static ValidationPolicy DEFAULT = isValid(5);
+
+	/**
+	 * Checks if a connection should be validated.
+	 *
+	 * @param lastCallHadError true if the connection is being released after an error.
+	 * @param idleTime the time in ms the connection has been idle, 0 when releasing.
+	 * @return true if the connection should be validated.
+	 */
+	public abstract boolean shouldValidate(boolean lastCallHadError, long idleTime);
+
+	/**
+	 * Validates a connection.
+	 *
+	 * @param connection the connection to validate.
+	 * @return true if the connection can be used, false if it should be discarded.
+	 */
+	public abstract boolean validate(Connection connection);
+
+	/**
+	 * Checks if the pool should discard released connections that are closed.
+	 * This is a cheap check done on every release.
+	 *
+	 * @return true if closed connections should be detected on release.
+	 */
+	boolean checksClosed()
+	{
+		return true;
+	}
+
+	/**
+	 * Creates a policy validating connections released after an error
+	 * by running a test query.
+	 *
+	 * @param query the query to run, for example "select 1".
+	 * @return the validation policy.
+	 */
+	public static ValidationPolicy testQuery(final String query)
+	{
+		return new OnErrorPolicy()
+		{
+			public boolean validate(Connection connection)
+			{
+				return runTestQuery(connection, query);
+			}
+
+			@Override
+			public String toString()
+			{
+				return "ValidationPolicy[test query '" + query + "']";
+			}
+		};
+	}
+
+	/**
+	 * Creates a policy validating connections released after an error using
+	 * {@link Connection#isValid(int)}.
+	 * <p/>
+	 * For drivers that do not implement isValid, the test query "select 1;" is used instead.
+	 *
+	 * @param timeout the time in seconds to wait for the database to respond.
+	 * @return the validation policy.
+	 */
+	public static ValidationPolicy isValid(final int timeout)
+	{
+		return new OnErrorPolicy()
+		{
+			public boolean validate(Connection connection)
+			{
+				try
+				{
+					return connection.isValid(timeout);
+				}
+				catch (AbstractMethodError e)
+				{
+					// Driver written before isValid was added to jdbc.
+					return runTestQuery(connection, "select 1;");
+				}
+				catch (SQLException e)
+				{
+					return runTestQuery(connection, "select 1;");
+				}
+			}
+
+			@Override
+			public String toString()
+			{
+				return "ValidationPolicy[is valid, " + timeout + "s]";
+			}
+		};
+	}
+
+	/**
+	 * Creates a policy which, in addition to the cases validated by {@code policy},
+	 * also validates connections that have been idle for at least {@code idleTime}
+	 * when they are acquired.
+	 *
+	 * @param idleTime the time in ms a connection may be idle before it is validated.
+	 * @param policy the policy to validate with.
+	 * @return the validation policy.
+	 */
+	public static ValidationPolicy idle(final long idleTime, final ValidationPolicy policy)
+	{
+		return new ValidationPolicy()
+		{
+			public boolean shouldValidate(boolean lastCallHadError, long connectionIdleTime)
+			{
+				return connectionIdleTime >= idleTime || policy.shouldValidate(lastCallHadError, connectionIdleTime);
+			}
+
+			public boolean validate(Connection connection)
+			{
+				return policy.validate(connection);
+			}
+
+			@Override
+			boolean checksClosed()
+			{
+				return policy.checksClosed();
+			}
+
+			@Override
+			public String toString()
+			{
+				return "ValidationPolicy[idle " + idleTime + "ms, " + policy + "]";
+			}
+		};
+	}
+
+	/**
+	 * Runs a test query on a connection.
+	 *
+	 * @param connection the connection to test.
+	 * @param query the query to run.
+	 * @return true if the connection is open and the query ran without errors.
+	 */
+	@SuppressWarnings({"JDBCResourceOpenedButNotSafelyClosed"})
+	static boolean runTestQuery(Connection connection, String query)
+	{
+		Statement s = null;
+		try
+		{
+			if (connection.isClosed()) return false;
+			s = connection.createStatement();
+			s.execute(query);
+			return true;
+		}
+		catch (SQLException e)
+		{
+			return false;
+		}
+		finally
+		{
+			SQL.closeSilently(s);
+		}
+	}
+
+	/**
+	 * A policy validating connections released after an error.
+	 */
+	private abstract static class OnErrorPolicy extends ValidationPolicy
+	{
+		public boolean shouldValidate(boolean lastCallHadError, long idleTime)
+		{
+			return lastCallHadError;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package xtras.sql;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.*;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class AsyncDbProxyTest extends TestCase
+{
+	private PooledDbProxy m_proxy;
+	private AsyncDbProxy m_async;
+
+	public void setUp() throws Exception
+	{
+		File temp = File.createTempFile("asyncdbtest", "db");
+		temp.deleteOnExit();
+		m_proxy = new PooledDbProxy("org.sqlite.JDBC", "jdbc:sqlite:" + temp.getAbsolutePath(), "", "", 2);
+		m_async = new AsyncDbProxy(m_proxy, 1);
+		m_proxy.update("create table people (name, age);");
+	}
+
+	public void tearDown() throws Exception
+	{
+		m_async.shutdown();
+		assertTrue(m_async.awaitTermination(1000));
+		m_proxy.shutdown();
+	}
+
+	public void testQueryAndUpdate() throws Exception
+	{
+		assertEquals(1, m_async.insertAsync("insert into people values (?, ?)", "Sune", 30).get());
+		assertEquals(1, (int) m_async.updateAsync("update people set age = ? where name = ?", 31, "Sune").get());
+		List<Object[]> rows = new ArrayList<Object[]>();
+		rows.add(new Object[] { "Gurgi", 5 });
+		rows.add(new Object[] { "Lasse", 7 });
+		assertEquals(2, m_async.updateBatchAsync("insert into people values (?, ?)", rows).get().length);
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (int i = 0; i < 20; i++)
+		{
+			futures.add(m_async.queryAsync(new SingleResultProcessor<Object>(), "select count(*) from people"));
+		}
+		for (Future<Object> future : futures)
+		{
+			assertEquals(3, future.get());
+		}
+		assertEquals("[Gurgi, Lasse]",
+		             m_async.queryAsync(QueryOptions.DEFAULT, new AllResultProcessor<Object>(),
+		                                "select name from people where age < ?", 10).get().toString());
+	}
+
+	public void testError() throws Exception
+	{
+		try
+		{
+			m_async.updateAsync("update nosuchtable set x = 1").get();
+			fail();
+		}
+		catch (ExecutionException e)
+		{
+			assertTrue(e.getCause() instanceof SQLException);
+		}
+	}
+
+	public void testRejectedInTransaction() throws Exception
+	{
+		m_proxy.beginTransaction(null);
+		try
+		{
+			m_async.updateAsync("delete from people");
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("Async calls are not allowed inside a transaction.", e.getMessage());
+		}
+		finally
+		{
+			m_proxy.rollback();
+		}
+	}
+
+	public void testShutdown() throws Exception
+	{
+		m_async.shutdown();
+		try
+		{
+			m_async.updateAsync("delete from people");
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("Async proxy already shut down.", e.getMessage());
+		}
+	}
+
+	public void testRejectedAfterShutdown() throws Exception
+	{
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+		                                                     new ArrayBlockingQueue<Runnable>(1));
+		AsyncDbProxy.CallerRunsUnlessShutdownPolicy policy = new AsyncDbProxy.CallerRunsUnlessShutdownPolicy();
+		final AtomicBoolean ran = new AtomicBoolean(false);
+		Runnable runnable = new Runnable()
+		{
+			public void run()
+			{
+				ran.set(true);
+			}
+		};
+		policy.rejectedExecution(runnable, executor);
+		assertEquals(true, ran.get());
+		ran.set(false);
+		executor.shutdown();
+		try
+		{
+			policy.rejectedExecution(runnable, executor);
+			fail();
+		}
+		catch (RejectedExecutionException e)
+		{
+			assertEquals("Executor already shut down.", e.getMessage());
+		}
+		assertEquals(false, ran.get());
+	}
+
+	public void testIllegalArguments() throws Exception
+	{
+		try
+		{
+			new AsyncDbProxy(m_proxy, 0, 1);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Threads must be at least 1.", e.getMessage());
+		}
+		try
+		{
+			new AsyncDbProxy(m_proxy, 0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Queue size must be at least 1.", e.getMessage());
+		}
+	}
+}
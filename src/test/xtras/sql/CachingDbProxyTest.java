@@ -0,0 +1,200 @@
+package xtras.sql;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.*;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CachingDbProxyTest extends TestCase
+{
+	private final static String QUERY = "select name from countries where code = ?";
+
+	private PooledDbProxy m_db;
+	private CachingDbProxy m_proxy;
+
+	public void setUp() throws Exception
+	{
+		File temp = File.createTempFile("cachetest", "db");
+		temp.deleteOnExit();
+		m_db = new PooledDbProxy("org.sqlite.JDBC", "jdbc:sqlite:" + temp.getAbsolutePath(), "", "", 2);
+		m_db.update("create table countries (code, name)");
+		m_db.update("insert into countries values ('se', 'Sweden')");
+		m_db.update("insert into countries values ('fr', 'France')");
+		m_proxy = new CachingDbProxy(m_db);
+		m_proxy.cacheQuery(QUERY, 60000, "Countries");
+	}
+
+	public void tearDown()
+	{
+		m_proxy.shutdown();
+	}
+
+	private Object name(String code) throws Exception
+	{
+		return m_proxy.query(new SingleResultProcessor<Object>(), QUERY, code);
+	}
+
+	public void testCache() throws Exception
+	{
+		assertEquals("Sweden", name("se"));
+		assertEquals("France", name("fr"));
+		m_db.update("update countries set name = 'Sverige' where code = 'se'");
+		assertEquals("Sweden", name("se"));
+		assertEquals(1, m_proxy.getHits());
+		assertEquals(2, m_proxy.getMisses());
+		assertEquals(2, m_proxy.getSize());
+		assertEquals(Arrays.asList("France"), m_proxy.query(new AllResultProcessor<Object>(), QUERY, "fr"));
+		assertEquals(3, m_proxy.getSize());
+		m_proxy.invalidate("COUNTRIES");
+		assertEquals("Sverige", name("se"));
+		assertEquals(3, m_proxy.getSize());
+		assertEquals(2, m_proxy.query(new SingleResultProcessor<Object>(), "select count(*) from countries"));
+		assertEquals(3, m_proxy.getSize());
+		m_proxy.clear();
+		assertEquals(0, m_proxy.getSize());
+		assertEquals(0, m_proxy.getWeight());
+	}
+
+	public void testResultsUnmodifiable() throws Exception
+	{
+		m_proxy.cacheQuery("select code, name from countries order by code", 60000, "countries");
+		m_proxy.cacheQuery("select x'0102'", 60000);
+		for (int i = 0; i < 2; i++)
+		{
+			List<Object> rows = m_proxy.query(new AllResultProcessor<Object>(),
+			                                  "select code, name from countries order by code");
+			assertEquals("[[fr, France], [se, Sweden]]", rows.toString());
+			try
+			{
+				rows.clear();
+				fail();
+			}
+			catch (UnsupportedOperationException e)
+			{
+				// Expected
+			}
+			try
+			{
+				((List<?>) rows.get(0)).clear();
+				fail();
+			}
+			catch (UnsupportedOperationException e)
+			{
+				// Expected
+			}
+		}
+		assertEquals(1, m_proxy.getHits());
+		byte[] data = m_proxy.query(new SingleResultProcessor<byte[]>(), "select x'0102'");
+		assertEquals(2, data.length);
+		assertEquals(1, m_proxy.getSize());
+	}
+
+	public void testMappersNotCached() throws Exception
+	{
+		m_proxy.cacheQuery("select name from countries order by name", 60000, "countries");
+		Db.registerDb("cached", m_proxy);
+		try
+		{
+			Db.select("cached");
+			RowMapper<String> mapper = new RowMapper<String>()
+			{
+				public RowBinding<String> bind(ResultSetMetaData metaData)
+				{
+					return new RowBinding<String>()
+					{
+						public String mapRow(ResultSet resultSet) throws SQLException
+						{
+							return resultSet.getString(1);
+						}
+					};
+				}
+			};
+			assertEquals("France", Db.queryOne(mapper, "select name from countries order by name"));
+			assertEquals(Arrays.asList("France", "Sweden"), Db.queryAll(mapper, "select name from countries order by name"));
+			assertEquals(0, m_proxy.getSize());
+			assertEquals(0, m_proxy.getHits());
+			assertEquals(0, m_proxy.getMisses());
+		}
+		finally
+		{
+			Db.unregisterAll();
+		}
+	}
+
+	public void testInvalidateOnWrite() throws Exception
+	{
+		assertEquals("Sweden", name("se"));
+		m_proxy.update("update Countries set name = 'Sverige' where code = 'se'");
+		assertEquals("Sverige", name("se"));
+		assertEquals(null, name("de"));
+		m_proxy.insert("insert into countries values ('de', 'Germany')");
+		assertEquals("Germany", name("de"));
+		m_proxy.update("create table countries_extra (code)");
+		assertEquals("Germany", name("de"));
+		assertEquals(1, m_proxy.getHits());
+	}
+
+	public void testTtl() throws Exception
+	{
+		m_proxy.cacheQuery(QUERY, 50, "countries");
+		assertEquals("Sweden", name("se"));
+		m_db.update("update countries set name = 'Sverige' where code = 'se'");
+		assertEquals("Sweden", name("se"));
+		Thread.sleep(100);
+		assertEquals("Sverige", name("se"));
+	}
+
+	public void testTransaction() throws Exception
+	{
+		assertEquals("Sweden", name("se"));
+		m_proxy.beginTransaction(null);
+		m_proxy.update("update countries set name = 'Sverige' where code = 'se'");
+		assertEquals("Sverige", name("se"));
+		m_proxy.rollback();
+		assertEquals("Sweden", name("se"));
+		m_proxy.beginTransaction(null);
+		m_proxy.update("update countries set name = 'Sverige' where code = 'se'");
+		m_proxy.commit();
+		assertEquals("Sverige", name("se"));
+		long hits = m_proxy.getHits();
+		assertEquals("Sverige", name("se"));
+		assertEquals(hits + 1, m_proxy.getHits());
+	}
+
+	public void testEviction() throws Exception
+	{
+		CachingDbProxy proxy = new CachingDbProxy(m_db, 2, 3);
+		proxy.cacheQuery("select name from countries where code <> ?", 60000, "countries");
+		proxy.cacheQuery(QUERY, 60000, "countries");
+		proxy.query(new AllResultProcessor<Object>(), "select name from countries where code <> ?", "x");
+		assertEquals(2, proxy.getWeight());
+		proxy.query(new SingleResultProcessor<Object>(), QUERY, "se");
+		proxy.query(new SingleResultProcessor<Object>(), QUERY, "fr");
+		assertEquals(2, proxy.getSize());
+		assertEquals(2, proxy.getWeight());
+		proxy.query(new SingleResultProcessor<Object>(), QUERY, "se");
+		assertEquals(1, proxy.getHits());
+		List<Object[]> rows = new ArrayList<Object[]>();
+		rows.add(new Object[] { "de", "Germany" });
+		proxy.updateBatch("insert into countries values (?, ?)", rows);
+		proxy.query(new SingleResultProcessor<Object>(), QUERY, "se");
+		assertEquals(1, proxy.getHits());
+		try
+		{
+			new CachingDbProxy(m_db, 0, 1);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Max entries must be at least 1.", e.getMessage());
+		}
+	}
+}
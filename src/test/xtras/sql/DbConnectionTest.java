@@ -8,6 +8,7 @@ import junit.framework.*;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Arrays;
 
 public class DbConnectionTest extends TestCase
 {
@@ -159,10 +160,10 @@ public class DbConnectionTest extends TestCase
 		}
 		catch (SQLException e)
 		{
-			assertEquals("Tried to start transaction while already in transaction.", e.getMessage());
+			assertEquals("unsupported by SQLite: savepoints", e.getMessage());
 		}
 		assertEquals(false, m_dbConnection.isInTransaction());
-		assertEquals(false, m_dbConnection.hasErrors());
+		assertEquals(true, m_dbConnection.hasErrors());
 	}
 
 	public void testDoubleStartTransactionWithRollbackException() throws Exception
@@ -179,12 +180,75 @@ public class DbConnectionTest extends TestCase
 		}
 		catch (SQLException e)
 		{
-			assertEquals("Tried to start transaction while already in transaction.", e.getMessage());
+			// Expected
 		}
 		assertEquals(false, m_dbConnection.isInTransaction());
 		assertEquals(true, m_dbConnection.hasErrors());
 	}
 
+	public void testNestedTransaction() throws Exception
+	{
+		RecordingDriver driver = RecordingDriver.register();
+		try
+		{
+			File temp = File.createTempFile("dbtest", "db");
+			temp.deleteOnExit();
+			DbPool pool = new DbPool(RecordingDriver.PREFIX + temp.getAbsolutePath(), "", "", 2);
+			m_dbConnection.update(pool, "create table test (name)");
+			assertEquals(0, m_dbConnection.getTransactionDepth());
+			m_dbConnection.beginTransaction(pool, null);
+			m_dbConnection.deferUpdate(pool, 10, "insert into test values (?)", "Foo");
+			m_dbConnection.beginTransaction(pool, null);
+			assertEquals(2, m_dbConnection.getTransactionDepth());
+			assertEquals(0, m_dbConnection.getDeferredCount());
+			m_dbConnection.beginTransaction(pool, null);
+			m_dbConnection.deferUpdate(pool, 10, "insert into test values (?)", "Bar");
+			m_dbConnection.rollback();
+			assertEquals(0, m_dbConnection.getDeferredCount());
+			assertEquals(2, m_dbConnection.getTransactionDepth());
+			m_dbConnection.commit();
+			assertEquals(1, m_dbConnection.getTransactionDepth());
+			assertEquals(Arrays.asList("autoCommit false", "set 1", "set 2", "rollback 2", "release 1"),
+			             driver.getCalls());
+			m_dbConnection.commit();
+			assertEquals(false, m_dbConnection.isInTransaction());
+			assertEquals(1, m_dbConnection.query(pool, new SingleResultProcessor(), "select count(*) from test"));
+			assertEquals(false, m_dbConnection.hasErrors());
+			assertEquals(0, pool.getConnectionsBusy());
+		}
+		finally
+		{
+			driver.deregister();
+		}
+	}
+
+	public void testSessionSettingsReused() throws Exception
+	{
+		RecordingDriver driver = RecordingDriver.register();
+		try
+		{
+			File temp = File.createTempFile("dbtest", "db");
+			temp.deleteOnExit();
+			DbPool pool = new DbPool(RecordingDriver.PREFIX + temp.getAbsolutePath(), "", "", 1);
+			m_dbConnection.update(pool, "create table test (name)");
+			for (int i = 0; i < 2; i++)
+			{
+				m_dbConnection.beginTransaction(pool, TransactionIsolation.SERIALIZABLE);
+				m_dbConnection.update(pool, "insert into test values (?)", "Foo");
+				m_dbConnection.commit();
+			}
+			// The second transaction finds the settings of the first still in place.
+			assertEquals(Arrays.asList("autoCommit false"), driver.getCalls());
+			assertEquals(2, m_dbConnection.query(pool, new SingleResultProcessor(), "select count(*) from test"));
+			assertEquals(Arrays.asList("autoCommit false", "autoCommit true"), driver.getCalls());
+			assertEquals(false, m_dbConnection.hasErrors());
+		}
+		finally
+		{
+			driver.deregister();
+		}
+	}
+
 	public void testBeginTransactionFailed() throws Exception
 	{
 		Connection c = m_pool.acquire();
@@ -202,4 +266,31 @@ public class DbConnectionTest extends TestCase
 		assertEquals(false, m_dbConnection.isInTransaction());
 		assertEquals(true, m_dbConnection.hasErrors());
 	}
-}
\ No newline at end of file
+
+	public void testStatementCache() throws Exception
+	{
+		File temp = File.createTempFile("dbtest", "db");
+		temp.deleteOnExit();
+		DbPool pool = new DbPool("jdbc:sqlite:" + temp.getAbsolutePath(), "", "", 1);
+		pool.setStatementCacheSize(2);
+		assertEquals(2, pool.getStatementCacheSize());
+		try
+		{
+			assertEquals(1, m_dbConnection.query(pool, new SingleResultProcessor(), "select ?", 1));
+			assertEquals(2, m_dbConnection.query(pool, new SingleResultProcessor(), "select ?", 2));
+			assertEquals(1, pool.getStatementCacheMisses());
+			assertEquals(1, pool.getStatementCacheHits());
+
+			// Fill the cache, evicting "select ?".
+			m_dbConnection.query(pool, new SingleResultProcessor(), "select 1");
+			m_dbConnection.query(pool, new SingleResultProcessor(), "select 2");
+			assertEquals(3, m_dbConnection.query(pool, new SingleResultProcessor(), "select ?", 3));
+			assertEquals(4, pool.getStatementCacheMisses());
+			assertEquals(1, pool.getStatementCacheHits());
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package xtras.sql;
+
+import xtras.time.Benchmark;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Microbenchmark of Db registry lookups from several threads, comparing with the
+ * previous implementation using a HashMap guarded by a lock.
+ * <p/>
+ * This is not part of the test suite, run it with {@link #main(String[])}.
+ *
+ * @author Christoffer Lerno
+ */
+public class DbLookupBenchmark
+{
+	private final static int THREADS = 8;
+	private final static int LOOKUPS = 200000;
+
+	public static void main(String... args) throws Exception
+	{
+		File temp = File.createTempFile("dbbenchmark", "db");
+		temp.deleteOnExit();
+		Db.register("sqlite", "org.sqlite.JDBC", "jdbc:sqlite:" + temp.getAbsolutePath(), "", "", 2);
+		try
+		{
+			final Object lock = new Object();
+			final Map<String, DbProxy> locked = new HashMap<String, DbProxy>();
+			locked.put("sqlite", Db.getDb("sqlite"));
+			Runnable lockedLookups = new Runnable()
+			{
+				public void run()
+				{
+					for (int i = 0; i < LOOKUPS; i++)
+					{
+						DbProxy db;
+						synchronized (lock)
+						{
+							db = locked.get("sqlite");
+						}
+						synchronized (lock)
+						{
+							if (db.inTransaction()) throw new IllegalStateException("Unexpected transaction.");
+						}
+					}
+				}
+			};
+			Runnable lockFreeLookups = new Runnable()
+			{
+				public void run()
+				{
+					for (int i = 0; i < LOOKUPS; i++)
+					{
+						if (Db.getDb("sqlite") == null) throw new IllegalStateException("Db not found.");
+						if (Db.isInTransaction()) throw new IllegalStateException("Unexpected transaction.");
+					}
+				}
+			};
+			long lockedTime = 0;
+			long lockFreeTime = 0;
+			// The first round warms up the jit.
+			for (int round = 0; round < 2; round++)
+			{
+				lockedTime = runLookups(lockedLookups);
+				lockFreeTime = runLookups(lockFreeLookups);
+			}
+			System.out.println("Db lookups, " + THREADS + " threads x " + LOOKUPS + ": locked " + lockedTime
+			                   + " ms, lock-free " + lockFreeTime + " ms.");
+		}
+		finally
+		{
+			Db.unregisterAll();
+		}
+	}
+
+	private static long runLookups(final Runnable lookups) throws Exception
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		for (int i = 0; i < THREADS; i++)
+		{
+			new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						start.await();
+						lookups.run();
+					}
+					catch (InterruptedException e)
+					{
+						// Exit
+					}
+					finally
+					{
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		Benchmark.start();
+		start.countDown();
+		done.await();
+		return Benchmark.end();
+	}
+}
@@ -11,6 +11,12 @@ import java.io.File;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -314,6 +320,8 @@ public class DbPoolTest extends TestCase
 
 	public void testConnectionIsOk() throws Exception
 	{
+		m_dbPool.setValidationPolicy(ValidationPolicy.testQuery("select 1;"));
+
 		// Exception when testing connection.
 		final Statement s1 = ObjectExtras.adapt(Statement.class, new Object()
 		{
@@ -356,6 +364,103 @@ public class DbPoolTest extends TestCase
 		}), true));
 	}
 
+	public void testValidationPolicy() throws Exception
+	{
+		assertSame(ValidationPolicy.DEFAULT, m_dbPool.getValidationPolicy());
+		Connection valid = ObjectExtras.adapt(Connection.class, new Object()
+		{
+			public boolean isValid(int timeout)
+			{
+				return true;
+			}
+		});
+		Connection invalid = ObjectExtras.adapt(Connection.class, new Object()
+		{
+			public boolean isValid(int timeout)
+			{
+				return false;
+			}
+		});
+		Connection closed = ObjectExtras.adapt(Connection.class, new Object()
+		{
+			public boolean isClosed()
+			{
+				return true;
+			}
+		});
+		assertEquals(true, m_dbPool.connectionIsOk(valid, true));
+		assertEquals(false, m_dbPool.connectionIsOk(invalid, true));
+		assertEquals(true, m_dbPool.connectionIsOk(invalid, false));
+		assertEquals(false, m_dbPool.connectionIsOk(closed, false));
+
+		m_dbPool.setValidationPolicy(ValidationPolicy.NONE);
+		assertEquals(true, m_dbPool.connectionIsOk(invalid, true));
+		assertEquals(true, m_dbPool.connectionIsOk(closed, true));
+
+		ValidationPolicy idle = ValidationPolicy.idle(100, ValidationPolicy.DEFAULT);
+		assertEquals(false, idle.shouldValidate(false, 99));
+		assertEquals(true, idle.shouldValidate(false, 100));
+		assertEquals(true, idle.shouldValidate(true, 0));
+
+		try
+		{
+			m_dbPool.setValidationPolicy(null);
+			fail();
+		}
+		catch (NullPointerException e)
+		{
+			assertEquals("Validation policy must not be null.", e.getMessage());
+		}
+	}
+
+	public void testIdleValidationOnAcquire() throws Exception
+	{
+		m_dbPool.setValidationPolicy(ValidationPolicy.idle(1, ValidationPolicy.DEFAULT));
+		Connection c1 = m_dbPool.acquire();
+		m_dbPool.release(c1, false);
+		Thread.sleep(5);
+		assertEquals(c1, m_dbPool.acquire());
+		m_dbPool.release(c1, false);
+
+		// A connection broken while idle is discarded rather than handed out.
+		c1.close();
+		Thread.sleep(5);
+		Connection c2 = m_dbPool.acquire();
+		assertFalse(c1.equals(c2));
+		assertEquals(1, m_dbPool.getConnectionsBusy());
+		assertEquals(0, m_dbPool.getConnectionsFree());
+	}
+
+	public void testAsyncValidation() throws Exception
+	{
+		assertEquals(false, m_dbPool.isAsyncValidation());
+		m_dbPool.setAsyncValidation(true);
+		assertEquals(true, m_dbPool.isAsyncValidation());
+		Connection c1 = m_dbPool.acquire();
+		Connection c2 = m_dbPool.acquire();
+
+		// Released without errors, no validation needed.
+		m_dbPool.release(c1, false);
+		assertEquals(1, m_dbPool.getConnectionsFree());
+
+		// Validated in the background, and returned to the pool.
+		m_dbPool.release(c2, true);
+		assertEquals(true, waitForFreeConnections(2));
+		assertEquals(0, m_dbPool.getConnectionsQuarantined());
+
+		// Broken connections are discarded after validation.
+		c1 = m_dbPool.acquire();
+		c1.close();
+		m_dbPool.release(c1, true);
+		for (int i = 0; i < 100 && m_dbPool.getConnectionsQuarantined() > 0; i++)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(0, m_dbPool.getConnectionsQuarantined());
+		assertEquals(1, m_dbPool.getConnectionsFree());
+		assertEquals(0, m_dbPool.getConnectionsBusy());
+	}
+
 	public void testResizePool() throws Exception
 	{
 		Connection c1 = m_dbPool.acquire();
@@ -377,9 +482,422 @@ public class DbPoolTest extends TestCase
 		assertEquals(0, m_dbPool.getConnectionsFree());
 	}
 
+	public void testConcurrentAcquireRelease() throws Exception
+	{
+		final Set<Connection> inUse = Collections.synchronizedSet(new HashSet<Connection>());
+		final AtomicInteger failures = new AtomicInteger(0);
+		Thread[] threads = new Thread[16];
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for (int j = 0; j < 200; j++)
+						{
+							Connection c = m_dbPool.acquire();
+							if (!inUse.add(c)) failures.incrementAndGet();
+							Thread.yield();
+							inUse.remove(c);
+							m_dbPool.release(c, false);
+						}
+					}
+					catch (SQLException e)
+					{
+						failures.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads)
+		{
+			t.join();
+		}
+		assertEquals(0, failures.get());
+		assertEquals(0, m_dbPool.getConnectionsBusy());
+		assertEquals(2, m_dbPool.getConnectionsFree());
+	}
+
+	public void testMinIdle() throws Exception
+	{
+		assertEquals(0, m_dbPool.getMinIdle());
+		m_dbPool.setMinIdle(1);
+		assertEquals(1, m_dbPool.getMinIdle());
+		assertEquals(true, waitForFreeConnections(1));
+		assertEquals(1, m_dbPool.getConnectionsFree() + m_dbPool.getConnectionsBusy());
+
+		// Acquiring the idle connection should cause the housekeeper to open another one.
+		m_dbPool.acquire();
+		assertEquals(true, waitForFreeConnections(1));
+		assertEquals(1, m_dbPool.getConnectionsBusy());
+
+		// Min idle is capped by the pool size.
+		m_dbPool.setMinIdle(5);
+		assertEquals(2, m_dbPool.getMinIdle());
+		m_dbPool.setMinIdle(0);
+	}
+
+	private boolean waitForFreeConnections(int free) throws InterruptedException
+	{
+		for (int i = 0; i < 100; i++)
+		{
+			if (m_dbPool.getConnectionsFree() == free) return true;
+			Thread.sleep(10);
+		}
+		return false;
+	}
+
+	public void testIdleTimeout() throws Exception
+	{
+		assertEquals(0, m_dbPool.getIdleTimeout());
+		Connection c1 = m_dbPool.acquire();
+		Connection c2 = m_dbPool.acquire();
+		m_dbPool.release(c1, false);
+		m_dbPool.release(c2, false);
+		m_dbPool.setIdleTimeout(1);
+		assertEquals(1, m_dbPool.getIdleTimeout());
+		Thread.sleep(5);
+		m_dbPool.maintain();
+		assertEquals(true, waitForFreeConnections(0));
+		assertEquals(0, m_dbPool.getConnectionsBusy());
+		assertTrue(c1.isClosed());
+		assertTrue(c2.isClosed());
+		m_dbPool.setIdleTimeout(0);
+	}
+
+	public void testMaxLifetime() throws Exception
+	{
+		assertEquals(0, m_dbPool.getMaxLifetime());
+		m_dbPool.setMaxLifetime(100);
+		assertEquals(100, m_dbPool.getMaxLifetime());
+		Connection c1 = m_dbPool.acquire();
+		m_dbPool.release(c1, false);
+		assertEquals(1, m_dbPool.getConnectionsFree());
+
+		// Free connections are retired by the housekeeper.
+		Thread.sleep(120);
+		m_dbPool.maintain();
+		assertEquals(true, waitForFreeConnections(0));
+		assertTrue(c1.isClosed());
+
+		// Busy connections are retired on release.
+		Connection c2 = m_dbPool.acquire();
+		Thread.sleep(120);
+		m_dbPool.release(c2, false);
+		assertEquals(0, m_dbPool.getConnectionsFree());
+		assertEquals(0, m_dbPool.getConnectionsBusy());
+		assertTrue(c2.isClosed());
+		m_dbPool.setMaxLifetime(0);
+	}
+
+	public void testKeepAlive() throws Exception
+	{
+		assertEquals(0, m_dbPool.getKeepAliveInterval());
+		Connection c1 = m_dbPool.acquire();
+		m_dbPool.release(c1, false);
+		m_dbPool.setKeepAliveInterval(1);
+		assertEquals(1, m_dbPool.getKeepAliveInterval());
+		Thread.sleep(5);
+		assertEquals(0, m_dbPool.maintain());
+		assertEquals(1, m_dbPool.getConnectionsFree());
+		assertFalse(c1.isClosed());
+
+		// A connection broken while idle is removed.
+		c1.close();
+		Thread.sleep(5);
+		m_dbPool.maintain();
+		assertEquals(true, waitForFreeConnections(0));
+		assertEquals(0, m_dbPool.getConnectionsBusy());
+		assertFalse(c1.equals(m_dbPool.acquire()));
+		m_dbPool.setKeepAliveInterval(0);
+	}
+
+	public void testValidate() throws Exception
+	{
+		PooledConnection c = m_dbPool.acquirePooled();
+		assertEquals(true, m_dbPool.validate(c));
+		c.getConnection().close();
+		assertEquals(false, m_dbPool.validate(c));
+	}
+
+	public void testThreadAffinity() throws Exception
+	{
+		assertEquals(false, m_dbPool.isThreadAffinity());
+		m_dbPool.setThreadAffinity(true);
+		assertEquals(true, m_dbPool.isThreadAffinity());
+		Connection c1 = m_dbPool.acquire();
+		final Connection c2 = m_dbPool.acquire();
+		m_dbPool.release(c1, false);
+
+		// Release c2 on another thread, making it the most recently released connection.
+		Thread t = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				m_dbPool.release(c2, false);
+			}
+		};
+		t.start();
+		t.join();
+
+		// We should still get back the connection we released last on this thread.
+		assertEquals(c1, m_dbPool.acquire());
+		assertEquals(c2, m_dbPool.acquire());
+		m_dbPool.release(c2, false);
+
+		// A connection removed from the pool is never handed out again.
+		m_dbPool.release(c1, false);
+		assertEquals(c1, m_dbPool.acquire());
+		c1.close();
+		m_dbPool.release(c1, false);
+		assertEquals(c2, m_dbPool.acquire());
+	}
+
+	public void testMetrics() throws Exception
+	{
+		DbPoolMetrics metrics = new DbPoolMetrics();
+		m_dbPool.setListener(metrics);
+		assertSame(metrics, m_dbPool.getListener());
+		Connection c1 = m_dbPool.acquire();
+		Connection c2 = m_dbPool.acquire();
+		assertEquals(2, metrics.getConnectionsCreated());
+		assertEquals(2, metrics.getAcquireCount());
+		assertEquals(2, metrics.getConnectionsBusy());
+		m_dbPool.setAcquireTimeout(2);
+		try
+		{
+			m_dbPool.acquire();
+			fail();
+		}
+		catch (SQLException e)
+		{
+			// Ok
+		}
+		assertEquals(1, metrics.getAcquireTimeouts());
+		assertEquals(2, metrics.getAcquireCount());
+		m_dbPool.release(c1, false);
+		c2.close();
+		m_dbPool.release(c2, true);
+		assertEquals(0, metrics.getConnectionsBusy());
+		assertEquals(2, metrics.getPeakConnectionsBusy());
+		assertEquals(2, metrics.getHoldTime().getCount());
+		assertEquals(1, metrics.getConnectionsDiscardedBroken());
+		Thread.sleep(2);
+		assertEquals(1, m_dbPool.resizePool(0));
+		assertEquals(1, metrics.getConnectionsDiscardedIdle());
+		assertTrue(metrics.getAcquireWaitMax() >= 0);
+		assertTrue(metrics.getHoldTimeMean() > 0);
+		m_dbPool.setListener(null);
+		m_dbPool.acquire();
+		assertEquals(2, metrics.getAcquireCount());
+	}
+
+	public void testHandOffToWaiter() throws Exception
+	{
+		assertHandOffToWaiter(false);
+	}
+
+	public void testHandOffToWaiterWithThreadAffinity() throws Exception
+	{
+		assertHandOffToWaiter(true);
+	}
+
+	private void assertHandOffToWaiter(boolean threadAffinity) throws Exception
+	{
+		DbPool pool = new DbPool("jdbc:sqlite:" + m_temp.getAbsolutePath(), "", "", 1);
+		try
+		{
+			pool.setThreadAffinity(threadAffinity);
+			pool.setAcquireTimeout(100);
+			final Connection c = pool.acquire();
+			final DbPool waitingPool = pool;
+			final AtomicReference<Connection> acquired = new AtomicReference<Connection>();
+			Thread waiter = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						acquired.set(waitingPool.acquire());
+					}
+					catch (SQLException e)
+					{
+						// Checked below.
+					}
+				}
+			};
+			waiter.start();
+			Thread.sleep(50);
+			pool.release(c, false);
+			try
+			{
+				pool.acquire();
+				fail();
+			}
+			catch (SQLException e)
+			{
+				assertEquals(true, e.getMessage().startsWith("Timeout waiting to acquire db connection"));
+			}
+			waiter.join();
+			assertSame(c, acquired.get());
+			pool.release(c, false);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	public void testWaitersServedInOrder() throws Exception
+	{
+		final DbPool pool = new DbPool("jdbc:sqlite:" + m_temp.getAbsolutePath(), "", "", 1);
+		try
+		{
+			pool.setAcquireTimeout(2000);
+			Connection c = pool.acquire();
+			final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+			List<Thread> waiters = new ArrayList<Thread>();
+			for (int i = 0; i < 3; i++)
+			{
+				final int id = i;
+				Thread waiter = new Thread()
+				{
+					public void run()
+					{
+						try
+						{
+							Connection connection = pool.acquire();
+							order.add(id);
+							pool.release(connection, false);
+						}
+						catch (SQLException e)
+						{
+							// Checked below.
+						}
+					}
+				};
+				waiter.start();
+				waiters.add(waiter);
+				Thread.sleep(30);
+			}
+			pool.release(c, false);
+			for (Thread waiter : waiters)
+			{
+				waiter.join();
+			}
+			assertEquals(Arrays.asList(0, 1, 2), order);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
 	public void testGetAcquireTimeout() throws Exception
 	{
 		m_dbPool.setAcquireTimeout(10);
 		assertEquals(10, m_dbPool.getAcquireTimeout());
 	}
-}
\ No newline at end of file
+
+	public void testSessionRestoredAfterAcquire() throws Exception
+	{
+		DbPool pool = new DbPool("jdbc:sqlite:" + m_temp.getAbsolutePath(), "", "", 1);
+		try
+		{
+			Connection c = pool.acquire();
+			c.createStatement().execute("create table test (name)");
+			c.setAutoCommit(false);
+			c.createStatement().execute("insert into test values ('Foo')");
+			pool.release(c, false);
+			// The settings of an acquired connection are unknown, so the pool rolls back
+			// and restores all settings the next time it uses the connection itself.
+			DbConnection connection = new DbConnection();
+			assertEquals(0, connection.query(pool, new SingleResultProcessor(), "select count(*) from test"));
+			c = pool.acquire();
+			assertEquals(true, c.getAutoCommit());
+			pool.release(c, false);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	public void testApplySession() throws Exception
+	{
+		final Connection connection = m_dbPool.acquire();
+		final StringBuilder calls = new StringBuilder();
+		Connection counting = ObjectExtras.override(connection, new Object()
+		{
+			public void setAutoCommit(boolean autoCommit) throws SQLException
+			{
+				calls.append("autoCommit ").append(autoCommit).append(";");
+				connection.setAutoCommit(autoCommit);
+			}
+
+			public void setTransactionIsolation(int isolation) throws SQLException
+			{
+				calls.append("isolation ").append(isolation).append(";");
+				connection.setTransactionIsolation(isolation);
+			}
+		});
+		SessionState defaults = SessionState.read(connection);
+		PooledConnection c = new PooledConnection(counting, PooledConnection.BUSY, 0, defaults);
+		SessionState transaction = defaults.withAutoCommit(false)
+				.withIsolation(TransactionIsolation.SERIALIZABLE.getId());
+		c.applySession(transaction);
+		assertEquals("autoCommit false;", calls.toString());
+		connection.rollback();
+		c.applySession(transaction);
+		assertEquals("autoCommit false;", calls.toString());
+		c.resetSession();
+		assertEquals("autoCommit false;autoCommit true;", calls.toString());
+		assertEquals(defaults, c.getSession());
+		try
+		{
+			c.applySession(defaults.withIsolation(Connection.TRANSACTION_READ_COMMITTED));
+			fail();
+		}
+		catch (SQLException e)
+		{
+			assertEquals("SQLite supports only TRANSACTION_SERIALIZABLE", e.getMessage());
+		}
+		assertEquals(null, c.getSession());
+		c.resetSession();
+		assertEquals("autoCommit false;autoCommit true;isolation 2;autoCommit true;isolation 8;", calls.toString());
+		m_dbPool.release(connection, false);
+	}
+
+	public void testValidateRollsBackOutsideAutoCommit() throws Exception
+	{
+		final Connection connection = m_dbPool.acquire();
+		final StringBuilder calls = new StringBuilder();
+		Connection counting = ObjectExtras.override(connection, new Object()
+		{
+			public void rollback() throws SQLException
+			{
+				calls.append("rollback;");
+				connection.rollback();
+			}
+		});
+		SessionState defaults = SessionState.read(connection);
+		PooledConnection c = new PooledConnection(counting, PooledConnection.BUSY, 0, defaults);
+		ValidationPolicy policy = ValidationPolicy.testQuery("select 1;");
+		assertEquals(true, c.validate(policy));
+		assertEquals("", calls.toString());
+		assertEquals(defaults, c.getSession());
+		c.applySession(defaults.withAutoCommit(false));
+		assertEquals(true, c.validate(policy));
+		assertEquals("rollback;", calls.toString());
+		assertEquals(null, c.getSession());
+		c.resetSession();
+		assertEquals("rollback;rollback;", calls.toString());
+		assertEquals(true, connection.getAutoCommit());
+		m_dbPool.release(connection, false);
+	}
+}
@@ -32,6 +32,43 @@ public class DbProxyFakeTest extends TestCase
 		assertEquals(1, m_fakeDb.update("update test set x = 1"));
 	}
 
+	public void testBatch() throws Exception
+	{
+		m_fakeDb.addQuery("update test set x = ?", new FakeResultGenerator()
+		{
+			public Object[] createResult(int row, Object[] arguments)
+			{
+				return row == 0 ? new Object[]{(Integer) arguments[0] * 2} : null;
+			}
+		});
+		List<Object[]> rows = Arrays.asList(new Object[]{1}, new Object[]{2});
+		assertEquals("[2, 4]", Arrays.toString(m_fakeDb.updateBatch("update test set x = ?", rows)));
+		m_fakeDb.addQuery("insert 1", 7);
+		assertEquals("[7, 7]", m_fakeDb.insertBatch("insert 1", rows).toString());
+	}
+
+	public void testQueryWithOptions() throws Exception
+	{
+		m_fakeDb.addQuery("select *", new FakeResultGenerator()
+		{
+			public Object[] createResult(int row, Object[] arguments)
+			{
+				return new Object[]{row};
+			}
+		});
+		assertEquals("[0, 1, 2]", m_fakeDb.query(new QueryOptions(100, 3), new AllResultProcessor(), "select *").toString());
+	}
+
+	public void testCursor() throws Exception
+	{
+		m_fakeDb.addQuery("select *", Arrays.asList(new Object[]{1}, new Object[]{2, 3}));
+		Cursor<Object> cursor = m_fakeDb.cursor(QueryOptions.DEFAULT, "select *");
+		assertEquals(1, cursor.next());
+		assertEquals("[2, 3]", cursor.next().toString());
+		assertEquals(false, cursor.hasNext());
+		assertEquals(true, cursor.isClosed());
+	}
+
 	public void testAddQuery() throws Exception
 	{
 		m_fakeDb.addQuery("select * from thetable where key > ?", new FakeResultGenerator()
@@ -4,9 +4,15 @@ package xtras.sql;
  */
 
 import junit.framework.*;
+import xtras.lang.ObjectExtras;
 
 import java.sql.*;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class DbTest extends TestCase
@@ -96,6 +102,477 @@ public class DbTest extends TestCase
 		assertEquals(42, value.intValue());
 	}
 
+	public void testQueryWithOptions() throws Exception
+	{
+		Db.update("drop table if exists <test>.people");
+		Db.update("create table <test>.people (name, occupation);");
+		for (int i = 0; i < 10; i++)
+		{
+			Db.insert("insert into <test>.people values (?, ?)", "Person" + i, "Programmer");
+		}
+		assertEquals(10, Db.query(QueryOptions.streaming(3), new AllResultProcessor<Object>(),
+		                          "select name from <test>.people").size());
+		assertEquals("[Person0, Person1, Person2, Person3]",
+		             Db.query(new QueryOptions(2, 4), new AllResultProcessor<Object>(),
+		                      "select name from <test>.people").toString());
+		// Options do not stick to the statement.
+		assertEquals(10, Db.queryAll("select name from <test>.people").size());
+	}
+
+	public void testStream() throws Exception
+	{
+		Db.update("drop table if exists <test>.people");
+		Db.update("create table <test>.people (name, occupation);");
+		Db.insert("insert into <test>.people values (?, ?)", "Sune", "Programmer");
+		Db.insert("insert into <test>.people values (?, ?)", "Gurgi", "QA Engineer");
+		DbPool pool = ((PooledDbProxy) Db.getDb("sqlite")).getPool();
+		Cursor<Object> cursor = Db.stream("select * from <test>.people");
+		assertEquals(1, pool.getConnectionsBusy());
+		List<Object> rows = new ArrayList<Object>();
+		for (Object row : cursor)
+		{
+			rows.add(row);
+		}
+		assertEquals("[[Sune, Programmer], [Gurgi, QA Engineer]]", rows.toString());
+		assertEquals(true, cursor.isClosed());
+		assertEquals(0, pool.getConnectionsBusy());
+
+		// Closing early releases the connection.
+		cursor = Db.stream(new QueryOptions(1, 0), "select name from <test>.people");
+		assertEquals("Sune", cursor.next());
+		cursor.close();
+		assertEquals(false, cursor.hasNext());
+		assertEquals(0, pool.getConnectionsBusy());
+	}
+
+	public void testStreamInTransaction() throws Exception
+	{
+		Db.update("drop table if exists <test>.people");
+		Db.update("create table <test>.people (name, occupation);");
+		DbPool pool = ((PooledDbProxy) Db.getDb("sqlite")).getPool();
+		Db.beginTransaction();
+		Db.insert("insert into <test>.people values (?, ?)", "Sune", "Programmer");
+		Cursor<Object> cursor = Db.stream("select name from <test>.people");
+		assertEquals(true, cursor.hasNext());
+		assertEquals(1, pool.getConnectionsBusy());
+		Db.rollback();
+		assertEquals(true, cursor.isClosed());
+		assertEquals(0, pool.getConnectionsBusy());
+		assertEquals(false, Db.stream("select name from <test>.people").hasNext());
+	}
+
+	public void testInTransaction() throws Exception
+	{
+		final TransactionStatistics statistics = Db.getTransactionStatistics();
+		statistics.reset();
+		Db.update("create table test (key integer primary key autoincrement, name)");
+		final AtomicInteger attempts = new AtomicInteger(0);
+		Object key = Db.inTransaction(null, new TransactionCallback<Object>()
+		{
+			public Object run() throws SQLException
+			{
+				assertEquals(true, Db.isInTransaction());
+				Object key = Db.insert("insert into test (name) values (?)", "Foo");
+				if (attempts.incrementAndGet() < 3) throw new SQLException("Conflict", "40001");
+				return key;
+			}
+		});
+		assertEquals(1, key);
+		assertEquals(false, Db.isInTransaction());
+		assertEquals(1, Db.queryOne("select count(*) from test"));
+		assertEquals(1, statistics.getCommitted());
+		assertEquals(2, statistics.getRetries());
+		assertEquals(2, statistics.getRetries(TransactionFailure.SERIALIZATION_FAILURE));
+
+		attempts.set(0);
+		try
+		{
+			Db.inTransaction(null, new RetryPolicy(2, 0, 0), new TransactionCallback<Object>()
+			{
+				public Object run() throws SQLException
+				{
+					attempts.incrementAndGet();
+					Db.insert("insert into test (name) values (?)", "Bar");
+					throw new SQLException("Deadlock", "40P01");
+				}
+			});
+			fail();
+		}
+		catch (SQLException e)
+		{
+			assertEquals("Deadlock", e.getMessage());
+		}
+		assertEquals(2, attempts.get());
+		assertEquals(1, statistics.getFailed());
+		assertEquals(1, statistics.getExhausted());
+		assertEquals(1, statistics.getRetries(TransactionFailure.DEADLOCK));
+
+		attempts.set(0);
+		try
+		{
+			Db.inTransaction(null, new TransactionCallback<Object>()
+			{
+				public Object run() throws SQLException
+				{
+					attempts.incrementAndGet();
+					return Db.insert("insert into nosuchtable (name) values (?)", "Bar");
+				}
+			});
+			fail();
+		}
+		catch (SQLException e)
+		{
+			// Expected
+		}
+		assertEquals(1, attempts.get());
+		try
+		{
+			Db.inTransaction(null, new TransactionCallback<Object>()
+			{
+				public Object run() throws SQLException
+				{
+					Db.insert("insert into test (name) values (?)", "Bar");
+					throw new IllegalStateException("Foo");
+				}
+			});
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("Foo", e.getMessage());
+		}
+		assertEquals(false, Db.isInTransaction());
+		assertEquals(1, Db.queryOne("select count(*) from test"));
+		assertEquals(3, statistics.getFailed());
+		assertEquals(1, statistics.getExhausted());
+	}
+
+	public void testInTransactionRetriesFailedBegin() throws Exception
+	{
+		TransactionStatistics statistics = Db.getTransactionStatistics();
+		statistics.reset();
+		final DbProxy db = Db.getDb("sqlite");
+		final AtomicInteger begins = new AtomicInteger(0);
+		Db.registerDb("flaky", ObjectExtras.override(db, new Object()
+		{
+			public void beginTransaction(TransactionIsolation isolation) throws SQLException
+			{
+				if (begins.incrementAndGet() == 1) throw new SQLException("Lock timeout", "55P03");
+				db.beginTransaction(isolation);
+			}
+		}));
+		Db.select("flaky");
+		Object result = Db.inTransaction(null, new RetryPolicy(2, 0, 0), new TransactionCallback<Object>()
+		{
+			public Object run() throws SQLException
+			{
+				return Db.queryOne("select 1");
+			}
+		});
+		assertEquals(1, result);
+		assertEquals(2, begins.get());
+		assertEquals(false, Db.isInTransaction());
+		assertEquals(1, statistics.getRetries(TransactionFailure.LOCK_TIMEOUT));
+		assertEquals(1, statistics.getCommitted());
+	}
+
+	public void testNestedTransactions() throws Exception
+	{
+		RecordingDriver driver = RecordingDriver.register();
+		try
+		{
+			File temp = File.createTempFile("dbtest", "db");
+			temp.deleteOnExit();
+			Db.register("recording", "xtras.sql.RecordingDriver", RecordingDriver.PREFIX + temp.getAbsolutePath(), "", "", 2);
+			Db.select("recording");
+			Db.update("create table test (key integer primary key autoincrement, name)");
+			TransactionStatistics statistics = Db.getTransactionStatistics();
+			statistics.reset();
+			Db.beginTransaction();
+			Db.inTransaction(null, new TransactionCallback<Object>()
+			{
+				public Object run() throws SQLException
+				{
+					return Db.insert("insert into test (name) values (?)", "Foo");
+				}
+			});
+			try
+			{
+				Db.inTransaction(null, new TransactionCallback<Object>()
+				{
+					public Object run() throws SQLException
+					{
+						throw new SQLException("Conflict", "40001");
+					}
+				});
+				fail();
+			}
+			catch (SQLException e)
+			{
+				assertEquals("Conflict", e.getMessage());
+			}
+			assertEquals(true, Db.isInTransaction());
+			Db.commit();
+			assertEquals(false, Db.isInTransaction());
+			assertEquals(1, Db.queryOne("select count(*) from test"));
+			assertEquals(Arrays.asList("autoCommit false", "set 1", "release 1", "set 2", "rollback 2", "autoCommit true"),
+			             driver.getCalls());
+			assertEquals(0, statistics.getCommitted());
+			assertEquals(0, statistics.getFailed());
+		}
+		finally
+		{
+			driver.deregister();
+		}
+	}
+
+	public void testUpdateDeferred() throws Exception
+	{
+		Db.update("create table test (key integer primary key autoincrement, name)");
+		Db.updateDeferred("insert into <test>.test (name) values (?)", "Foo");
+		assertEquals(1, Db.queryOne("select count(*) from test"));
+		Db.beginTransaction();
+		Db.updateDeferred("insert into <test>.test (name) values (?)", "Bar");
+		Db.updateDeferred("insert into <test>.test (name) values (?)", "Baz");
+		Db.updateDeferred("update test set name = ? where name = ?", "Qux", "Baz");
+		assertEquals(Arrays.asList("Foo", "Bar", "Qux"), Db.queryAll("select name from test order by key"));
+		Db.updateDeferred("delete from test");
+		Db.rollback();
+		assertEquals(1, Db.queryOne("select count(*) from test"));
+
+		Db.beginTransaction();
+		Db.updateDeferred("insert into test (name) values (?)", "Bar");
+		Db.updateDeferred("insert into nosuchtable (name) values (?)", "Baz");
+		try
+		{
+			Db.commit();
+			fail();
+		}
+		catch (SQLException e)
+		{
+			// Expected
+		}
+		assertEquals(false, Db.isInTransaction());
+		assertEquals(1, Db.queryOne("select count(*) from test"));
+
+		((PooledDbProxy) Db.getDb("sqlite")).setBatchSize(2);
+		Db.beginTransaction();
+		Db.updateDeferred("insert into test (name) values (?)", "Bar");
+		try
+		{
+			Db.updateDeferred("insert into nosuchtable (name) values (?)", "Baz");
+			fail();
+		}
+		catch (SQLException e)
+		{
+			// Expected
+		}
+		Db.rollback();
+		assertEquals(1, Db.queryOne("select count(*) from test"));
+	}
+
+	public void testNamedParameters() throws Exception
+	{
+		Db.update("create table test (key integer primary key autoincrement, name, score, data)");
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("name", "Foo");
+		params.put("score", 1.5);
+		params.put("data", new byte[] { 1, 2 });
+		assertEquals(1, Db.insertNamed("insert into <test>.test (name, score, data) values (:name, :score, :data)", params));
+		params.put("name", "Bar");
+		params.put("score", 7L);
+		params.put("data", null);
+		assertEquals(2, Db.insertNamed("insert into <test>.test (name, score, data) values (:name, :score, :data)", params));
+		params.clear();
+		params.put("key", 2);
+		params.put("score", true);
+		assertEquals(1, Db.updateNamed("update test set score = :score where key = :key", params));
+		assertEquals(Arrays.asList("Bar", 1, null), Db.queryOneNamed("select name, score, data from test where key = :key", params));
+		params.put("score", 1);
+		assertEquals(Arrays.asList("Foo", "Bar"), Db.queryAllNamed("select name from test where score >= :score order by key", params));
+		assertEquals(2, ((byte[]) Db.queryOne("select data from test where key = 1")).length);
+	}
+
+	public void testQueryWithRowMapper() throws Exception
+	{
+		Db.update("drop table if exists <test>.people");
+		Db.update("create table <test>.people (name, age);");
+		Db.insert("insert into <test>.people values (?, ?)", "Sune", 30);
+		Db.insert("insert into <test>.people values (?, ?)", "Gurgi", null);
+		RowMapper<String> mapper = new RowMapper<String>()
+		{
+			public RowBinding<String> bind(ResultSetMetaData metaData) throws SQLException
+			{
+				return new AbstractRowBinding<String>(metaData)
+				{
+					private final int m_name = column("NAME");
+					private final int m_age = column("age");
+
+					public String mapRow(ResultSet resultSet) throws SQLException
+					{
+						return resultSet.getString(m_name) + ":" + SQL.getInt(resultSet, m_age, -1);
+					}
+				};
+			}
+		};
+		assertEquals("[Sune:30, Gurgi:-1]", Db.queryAll(mapper, "select * from <test>.people").toString());
+		assertEquals("Sune:30", Db.queryOne(mapper, "select * from <test>.people"));
+		assertEquals(null, Db.queryOne(mapper, "select * from <test>.people where name = ?", "Nobody"));
+		List<long[]> ages = Db.queryAll(RowMappers.longs(0), "select rowid, age from <test>.people");
+		assertEquals("[1, 30]", Arrays.toString(ages.get(0)));
+		assertEquals("[2, 0]", Arrays.toString(ages.get(1)));
+		assertEquals("[Sune, 30]", Arrays.toString(Db.queryOne(RowMappers.objects(), "select * from <test>.people")));
+		// Bind the same mapper to another result set for every row read.
+		final RowMapper<String> shared = mapper;
+		final List<String> nested = new ArrayList<String>();
+		List<String> rows = Db.query(new MappingResultProcessor<String>(mapper)
+		{
+			@Override
+			public boolean process(ResultSet resultSet) throws SQLException
+			{
+				nested.addAll(Db.queryAll(shared, "select age, name from <test>.people where name = 'Sune'"));
+				return super.process(resultSet);
+			}
+		}, "select name, age from <test>.people");
+		assertEquals("[Sune:30, Gurgi:-1]", rows.toString());
+		assertEquals("[Sune:30, Sune:30]", nested.toString());
+	}
+
+	public void testColumnarQuery() throws Exception
+	{
+		Db.update("drop table if exists <test>.scores");
+		Db.update("create table <test>.scores (player, country, score);");
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int i = 0; i < 40; i++)
+		{
+			rows.add(new Object[] { i, i % 3 == 0 ? null : "C" + (i % 2), i == 5 ? null : i * 1.5 });
+		}
+		Db.updateBatch("insert into <test>.scores values (?, ?, ?)", rows);
+		LongColumn players = new LongColumn(-1);
+		StringColumn countries = new StringColumn();
+		DoubleColumn scores = new DoubleColumn(Double.NaN);
+		IntColumn intScores = new IntColumn(-1);
+		ResultColumn[] result = Db.query(new ColumnarResultProcessor(players, countries, scores, intScores),
+		                                 "select player, country, score, score from <test>.scores order by player");
+		assertEquals(4, result.length);
+		assertSame(players, result[0]);
+		assertEquals(40, players.size());
+		assertEquals(39, players.get(39));
+		assertEquals(40, players.toArray().length);
+		assertEquals(null, countries.get(0));
+		assertEquals(StringColumn.NULL_CODE, countries.getCode(0));
+		assertEquals("C1", countries.get(1));
+		assertEquals("C0", countries.get(2));
+		assertEquals("[C1, C0]", countries.getDictionary().toString());
+		assertEquals(1, countries.toCodeArray()[2]);
+		assertEquals(3.0, scores.get(2));
+		assertTrue(Double.isNaN(scores.get(5)));
+		assertEquals(-1, intScores.get(5));
+		assertEquals(3, intScores.get(2));
+		try
+		{
+			scores.get(40);
+			fail();
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			// Ok
+		}
+		try
+		{
+			Db.query(new ColumnarResultProcessor(players, countries), "select player from <test>.scores");
+			fail();
+		}
+		catch (SQLException e)
+		{
+			assertEquals("Expected 2 columns in result, got 1.", e.getMessage());
+		}
+	}
+
+	public void testTransactionScopedState() throws Exception
+	{
+		PooledDbProxy proxy = (PooledDbProxy) Db.getDb("sqlite");
+		assertFalse(proxy.isTransactionScopedState());
+		proxy.setTransactionScopedState(true);
+		assertTrue(proxy.isTransactionScopedState());
+		Db.update("drop table if exists <test>.people");
+		Db.update("create table <test>.people (name);");
+		Db.beginTransaction();
+		Db.insert("insert into <test>.people values (?)", "Sune");
+		assertTrue(Db.isInTransaction());
+		Db.rollback();
+		assertFalse(Db.isInTransaction());
+		assertEquals(0, Db.queryOne("select count(*) from <test>.people"));
+		Db.beginTransaction();
+		Db.insert("insert into <test>.people values (?)", "Sune");
+		Db.commit();
+		assertFalse(Db.isInTransaction());
+		assertEquals(1, Db.queryOne("select count(*) from <test>.people"));
+		Db.beginTransaction();
+		try
+		{
+			Db.beginTransaction();
+			fail();
+		}
+		catch (SQLException e)
+		{
+			assertFalse(Db.isInTransaction());
+		}
+		proxy.setTransactionScopedState(false);
+	}
+
+	public void testTransactionStateNotSharedBetweenProxies() throws Exception
+	{
+		File temp = File.createTempFile("dbtest", "db");
+		temp.deleteOnExit();
+		PooledDbProxy other = new PooledDbProxy("org.sqlite.JDBC", "jdbc:sqlite:" + temp.getAbsolutePath(), "", "", 1);
+		try
+		{
+			other.update("create table people (name)");
+			Db.beginTransaction();
+			assertTrue(Db.isInTransaction());
+			assertFalse(other.inTransaction());
+			other.insert("insert into people values (?)", "Sune");
+			Db.rollback();
+			assertEquals(Integer.valueOf(1), other.query(new SingleResultProcessor<Integer>(), "select count(*) from people"));
+		}
+		finally
+		{
+			other.shutdown();
+		}
+	}
+
+	public void testEnableMetrics() throws Exception
+	{
+		DbPoolMetrics metrics = Db.enableMetrics("sqlite");
+		Db.update("drop table if exists <test>.people");
+		assertEquals(1, metrics.getAcquireCount());
+		assertEquals(1, metrics.getHoldTime().getCount());
+		javax.management.ObjectName name = new javax.management.ObjectName("xtras.sql:type=DbPool,name=\"sqlite\"");
+		javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+		assertEquals(1L, server.getAttribute(name, "AcquireCount"));
+		try
+		{
+			Db.enableMetrics("sqlite");
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+			// Ok
+		}
+		try
+		{
+			Db.enableMetrics("foo");
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Key 'foo' not yet registered.", e.getMessage());
+		}
+		Db.unregisterDb("sqlite");
+		assertFalse(server.isRegistered(name));
+	}
+
 	public void testInsert() throws Exception
 	{
 		Db.update("drop table if exists <test>.people");
@@ -106,6 +583,44 @@ public class DbTest extends TestCase
 		             Db.queryAll("select * from <test>.people").toString());
 	}
 
+	public void testUpdateBatch() throws Exception
+	{
+		Db.update("drop table if exists <test>.people");
+		Db.update("create table <test>.people (name, occupation);");
+		((PooledDbProxy) Db.getDb("sqlite")).setBatchSize(2);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int i = 0; i < 5; i++)
+		{
+			rows.add(new Object[]{"Person" + i, "Programmer"});
+		}
+		assertEquals("[1, 1, 1, 1, 1]", Arrays.toString(Db.updateBatch("insert into <test>.people values (?, ?)", rows)));
+		rows.clear();
+		rows.add(new Object[]{"QA Engineer", "Person1"});
+		rows.add(new Object[]{"QA Engineer", "Nobody"});
+		Db.beginTransaction();
+		assertEquals("[1, 0]", Arrays.toString(Db.updateBatch("update <test>.people set occupation = ? where name = ?", rows)));
+		Db.rollback();
+		assertEquals(0, Db.<Object>queryOne("select count(*) from <test>.people where occupation = 'QA Engineer'"));
+		assertEquals(5, Db.<Object>queryOne("select count(*) from <test>.people"));
+		assertEquals(0, Db.updateBatch("insert into <test>.people values (?, ?)", new ArrayList<Object[]>()).length);
+	}
+
+	public void testInsertBatch() throws Exception
+	{
+		Db.update("drop table if exists <test>.people");
+		Db.update("create table <test>.people (name, occupation);");
+		// Use single row batches, as the sqlite driver only returns the last key of a batch.
+		((PooledDbProxy) Db.getDb("sqlite")).setBatchSize(1);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		rows.add(new Object[]{"Sune", "Programmer"});
+		rows.add(new Object[]{"Gurgi", "QA Engineer"});
+		Db.beginTransaction();
+		assertEquals("[1, 2]", Db.insertBatch("insert into <test>.people values (?, ?)", rows).toString());
+		Db.commit();
+		assertEquals("[[Sune, Programmer], [Gurgi, QA Engineer]]",
+		             Db.queryAll("select * from <test>.people").toString());
+	}
+
 	public void testRegisterSchema() throws Exception
 	{
 		Db.addSchema("bar", "bar_schema", "sqlite");
@@ -264,4 +779,28 @@ public class DbTest extends TestCase
 			assertEquals("No db found.", e.getMessage());
 		}
 	}
-}
\ No newline at end of file
+
+	public void testSelectedDbDroppedWhenInvalid() throws Exception
+	{
+		File temp = File.createTempFile("dbtest", "db");
+		temp.deleteOnExit();
+		Db.register("sqlite2", "org.sqlite.JDBC", "jdbc:sqlite:" + temp.getAbsolutePath(), "", "", 1);
+		Db.select("sqlite2");
+		Db.update("create table other (name)");
+		// Shut down without unregistering, so only the failed call reveals it.
+		Db.getDb("sqlite2").shutdown();
+		try
+		{
+			Db.queryOne("select count(*) from other");
+			fail();
+		}
+		catch (SQLException e)
+		{
+			assertEquals("Db connection already shut down.", e.getMessage());
+		}
+		assertEquals(1, Db.queryOne("select 1"));
+		Db.select("sqlite2");
+		Db.unregisterDb("sqlite2");
+		assertEquals(1, Db.queryOne("select 1"));
+	}
+}
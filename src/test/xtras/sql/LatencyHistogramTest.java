@@ -0,0 +1,51 @@
+package xtras.sql;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.*;
+
+public class LatencyHistogramTest extends TestCase
+{
+	public void testEmpty()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0.0, histogram.getMean());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(99));
+	}
+
+	public void testRecord()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 100; i++)
+		{
+			histogram.record(i * 1000);
+		}
+		histogram.record(-5);
+		assertEquals(101, histogram.getCount());
+		assertEquals(5050000, histogram.getTotal());
+		assertEquals(100000, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(0));
+		long median = histogram.getPercentile(50);
+		assertTrue(median >= 50000 && median < 100000);
+		assertEquals(100000, histogram.getPercentile(100));
+		assertEquals(100000, histogram.getPercentile(99));
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+	}
+
+	public void testIllegalPercentile()
+	{
+		try
+		{
+			new LatencyHistogram().getPercentile(101);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Percentile must be between 0 and 100.", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package xtras.sql;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class NamedQueryTest extends TestCase
+{
+	public static class Player
+	{
+		public int getId()
+		{
+			return 3;
+		}
+
+		public String getName()
+		{
+			return "Foo";
+		}
+
+		public boolean isActive()
+		{
+			return true;
+		}
+	}
+
+	public void testParse() throws Exception
+	{
+		NamedQuery query = NamedQuery.parse("select * from players where id = :id and (name = :name or alias = :name)");
+		assertEquals("select * from players where id = ? and (name = ? or alias = ?)", query.getSql());
+		assertEquals(Arrays.asList("id", "name", "name"), query.getParameterNames());
+		assertSame(query, NamedQuery.parse("select * from players where id = :id and (name = :name or alias = :name)"));
+		query = NamedQuery.parse("select ':a', \":b\", `:c`, x::int, '' -- :d\n"
+		                         + "/* :e */ from t where a=:f_1");
+		assertEquals("select ':a', \":b\", `:c`, x::int, '' -- :d\n/* :e */ from t where a=?", query.getSql());
+		assertEquals(Arrays.asList("f_1"), query.getParameterNames());
+		assertEquals("select ': ?'", NamedQuery.parse("select ': ?'").getSql());
+		assertEquals("NamedQuery[select ?, [x]]", NamedQuery.parse("select :x").toString());
+	}
+
+	public void testBind() throws Exception
+	{
+		NamedQuery query = NamedQuery.parse("update players set name = :name where id = :id or :id is null");
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("id", null);
+		params.put("name", "Foo");
+		assertEquals(Arrays.asList("Foo", null, null), Arrays.asList(query.bind(params)));
+		params.remove("id");
+		try
+		{
+			query.bind(params);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("No value for parameter 'id'.", e.getMessage());
+		}
+	}
+
+	public void testBindBean() throws Exception
+	{
+		NamedQuery query = NamedQuery.parse("update players set name = :name, active = :active where id = :id");
+		assertEquals(Arrays.<Object>asList("Foo", true, 3), Arrays.asList(query.bindBean(new Player())));
+		try
+		{
+			NamedQuery.parse("select :foo").bindBean(new Player());
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("No value for parameter 'foo'.", e.getMessage());
+		}
+		try
+		{
+			NamedQuery.parse("select :name").bindBean(new Player()
+			{
+				public String getName()
+				{
+					throw new UnsupportedOperationException();
+				}
+			});
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Failed to read parameter 'name'.", e.getMessage());
+			assertEquals(UnsupportedOperationException.class, e.getCause().getClass());
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package xtras.sql;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.*;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class QueryStatisticsTest extends TestCase
+{
+	private PooledDbProxy m_proxy;
+	private QueryStatistics m_statistics;
+
+	public void setUp() throws Exception
+	{
+		File temp = File.createTempFile("querystatstest", "db");
+		temp.deleteOnExit();
+		m_proxy = new PooledDbProxy("org.sqlite.JDBC", "jdbc:sqlite:" + temp.getAbsolutePath(), "", "", 2);
+		m_proxy.addAlias("test", "main");
+		m_statistics = new QueryStatistics(3, 2);
+		m_proxy.setQueryListener(m_statistics);
+		assertSame(m_statistics, m_proxy.getQueryListener());
+		m_proxy.update("create table people (name, age);");
+	}
+
+	public void tearDown()
+	{
+		m_proxy.shutdown();
+	}
+
+	public void testStatistics() throws Exception
+	{
+		m_proxy.insert("insert into <test>.people values (?, ?)", "Sune", 30);
+		m_proxy.insert("insert into <test>.people values (?, ?)", "Gurgi", 5);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		rows.add(new Object[] { "Lasse", 7 });
+		m_proxy.updateBatch("insert into <test>.people values (?, ?)", rows);
+		QueryStatistics.StatementStatistics insert = m_statistics.getStatistics("insert into main.people values (?, ?)");
+		assertEquals(3, insert.getCount());
+		assertEquals(3, insert.getRows());
+		assertEquals(0, insert.getErrors());
+		// The create table in setUp is tracked too.
+		assertEquals(2, m_statistics.getStatements().size());
+		assertEquals(3, m_proxy.update("update <test>.people set age = age + 1"));
+		assertEquals(0, m_statistics.getUntracked());
+		assertEquals(1, m_proxy.update("update <test>.people set age = 1 where age = 8"));
+		assertEquals(1, m_statistics.getUntracked());
+		m_statistics.reset();
+		assertEquals(3, m_proxy.query(new AllResultProcessor<Object>(), "select * from <test>.people").size());
+		QueryStatistics.StatementStatistics query = m_statistics.getStatistics("select * from main.people");
+		assertEquals(1, query.getCount());
+		assertEquals(3, query.getRows());
+		assertTrue(query.getFirstRowTime().getMax() <= query.getTotalTime().getMax());
+		assertTrue(query.getPoolWaitTime().getMax() <= query.getTotalTime().getMax());
+		try
+		{
+			m_proxy.query(new AllResultProcessor<Object>(), "select * from nosuchtable");
+			fail();
+		}
+		catch (SQLException e)
+		{
+			// Ok
+		}
+		assertEquals(1, m_statistics.getStatistics("select * from nosuchtable").getErrors());
+	}
+
+	public void testEvents() throws Exception
+	{
+		final List<QueryEvent> events = new ArrayList<QueryEvent>();
+		m_proxy.setQueryListener(new QueryListener()
+		{
+			public void queryExecuted(QueryEvent event)
+			{
+				events.add(event);
+			}
+		});
+		m_proxy.insert("insert into people values (?, ?)", "Sune", 30);
+		m_proxy.query(new SingleResultProcessor<Object>(), "select name from people where age = ?", 30);
+		m_proxy.beginTransaction(null);
+		m_proxy.update("delete from people");
+		m_proxy.rollback();
+		assertEquals(3, events.size());
+		QueryEvent query = events.get(1);
+		assertEquals(QueryEvent.Type.QUERY, query.getType());
+		assertEquals("select name from people where age = ?", query.getSql());
+		assertEquals(1, query.getBindCount());
+		assertEquals(1, query.getRows());
+		assertNull(query.getError());
+		assertEquals(QueryEvent.Type.INSERT, events.get(0).getType());
+		assertEquals(2, events.get(0).getBindCount());
+		QueryEvent update = events.get(2);
+		assertEquals(QueryEvent.Type.UPDATE, update.getType());
+		assertEquals(0, update.getPoolWaitTime());
+		assertEquals(update.getTotalTime(), update.getFirstRowTime());
+		assertEquals(1, events.get(0).getRows());
+		try
+		{
+			m_proxy.insert("insert into nosuchtable values (?)", "Sune");
+			fail();
+		}
+		catch (SQLException e)
+		{
+			// Ok
+		}
+		QueryEvent failedInsert = events.get(3);
+		assertEquals(QueryEvent.Type.INSERT, failedInsert.getType());
+		assertEquals(0, failedInsert.getRows());
+		assertNotNull(failedInsert.getError());
+	}
+
+	public void testSlowQueries() throws Exception
+	{
+		assertEquals(1000, m_statistics.getSlowQueryThreshold());
+		m_proxy.update("delete from people");
+		assertEquals(0, m_statistics.getSlowQueries().size());
+		m_statistics.setSlowQueryThreshold(0);
+		m_proxy.update("delete from people where age = ?", 1);
+		m_proxy.update("delete from people where age = ?", 2);
+		m_proxy.update("delete from people where age = ?", 3);
+		assertEquals(2, m_statistics.getSlowQueries().size());
+		m_statistics.setSlowQueryThreshold(-1);
+		m_proxy.update("delete from people");
+		assertEquals(2, m_statistics.getSlowQueries().size());
+	}
+}
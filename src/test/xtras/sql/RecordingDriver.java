@@ -0,0 +1,174 @@
+package xtras.sql;
+
+import xtras.lang.ObjectExtras;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * A driver for urls on the form {@code jdbc:recording:<file>}, opening sqlite connections
+ * that record the calls changing session settings, and pretend to support savepoints,
+ * since the sqlite driver used in the tests does not.
+ * <p/>
+ * The savepoint calls are only recorded, rolling back to a savepoint does not undo any changes.
+ *
+ * @author Christoffer Lerno
+ */
+class RecordingDriver implements Driver
+{
+	public final static String PREFIX = "jdbc:recording:";
+
+	private final List<String> m_calls = Collections.synchronizedList(new ArrayList<String>());
+	private int m_savepoints = 0;
+
+	/**
+	 * Registers a new driver with the DriverManager.
+	 *
+	 * @return the registered driver.
+	 * @throws SQLException if the driver could not be registered.
+	 */
+	public static RecordingDriver register() throws SQLException
+	{
+		try
+		{
+			Class.forName("org.sqlite.JDBC");
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new SQLException("sqlite driver not found.");
+		}
+		RecordingDriver driver = new RecordingDriver();
+		DriverManager.registerDriver(driver);
+		return driver;
+	}
+
+	/**
+	 * Removes this driver from the DriverManager.
+	 *
+	 * @throws SQLException if the driver could not be deregistered.
+	 */
+	public void deregister() throws SQLException
+	{
+		DriverManager.deregisterDriver(this);
+	}
+
+	/**
+	 * Returns the calls made on the connections of this driver, such as
+	 * "autoCommit false", "isolation 8", "set 1", "rollback 1" and "release 1".
+	 *
+	 * @return the calls made, in order.
+	 */
+	public List<String> getCalls()
+	{
+		synchronized (m_calls)
+		{
+			return new ArrayList<String>(m_calls);
+		}
+	}
+
+	public Connection connect(String url, Properties info) throws SQLException
+	{
+		if (!acceptsURL(url)) return null;
+		Connection connection = DriverManager.getConnection("jdbc:sqlite:" + url.substring(PREFIX.length()), info);
+		return ObjectExtras.override(connection, new Recorder(connection));
+	}
+
+	public boolean acceptsURL(String url)
+	{
+		return url.startsWith(PREFIX);
+	}
+
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+	{
+		return new DriverPropertyInfo[0];
+	}
+
+	public int getMajorVersion()
+	{
+		return 1;
+	}
+
+	public int getMinorVersion()
+	{
+		return 0;
+	}
+
+	public boolean jdbcCompliant()
+	{
+		return false;
+	}
+
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException
+	{
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	private synchronized int nextSavepoint()
+	{
+		return ++m_savepoints;
+	}
+
+	/**
+	 * The methods overriding the ones of the sqlite connection.
+	 */
+	public class Recorder
+	{
+		private final Connection m_connection;
+
+		private Recorder(Connection connection)
+		{
+			m_connection = connection;
+		}
+
+		public void setAutoCommit(boolean autoCommit) throws SQLException
+		{
+			m_calls.add("autoCommit " + autoCommit);
+			m_connection.setAutoCommit(autoCommit);
+		}
+
+		public void setTransactionIsolation(int isolation) throws SQLException
+		{
+			m_calls.add("isolation " + isolation);
+			m_connection.setTransactionIsolation(isolation);
+		}
+
+		public void setReadOnly(boolean readOnly) throws SQLException
+		{
+			m_calls.add("readOnly " + readOnly);
+			m_connection.setReadOnly(readOnly);
+		}
+
+		public Savepoint setSavepoint()
+		{
+			final int id = nextSavepoint();
+			m_calls.add("set " + id);
+			return ObjectExtras.adapt(Savepoint.class, new Object()
+			{
+				public int getSavepointId()
+				{
+					return id;
+				}
+			});
+		}
+
+		public void rollback(Savepoint savepoint) throws SQLException
+		{
+			m_calls.add("rollback " + savepoint.getSavepointId());
+		}
+
+		public void releaseSavepoint(Savepoint savepoint) throws SQLException
+		{
+			m_calls.add("release " + savepoint.getSavepointId());
+		}
+	}
+}
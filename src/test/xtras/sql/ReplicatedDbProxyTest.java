@@ -0,0 +1,182 @@
+package xtras.sql;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.*;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ReplicatedDbProxyTest extends TestCase
+{
+	private PooledDbProxy m_primary;
+	private PooledDbProxy m_replica1;
+	private PooledDbProxy m_replica2;
+	private PooledDbProxy m_broken;
+
+	public void setUp() throws Exception
+	{
+		m_primary = createProxy("primary");
+		m_replica1 = createProxy("replica1");
+		m_replica2 = createProxy("replica2");
+		m_broken = new PooledDbProxy("org.sqlite.JDBC", "jdbc:nosuchdb:broken", "", "", 2);
+	}
+
+	private static PooledDbProxy createProxy(String name) throws Exception
+	{
+		File temp = File.createTempFile("replicatest", "db");
+		temp.deleteOnExit();
+		PooledDbProxy proxy = new PooledDbProxy("org.sqlite.JDBC", "jdbc:sqlite:" + temp.getAbsolutePath(), "", "", 2);
+		proxy.update("create table endpoint (name)");
+		proxy.insert("insert into endpoint values (?)", name);
+		return proxy;
+	}
+
+	private ReplicatedDbProxy createReplicated(PooledDbProxy... replicas)
+	{
+		List<PooledDbProxy> list = new ArrayList<PooledDbProxy>();
+		for (PooledDbProxy replica : replicas)
+		{
+			list.add(replica);
+		}
+		return new ReplicatedDbProxy(m_primary, list);
+	}
+
+	public void tearDown()
+	{
+		m_primary.shutdown();
+		m_replica1.shutdown();
+		m_replica2.shutdown();
+		m_broken.shutdown();
+	}
+
+	private static Object endpoint(DbProxy proxy) throws Exception
+	{
+		return proxy.query(new SingleResultProcessor<Object>(), "select name from endpoint");
+	}
+
+	public void testRoundRobin() throws Exception
+	{
+		ReplicatedDbProxy proxy = createReplicated(m_replica1, m_replica2);
+		assertSame(m_primary, proxy.getPrimary());
+		assertEquals(ReplicatedDbProxy.Balancing.ROUND_ROBIN, proxy.getBalancing());
+		assertEquals("replica1", endpoint(proxy));
+		assertEquals("replica2", endpoint(proxy));
+		assertEquals("replica1", endpoint(proxy));
+		assertEquals("replica2", proxy.query(QueryOptions.DEFAULT, new SingleResultProcessor<Object>(),
+		                                     "select name from endpoint"));
+		Cursor<Object> cursor = proxy.cursor(QueryOptions.DEFAULT, "select name from endpoint");
+		assertEquals("replica1", cursor.next());
+		cursor.close();
+	}
+
+	public void testLeastBusy() throws Exception
+	{
+		ReplicatedDbProxy proxy = createReplicated(m_replica1, m_replica2);
+		proxy.setBalancing(ReplicatedDbProxy.Balancing.LEAST_BUSY);
+		m_replica1.getPool().acquire();
+		assertEquals("replica2", endpoint(proxy));
+		assertEquals("replica2", endpoint(proxy));
+	}
+
+	public void testWritesGoToPrimary() throws Exception
+	{
+		ReplicatedDbProxy proxy = createReplicated(m_replica1);
+		proxy.addAlias("test", "main");
+		assertEquals(1, proxy.update("update <test>.endpoint set name = ?", "primary2"));
+		assertEquals(2, proxy.insert("insert into endpoint values (?)", "primary3"));
+		List<Object[]> rows = new ArrayList<Object[]>();
+		rows.add(new Object[] { "primary4" });
+		assertEquals(1, proxy.updateBatch("insert into endpoint values (?)", rows).length);
+		assertEquals(1, proxy.insertBatch("insert into endpoint values (?)", rows).size());
+		assertEquals(4, m_primary.query(new SingleResultProcessor<Object>(), "select count(*) from endpoint"));
+		assertEquals("replica1", endpoint(proxy));
+	}
+
+	public void testTransactionOnPrimary() throws Exception
+	{
+		ReplicatedDbProxy proxy = createReplicated(m_replica1);
+		proxy.beginTransaction(null);
+		assertEquals(true, proxy.inTransaction());
+		assertEquals("primary", endpoint(proxy));
+		proxy.update("update endpoint set name = ?", "changed");
+		assertEquals("changed", endpoint(proxy));
+		proxy.rollback();
+		assertEquals(false, proxy.inTransaction());
+		proxy.beginTransaction(null);
+		proxy.update("update endpoint set name = ?", "changed");
+		proxy.commit();
+		assertEquals("changed", endpoint(m_primary));
+		assertEquals("replica1", endpoint(proxy));
+	}
+
+	public void testEjectBrokenReplica() throws Exception
+	{
+		ReplicatedDbProxy proxy = createReplicated(m_broken, m_replica1);
+		proxy.setEjectTime(100);
+		assertEquals(100, proxy.getEjectTime());
+		assertEquals(2, proxy.getAvailableReplicas());
+		assertEquals("replica1", endpoint(proxy));
+		assertEquals(1, proxy.getAvailableReplicas());
+		assertEquals("replica1", endpoint(proxy));
+		Thread.sleep(150);
+		assertEquals(2, proxy.getAvailableReplicas());
+	}
+
+	public void testFailoverOnAcquireTimeout() throws Exception
+	{
+		ReplicatedDbProxy proxy = createReplicated(m_replica1, m_replica2);
+		m_replica1.getPool().setAcquireTimeout(50);
+		m_replica1.getPool().acquire();
+		m_replica1.getPool().acquire();
+		assertEquals("replica2", endpoint(proxy));
+		assertEquals(1, proxy.getAvailableReplicas());
+	}
+
+	public void testNoFailoverAfterRows() throws Exception
+	{
+		ReplicatedDbProxy proxy = createReplicated(m_replica1, m_replica2);
+		final AtomicInteger rows = new AtomicInteger(0);
+		try
+		{
+			proxy.query(new SingleResultProcessor<Object>()
+			{
+				@Override
+				public boolean process(ResultSet resultSet) throws SQLException
+				{
+					rows.incrementAndGet();
+					throw new SQLException("Connection lost.", "08S01");
+				}
+			}, "select name from endpoint");
+			fail();
+		}
+		catch (SQLException e)
+		{
+			assertEquals("Connection lost.", e.getMessage());
+		}
+		assertEquals(1, rows.get());
+		assertEquals(1, proxy.getAvailableReplicas());
+	}
+
+	public void testFallbackToPrimary() throws Exception
+	{
+		ReplicatedDbProxy proxy = createReplicated(m_broken);
+		assertEquals("primary", endpoint(proxy));
+		assertEquals("primary", endpoint(createReplicated()));
+		assertEquals("ReplicatedDbProxy[1 replicas, 0 available]", proxy.toString());
+	}
+
+	public void testShutdown() throws Exception
+	{
+		ReplicatedDbProxy proxy = createReplicated(m_replica1);
+		assertEquals(true, proxy.isValid());
+		proxy.shutdown();
+		assertEquals(false, proxy.isValid());
+		assertEquals(false, m_replica1.isValid());
+	}
+}
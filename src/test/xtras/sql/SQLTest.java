@@ -50,4 +50,39 @@ public class SQLTest extends TestCase
 
 	}
 
-}
\ No newline at end of file
+	public void testGetPrimitives() throws Exception
+	{
+		ResultSet resultSet = ObjectExtras.adapt(ResultSet.class, new Object()
+		{
+			private boolean m_wasNull;
+
+			public long getLong(int column)
+			{
+				m_wasNull = column == 2;
+				return column == 1 ? 5 : 0;
+			}
+
+			public int getInt(int column)
+			{
+				return (int) getLong(column);
+			}
+
+			public double getDouble(int column)
+			{
+				return getLong(column);
+			}
+
+			public boolean wasNull()
+			{
+				return m_wasNull;
+			}
+		});
+		assertEquals(5, SQL.getLong(resultSet, 1, -1));
+		assertEquals(-1, SQL.getLong(resultSet, 2, -1));
+		assertEquals(0, SQL.getLong(resultSet, 3, -1));
+		assertEquals(5, SQL.getInt(resultSet, 1, -1));
+		assertEquals(-1, SQL.getInt(resultSet, 2, -1));
+		assertEquals(5.0, SQL.getDouble(resultSet, 1, -1));
+		assertEquals(-1.0, SQL.getDouble(resultSet, 2, -1));
+	}
+}
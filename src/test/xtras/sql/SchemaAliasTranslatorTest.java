@@ -0,0 +1,49 @@
+package xtras.sql;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.*;
+
+public class SchemaAliasTranslatorTest extends TestCase
+{
+	public void testTranslate() throws Exception
+	{
+		SchemaAliasTranslator translator = new SchemaAliasTranslator();
+		String query = "select * from <foo>.test";
+		assertSame(query, translator.translate(query));
+		translator.addAlias("Foo", "bar");
+		translator.addAlias("x", "schema_x");
+		assertEquals("select * from bar.test", translator.translate(query));
+		assertEquals("select * from bar.a, schema_x.b where a.id <> b.id and 1 < 2",
+		             translator.translate("select * from <FOO>.a, <x>.b where a.id <> b.id and 1 < 2"));
+		assertEquals("select <foo> from <bar.a, <y>.b, <x<x>",
+		             translator.translate("select <foo> from <<foo>.a, <y>.b, <x<x>"));
+		assertEquals("schema_x.a<schema_x.", translator.translate("<x>.a<<x>."));
+		String untouched = "select * from test where a < b and c > d";
+		assertSame(untouched, translator.translate(untouched));
+		try
+		{
+			translator.addAlias("FOO", "baz");
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("Db schema 'foo' already registered.", e.getMessage());
+		}
+	}
+
+	public void testCache() throws Exception
+	{
+		SchemaAliasTranslator translator = new SchemaAliasTranslator();
+		translator.addAlias("foo", "bar");
+		String translated = translator.translate("select * from <foo>.test");
+		assertSame(translated, translator.translate("select * from <foo>.test"));
+		translator.addAlias("test", "main");
+		assertEquals("select * from bar.test, main.x", translator.translate("select * from <foo>.test, <test>.x"));
+		for (int i = 0; i < SchemaAliasTranslator.MAX_CACHED + 10; i++)
+		{
+			assertEquals("select " + i + " from bar.test", translator.translate("select " + i + " from <foo>.test"));
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package xtras.sql;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.*;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ShardedDbProxyTest extends TestCase
+{
+	private List<PooledDbProxy> m_shards;
+	private ShardedDbProxy m_proxy;
+
+	public void setUp() throws Exception
+	{
+		m_shards = new ArrayList<PooledDbProxy>();
+		for (int i = 0; i < 2; i++)
+		{
+			File temp = File.createTempFile("shardtest", "db");
+			temp.deleteOnExit();
+			PooledDbProxy shard = new PooledDbProxy("org.sqlite.JDBC", "jdbc:sqlite:" + temp.getAbsolutePath(), "", "", 2);
+			shard.update("create table players (id, name)");
+			m_shards.add(shard);
+		}
+		m_proxy = new ShardedDbProxy(ShardedDbProxy.argument(0), m_shards);
+	}
+
+	public void tearDown()
+	{
+		m_proxy.shutdown();
+	}
+
+	private static Object count(DbProxy proxy) throws Exception
+	{
+		return proxy.query(new SingleResultProcessor<Object>(), "select count(*) from players");
+	}
+
+	private static ShardCombiner<List<Object>, List<Object>> concat()
+	{
+		return new ShardCombiner<List<Object>, List<Object>>()
+		{
+			public ResultProcessor<List<Object>> createProcessor(int shard)
+			{
+				return new AllResultProcessor<Object>();
+			}
+
+			public List<Object> combine(List<List<Object>> results)
+			{
+				List<Object> all = new ArrayList<Object>();
+				for (List<Object> result : results)
+				{
+					all.addAll(result);
+				}
+				return all;
+			}
+		};
+	}
+
+	public void testRouting() throws Exception
+	{
+		assertEquals(2, m_proxy.getShardCount());
+		assertSame(m_shards.get(1), m_proxy.getShard(1));
+		assertEquals(0, m_proxy.shardOf(4));
+		assertEquals(1, m_proxy.shardOf(5));
+		assertEquals(1, m_proxy.shardOf(5L));
+		assertEquals(1, m_proxy.shardOf((short) 5));
+		m_proxy.insert("insert into players values (?, ?)", 4, "Foo");
+		m_proxy.insert("insert into players values (?, ?)", 5, "Bar");
+		m_proxy.insert("insert into players values (?, ?)", 7, "Baz");
+		assertEquals(1, count(m_shards.get(0)));
+		assertEquals(2, count(m_shards.get(1)));
+		assertEquals("Foo", m_proxy.query(new SingleResultProcessor<Object>(), "select name from players where ? = id", 4));
+		assertEquals(1, m_proxy.update("update players set name = 'Qux' where id = ?", 7));
+		assertEquals(Arrays.asList(7, "Qux"), m_proxy.query(QueryOptions.DEFAULT, new SingleResultProcessor<Object>(),
+		                                                    "select * from players where ? = id", 7));
+		Cursor<Object> cursor = m_proxy.cursor(QueryOptions.DEFAULT, "select name from players where ? = id", 5);
+		assertEquals("Bar", cursor.next());
+		cursor.close();
+		try
+		{
+			m_proxy.update("delete from players");
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Shard key must not be null.", e.getMessage());
+		}
+	}
+
+	public void testBatches() throws Exception
+	{
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int i = 0; i < 5; i++)
+		{
+			rows.add(new Object[] { i, "Player" + i });
+		}
+		// Sqlite only returns the last key of each batch.
+		assertEquals(2, m_proxy.insertBatch("insert into players values (?, ?)", rows).size());
+		assertEquals(3, count(m_shards.get(0)));
+		assertEquals(2, count(m_shards.get(1)));
+		rows.clear();
+		rows.add(new Object[] { 3, 3 });
+		rows.add(new Object[] { 9, 9 });
+		rows.add(new Object[] { 2, 2 });
+		int[] counts = m_proxy.updateBatch("update players set name = 'x' where ? = id and ? = id", rows);
+		assertEquals("[1, 0, 1]", Arrays.toString(counts));
+	}
+
+	public void testQueryAllShards() throws Exception
+	{
+		for (int i = 0; i < 5; i++)
+		{
+			m_proxy.insert("insert into players values (?, ?)", i, "Player" + i);
+		}
+		List<Object> names = m_proxy.queryAllShards(concat(), "select name from players order by id");
+		assertEquals(Arrays.<Object>asList("Player0", "Player2", "Player4", "Player1", "Player3"), names);
+		names = m_proxy.queryAllShards(new QueryOptions(0, 1), concat(), "select name from players order by id");
+		assertEquals(Arrays.<Object>asList("Player0", "Player1"), names);
+		try
+		{
+			m_proxy.queryAllShards(concat(), "select foo from players");
+			fail();
+		}
+		catch (SQLException e)
+		{
+			// Expected
+		}
+		m_proxy.beginTransaction(null);
+		try
+		{
+			m_proxy.queryAllShards(concat(), "select name from players");
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("Queries on all shards are not allowed inside a transaction.", e.getMessage());
+		}
+		m_proxy.rollback();
+	}
+
+	public void testQueryAllShardsAwaitsOtherShardsOnFailure() throws Exception
+	{
+		m_proxy.insert("insert into players values (?, ?)", 0, "Foo");
+		m_proxy.insert("insert into players values (?, ?)", 1, "Bar");
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicBoolean interrupted = new AtomicBoolean(false);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		ShardCombiner<Object, Object> combiner = new ShardCombiner<Object, Object>()
+		{
+			public ResultProcessor<Object> createProcessor(int shard)
+			{
+				if (shard == 0)
+				{
+					return new SingleResultProcessor<Object>()
+					{
+						@Override
+						public boolean process(ResultSet resultSet) throws SQLException
+						{
+							started.countDown();
+							try
+							{
+								Thread.sleep(10000);
+								return false;
+							}
+							catch (InterruptedException e)
+							{
+								interrupted.set(true);
+								throw new SQLException("Interrupted.");
+							}
+							finally
+							{
+								done.set(true);
+							}
+						}
+					};
+				}
+				return new SingleResultProcessor<Object>()
+				{
+					@Override
+					public boolean process(ResultSet resultSet) throws SQLException
+					{
+						try
+						{
+							started.await();
+						}
+						catch (InterruptedException e)
+						{
+							// Fail below.
+						}
+						throw new SQLException("Failed.");
+					}
+				};
+			}
+
+			public Object combine(List<Object> results)
+			{
+				return results;
+			}
+		};
+		try
+		{
+			m_proxy.queryAllShards(combiner, "select name from players");
+			fail();
+		}
+		catch (SQLException e)
+		{
+			assertEquals("Failed.", e.getMessage());
+		}
+		assertEquals(true, done.get());
+		assertEquals(true, interrupted.get());
+	}
+
+	public void testTransaction() throws Exception
+	{
+		assertEquals(false, m_proxy.inTransaction());
+		m_proxy.beginTransaction(null);
+		assertEquals(true, m_proxy.inTransaction());
+		assertEquals(false, m_shards.get(1).inTransaction());
+		try
+		{
+			m_proxy.insert("insert into players values (1, 'Foo')");
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected
+		}
+		m_proxy.insert("insert into players values (?, ?)", 1, "Foo");
+		assertEquals(true, m_shards.get(1).inTransaction());
+		m_proxy.update("update players set name = 'Bar'");
+		try
+		{
+			m_proxy.insert("insert into players values (?, ?)", 2, "Baz");
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("Transaction is bound to shard 1, cannot use shard 0.", e.getMessage());
+		}
+		m_proxy.rollback();
+		assertEquals(false, m_proxy.inTransaction());
+		assertEquals(0, count(m_shards.get(1)));
+
+		m_proxy.beginTransaction(2, null);
+		m_proxy.update("insert into players values (4, 'Foo')");
+		m_proxy.commit();
+		assertEquals(1, count(m_shards.get(0)));
+
+		m_proxy.beginTransaction(null);
+		m_proxy.commit();
+		try
+		{
+			m_proxy.commit();
+			fail();
+		}
+		catch (SQLException e)
+		{
+			assertEquals("Tried to commit transaction outside of transaction.", e.getMessage());
+		}
+		try
+		{
+			m_proxy.rollback();
+			fail();
+		}
+		catch (SQLException e)
+		{
+			assertEquals("Tried to rollback outside of transaction.", e.getMessage());
+		}
+	}
+
+	public void testShutdown() throws Exception
+	{
+		m_proxy.addAlias("test", "main");
+		assertEquals(0, count(m_proxy.getShard(0)));
+		assertEquals(true, m_proxy.isValid());
+		assertEquals("ShardedDbProxy[2 shards]", m_proxy.toString());
+		m_proxy.shutdown();
+		assertEquals(false, m_proxy.isValid());
+		try
+		{
+			new ShardedDbProxy(ShardedDbProxy.argument(0), new ArrayList<DbProxy>());
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("At least one shard is required.", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package xtras.sql;
+/**
+ * @author Christoffer Lerno
+ */
+
+import junit.framework.*;
+
+import java.sql.SQLException;
+
+public class TransactionFailureTest extends TestCase
+{
+	public void testClassify() throws Exception
+	{
+		assertEquals(null, TransactionFailure.classify(new SQLException("Foo")));
+		assertEquals(null, TransactionFailure.classify(new SQLException("Foo", "08001")));
+		assertEquals(TransactionFailure.SERIALIZATION_FAILURE, TransactionFailure.classify(new SQLException("Foo", "40001")));
+		assertEquals(TransactionFailure.DEADLOCK, TransactionFailure.classify(new SQLException("Foo", "40001", 1213)));
+		assertEquals(TransactionFailure.DEADLOCK, TransactionFailure.classify(new SQLException("Foo", "40001", 1205)));
+		assertEquals(TransactionFailure.DEADLOCK, TransactionFailure.classify(new SQLException("Foo", "40P01")));
+		assertEquals(TransactionFailure.LOCK_TIMEOUT, TransactionFailure.classify(new SQLException("Foo", "55P03")));
+		assertEquals(TransactionFailure.LOCK_TIMEOUT, TransactionFailure.classify(new SQLException("Foo", "HY000", 1205)));
+		assertEquals(null, TransactionFailure.classify(new SQLException("Foo", "HY000", 1213)));
+		SQLException chained = new SQLException("Batch failed", "22000");
+		chained.setNextException(new SQLException("Foo", "40P01"));
+		assertEquals(TransactionFailure.DEADLOCK, TransactionFailure.classify(chained));
+	}
+
+	public void testRetryPolicy() throws Exception
+	{
+		RetryPolicy policy = new RetryPolicy(3, 10, 50);
+		assertEquals(3, policy.getMaxAttempts());
+		assertEquals(10, policy.getInitialBackoff());
+		assertEquals(50, policy.getMaxBackoff());
+		for (int i = 0; i < 100; i++)
+		{
+			long backoff = policy.getBackoff(1);
+			assertEquals(true, backoff > 5 && backoff <= 10);
+			backoff = policy.getBackoff(3);
+			assertEquals(true, backoff > 20 && backoff <= 40);
+			backoff = policy.getBackoff(40);
+			assertEquals(true, backoff > 25 && backoff <= 50);
+		}
+		assertEquals(0, RetryPolicy.NONE.getBackoff(1));
+		assertEquals("RetryPolicy[5 attempts, backoff 10-1000 ms]", RetryPolicy.DEFAULT.toString());
+		try
+		{
+			new RetryPolicy(0, 0, 0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals("Max attempts must be at least 1.", e.getMessage());
+		}
+	}
+}